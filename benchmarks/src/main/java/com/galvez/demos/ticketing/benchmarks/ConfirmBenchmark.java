@@ -0,0 +1,66 @@
+package com.galvez.demos.ticketing.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.galvez.demos.ticketing.SeatHold;
+import com.galvez.demos.ticketing.exceptions.TicketException;
+import com.galvez.demos.ticketing.impl.EventTicketService;
+
+/**
+ * Cost of purchasing a hold, both SeatHold.confirmSeats alone and the whole
+ * EventTicketService.reserveSeats path that also records the purchase. A hold
+ * can only be purchased once, so every iteration holds a fresh batch first.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 50, batchSize = ConfirmBenchmark.BATCH)
+@Measurement(iterations = 50, batchSize = ConfirmBenchmark.BATCH)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfirmBenchmark {
+	static final int BATCH = 1000;
+
+	@Param({ "false", "true" })
+	public boolean compact;
+
+	@Param({ "4" })
+	public int partySize;
+
+	private EventTicketService event;
+	private SeatHold[] holds;
+	private int next;
+
+	@Setup(Level.Iteration)
+	public void holdSeats() throws TicketException {
+		event = VenueFixtures.createEvent(100, 50, compact, 0.0, 42L);
+		holds = new SeatHold[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			holds[i] = event.findAndHoldSeats(partySize, VenueFixtures.CUSTOMER_EMAIL);
+		}
+		next = 0;
+	}
+
+	@Benchmark
+	public String confirmSeats() throws TicketException {
+		return holds[next++].confirmSeats(VenueFixtures.CUSTOMER_EMAIL);
+	}
+
+	@Benchmark
+	public String reserveSeats() throws TicketException {
+		return event.reserveSeats(holds[next++].getSeatHoldId(), VenueFixtures.CUSTOMER_EMAIL);
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.galvez.demos.ticketing.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.galvez.demos.ticketing.Event;
+import com.galvez.demos.ticketing.SeatHold;
+import com.galvez.demos.ticketing.exceptions.TicketException;
+import com.galvez.demos.ticketing.impl.EventLoopTicketService;
+import com.galvez.demos.ticketing.impl.EventTicketService;
+
+/**
+ * Many threads holding and purchasing seats of the same event, either calling
+ * the event directly or through its single writer event loop. The number of
+ * threads can be changed with -t, the venue fits a batch for up to 16 threads.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 20, batchSize = ContentionBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = ContentionBenchmark.BATCH)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ContentionBenchmark {
+	// Holds per thread and iteration
+	static final int BATCH = 1000;
+
+	@Param({ "direct", "eventLoop" })
+	public String mode;
+
+	@Param({ "false", "true" })
+	public boolean compact;
+
+	private Event event;
+
+	@Setup(Level.Iteration)
+	public void createEvent() throws TicketException {
+		EventTicketService tickets = VenueFixtures.createEvent(1000, 100, compact, 0.0, 42L);
+		if ("eventLoop".equals(mode)) {
+			event = new EventLoopTicketService(tickets);
+		} else {
+			event = tickets;
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void stopEventLoop() {
+		if (event instanceof EventLoopTicketService) {
+			((EventLoopTicketService) event).getCommandLoop().shutdown();
+		}
+	}
+
+	@Benchmark
+	public SeatHold findAndHoldSeats() throws TicketException {
+		return event.findAndHoldSeats(4, VenueFixtures.CUSTOMER_EMAIL);
+	}
+
+	@Benchmark
+	public String holdAndPurchase() throws TicketException {
+		SeatHold hold = event.findAndHoldSeats(4, VenueFixtures.CUSTOMER_EMAIL);
+		return event.reserveSeats(hold.getSeatHoldId(), VenueFixtures.CUSTOMER_EMAIL);
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.galvez.demos.ticketing.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.galvez.demos.ticketing.exceptions.TicketException;
+import com.galvez.demos.ticketing.impl.EventTicketService;
+import com.galvez.demos.ticketing.impl.HoldExpirationScheduler;
+
+/**
+ * Throughput of hold expirations: the scheduler alone running expirations that
+ * are due right away, scheduling an expiration that is cancelled as a purchase
+ * does, and holds of an event expiring until their seats are back on sale.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpirationBenchmark {
+	static final int EXPIRATIONS = 10000;
+	static final int HOLDS = 100;
+
+	private HoldExpirationScheduler scheduler;
+	private EventTicketService event;
+
+	@Setup
+	public void createScheduler() throws TicketException {
+		scheduler = new HoldExpirationScheduler(1L, 512);
+		event = VenueFixtures.createEvent(100, 50, false, 0.0, 42L);
+		event.setExpirationScheduler(scheduler);
+		event.setHoldTimeout(1L);
+	}
+
+	@TearDown
+	public void shutdownScheduler() {
+		scheduler.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EXPIRATIONS)
+	public void expire() throws InterruptedException {
+		final CountDownLatch expired = new CountDownLatch(EXPIRATIONS);
+		Runnable task = new Runnable() {
+			public void run() {
+				expired.countDown();
+			}
+		};
+		for (int i = 0; i < EXPIRATIONS; i++) {
+			scheduler.schedule(task, 0L);
+		}
+		expired.await();
+	}
+
+	@Benchmark
+	public boolean scheduleAndCancel() {
+		return scheduler.schedule(null, VenueFixtures.HOLD_TIMEOUT).cancel();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(HOLDS)
+	public void expireHolds() throws TicketException {
+		int seats = event.numSeatsAvailable();
+		for (int i = 0; i < HOLDS; i++) {
+			event.findAndHoldSeats(4, VenueFixtures.CUSTOMER_EMAIL);
+		}
+		while (event.numSeatsAvailable() < seats) {
+			Thread.onSpinWait();
+		}
+	}
+
+}
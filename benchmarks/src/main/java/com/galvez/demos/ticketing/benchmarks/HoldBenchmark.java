@@ -0,0 +1,67 @@
+package com.galvez.demos.ticketing.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.galvez.demos.ticketing.SeatHold;
+import com.galvez.demos.ticketing.exceptions.TicketException;
+import com.galvez.demos.ticketing.impl.EventTicketService;
+
+/**
+ * Cost of EventTicketService.findAndHoldSeats by venue size, seat storage and
+ * fill level, with and without recording metrics. Every hold takes seats
+ * away, so each iteration starts from a freshly filled event and measures a
+ * fixed batch of holds that always fits in the seats left.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 50, batchSize = HoldBenchmark.BATCH)
+@Measurement(iterations = 50, batchSize = HoldBenchmark.BATCH)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HoldBenchmark {
+	// 400 seats, the seats left in the smallest venue at 90% are 500
+	static final int BATCH = 100;
+
+	@Param({ "100x50", "1000x100" })
+	public String venue;
+
+	@Param({ "0.0", "0.5", "0.9" })
+	public double fill;
+
+	@Param({ "false", "true" })
+	public boolean compact;
+
+	@Param({ "4" })
+	public int partySize;
+
+	@Param({ "true", "false" })
+	public boolean metrics;
+
+	private EventTicketService event;
+
+	@Setup(Level.Iteration)
+	public void createEvent() throws TicketException {
+		int[] size = VenueFixtures.parseVenue(venue);
+		event = VenueFixtures.createEvent(size[0], size[1], compact, fill, 42L);
+		event.getMetrics().setEnabled(metrics);
+	}
+
+	@Benchmark
+	public SeatHold findAndHoldSeats() throws TicketException {
+		return event.findAndHoldSeats(partySize, VenueFixtures.CUSTOMER_EMAIL);
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.galvez.demos.ticketing.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.galvez.demos.ticketing.SeatHold;
+import com.galvez.demos.ticketing.exceptions.TicketException;
+import com.galvez.demos.ticketing.impl.EventJournal;
+import com.galvez.demos.ticketing.impl.EventTicketService;
+
+/**
+ * Cost of recording purchases in an EventJournal: EventTicketService.reserveSeats
+ * without a journal, with a journal that leaves the records to the page cache
+ * and with a journal that forces every confirmation to disk. A hold can only
+ * be purchased once, so every iteration holds a fresh batch first.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20, batchSize = JournalBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = JournalBenchmark.BATCH)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+	static final int BATCH = 1000;
+
+	@Param({ "none", "nosync", "sync" })
+	public String journal;
+
+	private EventTicketService event;
+	private EventJournal eventJournal;
+	private Path file;
+	private SeatHold[] holds;
+	private int next;
+
+	@Setup(Level.Iteration)
+	public void holdSeats() throws IOException, TicketException {
+		event = VenueFixtures.createEvent(100, 50, true, 0.0, 42L);
+		if (!"none".equals(journal)) {
+			file = Files.createTempFile("ticketing", ".journal");
+			eventJournal = new EventJournal(file, "sync".equals(journal));
+			event.setJournal(eventJournal);
+		}
+		holds = new SeatHold[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			holds[i] = event.findAndHoldSeats(4, VenueFixtures.CUSTOMER_EMAIL);
+		}
+		next = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteJournal() throws IOException {
+		if (eventJournal != null) {
+			eventJournal.close();
+			eventJournal = null;
+			Files.delete(file);
+		}
+	}
+
+	@Benchmark
+	public String reserveSeats() throws TicketException {
+		return event.reserveSeats(holds[next++].getSeatHoldId(), VenueFixtures.CUSTOMER_EMAIL);
+	}
+
+}
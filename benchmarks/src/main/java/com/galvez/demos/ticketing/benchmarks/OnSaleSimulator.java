@@ -0,0 +1,597 @@
+package com.galvez.demos.ticketing.benchmarks;
+
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.galvez.demos.ticketing.SeatAllocation;
+import com.galvez.demos.ticketing.SeatHold;
+import com.galvez.demos.ticketing.Ticket;
+import com.galvez.demos.ticketing.exceptions.TicketException;
+import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
+import com.galvez.demos.ticketing.impl.ConfirmedTickets;
+import com.galvez.demos.ticketing.impl.EventTicketService;
+import com.galvez.demos.ticketing.impl.LatencyHistogram;
+
+/**
+ * On sale rush against an EventTicketService. Customers arrive at random
+ * within a ramp up window and each one runs on its own virtual thread when the
+ * JDK has them (21 and later), or on a pool of platform threads otherwise. A
+ * customer looks at the seat map for a think time, holds seats for its party,
+ * thinks again and either purchases them or walks away and lets the hold
+ * expire. Customers who don't get seats try again a few times before leaving,
+ * and leave at once when the event is sold out.
+ * <p>
+ * Every purchase is written to a ledger of the seats sold. A seat purchased
+ * twice, a seat whose owner in the event isn't the customer who bought it, or
+ * a numSeatsAvailable that doesn't match the ledger once every hold is over
+ * are reported as invariant violations, and the simulator exits with status 1.
+ * <p>
+ * Options are given as name=value, e.g. {@code customers=50000 venue=500x200
+ * parties=1:10,2:45,4:30,6:15 think=300 abandon=0.2}.
+ * <ul>
+ * <li>customers - number of customers, 20000 by default</li>
+ * <li>venue - rows x seats per row, 200x50 by default</li>
+ * <li>compact - true to store the seats in a CompactVenue</li>
+ * <li>allocation - center or best_fit, how the seats of a party are picked
+ * within a row, center by default</li>
+ * <li>maxRowsPerParty - number of adjacent rows a party too large for any row
+ * can be split over, 1 (never split) by default</li>
+ * <li>parties - party sizes and their weights, 1:10,2:40,3:10,4:30,6:10 by
+ * default</li>
+ * <li>think - mean think time in milliseconds, exponentially distributed, 200
+ * by default</li>
+ * <li>abandon - probability of walking away from a hold, 0.1 by default</li>
+ * <li>holdTimeout - time in milliseconds before a hold expires, 2000 by
+ * default</li>
+ * <li>rampUp - window in milliseconds over which customers arrive, 1000 by
+ * default</li>
+ * <li>threads - virtual or platform, virtual by default when the JDK has
+ * them</li>
+ * <li>platformThreads - size of the platform thread pool, 512 by default</li>
+ * <li>warmup - false to skip the rush without think times run first on a
+ * throwaway event, so the JIT has compiled the hold path before it is
+ * measured</li>
+ * </ul>
+ */
+public class OnSaleSimulator {
+	private static final int MAX_ATTEMPTS = 3;
+	// Think times are capped at this many times the mean
+	private static final int MAX_THINK_FACTOR = 10;
+	private static final String EMAIL_DOMAIN = "@onsale.com";
+
+	private final EventTicketService event;
+	private final int rows;
+	private final int seatsPerRow;
+	private final int customers;
+	private int[] partySizes = { 1, 2, 3, 4, 6 };
+	private double[] partyWeights = { 0.1, 0.5, 0.6, 0.9, 1.0 };
+	private long thinkTime = 200L;
+	private double abandonProbability = 0.1;
+	private long rampUp = 1000L;
+	private boolean virtualThreads = true;
+	private int platformThreads = 512;
+
+	/**
+	 * Creates a simulation of customers buying seats of an event
+	 *
+	 * @param event
+	 *            event created by VenueFixtures.createEmptyEvent
+	 * @param rows
+	 *            number of rows of the event
+	 * @param seatsPerRow
+	 *            seats in every row
+	 * @param customers
+	 *            number of customers
+	 */
+	OnSaleSimulator(EventTicketService event, int rows, int seatsPerRow, int customers) {
+		this.event = event;
+		this.rows = rows;
+		this.seatsPerRow = seatsPerRow;
+		this.customers = customers;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int customers = 20000;
+		String venue = "200x50";
+		boolean compact = false;
+		SeatAllocation allocation = SeatAllocation.CENTER;
+		int maxRowsPerParty = 1;
+		long holdTimeout = 2000L;
+		String parties = null;
+		String think = null;
+		String abandon = null;
+		String rampUp = null;
+		String threads = null;
+		String platformThreads = null;
+		boolean warmup = true;
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator < 0) {
+				throw new IllegalArgumentException("Options are given as name=value: " + arg);
+			}
+			String name = arg.substring(0, separator);
+			String value = arg.substring(separator + 1);
+			if (name.equals("customers")) {
+				customers = Integer.parseInt(value);
+			} else if (name.equals("venue")) {
+				venue = value;
+			} else if (name.equals("compact")) {
+				compact = Boolean.parseBoolean(value);
+			} else if (name.equals("allocation")) {
+				allocation = SeatAllocation.valueOf(value.toUpperCase());
+			} else if (name.equals("maxRowsPerParty")) {
+				maxRowsPerParty = Integer.parseInt(value);
+			} else if (name.equals("holdTimeout")) {
+				holdTimeout = Long.parseLong(value);
+			} else if (name.equals("parties")) {
+				parties = value;
+			} else if (name.equals("think")) {
+				think = value;
+			} else if (name.equals("abandon")) {
+				abandon = value;
+			} else if (name.equals("rampUp")) {
+				rampUp = value;
+			} else if (name.equals("threads")) {
+				threads = value;
+			} else if (name.equals("platformThreads")) {
+				platformThreads = value;
+			} else if (name.equals("warmup")) {
+				warmup = Boolean.parseBoolean(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + name);
+			}
+		}
+
+		int[] size = VenueFixtures.parseVenue(venue);
+		if (warmup) {
+			EventTicketService rehearsalEvent = VenueFixtures.createEmptyEvent(size[0], size[1], compact);
+			rehearsalEvent.setSeatAllocation(allocation);
+			rehearsalEvent.setMaxRowsPerParty(maxRowsPerParty);
+			OnSaleSimulator rehearsal = new OnSaleSimulator(rehearsalEvent, size[0], size[1], customers);
+			rehearsal.setThinkTime(0L);
+			rehearsal.setRampUp(0L);
+			rehearsal.setAbandonProbability(0.0);
+			rehearsal.run();
+		}
+		EventTicketService event = VenueFixtures.createEmptyEvent(size[0], size[1], compact);
+		event.setHoldTimeout(holdTimeout);
+		event.setSeatAllocation(allocation);
+		event.setMaxRowsPerParty(maxRowsPerParty);
+		OnSaleSimulator simulator = new OnSaleSimulator(event, size[0], size[1], customers);
+		if (parties != null) {
+			simulator.setPartySizes(parties);
+		}
+		if (think != null) {
+			simulator.setThinkTime(Long.parseLong(think));
+		}
+		if (abandon != null) {
+			simulator.setAbandonProbability(Double.parseDouble(abandon));
+		}
+		if (rampUp != null) {
+			simulator.setRampUp(Long.parseLong(rampUp));
+		}
+		if (threads != null) {
+			simulator.setVirtualThreads(threads.equals("virtual"));
+		}
+		if (platformThreads != null) {
+			simulator.setPlatformThreads(Integer.parseInt(platformThreads));
+		}
+
+		Report report = simulator.run();
+		report.print(System.out);
+		if (report.getViolations() > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Sets the sizes of the parties and how often each one shows up
+	 *
+	 * @param partySizes
+	 *            comma separated size:weight pairs, e.g. 1:10,2:40,4:50
+	 */
+	void setPartySizes(String partySizes) {
+		String[] entries = partySizes.split(",");
+		int[] sizes = new int[entries.length];
+		double[] weights = new double[entries.length];
+		double total = 0.0;
+		for (int i = 0; i < entries.length; i++) {
+			String[] entry = entries[i].split(":");
+			sizes[i] = Integer.parseInt(entry[0].trim());
+			double weight = entry.length > 1 ? Double.parseDouble(entry[1].trim()) : 1.0;
+			if (sizes[i] <= 0 || weight < 0.0) {
+				throw new IllegalArgumentException("Invalid party size " + entries[i]);
+			}
+			total += weight;
+			weights[i] = total;
+		}
+		if (total <= 0.0) {
+			throw new IllegalArgumentException("The party sizes need a positive weight");
+		}
+		// Cumulative weights from 0 to 1
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] /= total;
+		}
+		this.partySizes = sizes;
+		this.partyWeights = weights;
+	}
+
+	/**
+	 * Sets the mean time a customer spends before holding seats and before
+	 * purchasing them
+	 *
+	 * @param thinkTime
+	 *            mean think time in milliseconds
+	 */
+	void setThinkTime(long thinkTime) {
+		this.thinkTime = thinkTime;
+	}
+
+	/**
+	 * Sets the probability of a customer walking away from a hold
+	 *
+	 * @param abandonProbability
+	 *            probability from 0 to 1
+	 */
+	void setAbandonProbability(double abandonProbability) {
+		this.abandonProbability = abandonProbability;
+	}
+
+	/**
+	 * Sets the window over which customers arrive
+	 *
+	 * @param rampUp
+	 *            time in milliseconds
+	 */
+	void setRampUp(long rampUp) {
+		this.rampUp = rampUp;
+	}
+
+	/**
+	 * Sets whether customers run on virtual threads when the JDK has them
+	 *
+	 * @param virtualThreads
+	 *            false to always use the platform thread pool
+	 */
+	void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Sets the size of the pool running the customers without virtual threads
+	 *
+	 * @param platformThreads
+	 *            number of platform threads
+	 */
+	void setPlatformThreads(int platformThreads) {
+		this.platformThreads = platformThreads;
+	}
+
+	/**
+	 * Runs the rush, waits for every hold to end and checks the invariants
+	 *
+	 * @return the report of the run
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the customers
+	 */
+	Report run() throws InterruptedException {
+		final Report report = new Report(rows * seatsPerRow);
+		final CountDownLatch customersLeft = new CountDownLatch(customers);
+		final ExecutorService executor = newCustomerExecutor(report);
+		ScheduledExecutorService arrivals = Executors.newSingleThreadScheduledExecutor();
+		report.start = System.nanoTime();
+		try {
+			for (int i = 0; i < customers; i++) {
+				final Customer customer = new Customer(i, report, customersLeft);
+				// Arrivals don't take a thread until the customer shows up
+				arrivals.schedule(new Runnable() {
+					public void run() {
+						executor.execute(customer);
+					}
+				}, ThreadLocalRandom.current().nextLong(rampUp + 1), TimeUnit.MILLISECONDS);
+			}
+			customersLeft.await();
+			report.elapsed = System.nanoTime() - report.start;
+		} finally {
+			arrivals.shutdownNow();
+			executor.shutdownNow();
+		}
+
+		// Abandoned holds give their seats back when they expire
+		long deadline = System.currentTimeMillis() + event.getHoldTimeout() + TimeUnit.SECONDS.toMillis(5);
+		while (event.getMetrics().getOpenHolds() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		report.check(event, seatsPerRow);
+		return report;
+	}
+
+	// One thread per customer if the JDK has virtual threads, a fixed pool otherwise
+	private ExecutorService newCustomerExecutor(Report report) {
+		if (virtualThreads) {
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				report.threads = "virtual";
+				return (ExecutorService) factory.invoke(null);
+			} catch (NoSuchMethodException e) {
+				// Before JDK 21
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Virtual threads could not be created", e);
+			}
+		}
+		report.threads = platformThreads + " platform";
+		return Executors.newFixedThreadPool(platformThreads);
+	}
+
+	private int pickPartySize(ThreadLocalRandom random) {
+		double value = random.nextDouble();
+		for (int i = 0; i < partyWeights.length; i++) {
+			if (value < partyWeights[i]) {
+				return partySizes[i];
+			}
+		}
+		return partySizes[partySizes.length - 1];
+	}
+
+	// Exponentially distributed around the mean think time
+	private long pickThinkTime(ThreadLocalRandom random) {
+		if (thinkTime <= 0L) {
+			return 0L;
+		}
+		double time = -thinkTime * Math.log(1.0 - random.nextDouble());
+		return Math.min((long) time, thinkTime * MAX_THINK_FACTOR);
+	}
+
+	/**
+	 * A customer trying to buy seats for a party
+	 */
+	private class Customer implements Runnable {
+		private final String email;
+		private final Report report;
+		private final CountDownLatch customersLeft;
+
+		Customer(int id, Report report, CountDownLatch customersLeft) {
+			this.email = "customer" + id + EMAIL_DOMAIN;
+			this.report = report;
+			this.customersLeft = customersLeft;
+		}
+
+		public void run() {
+			try {
+				shop();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				report.error(e);
+			} finally {
+				customersLeft.countDown();
+			}
+		}
+
+		private void shop() throws InterruptedException {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int partySize = pickPartySize(random);
+			for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+				if (report.isSoldOut()) {
+					report.turnedAway.increment();
+					return;
+				}
+				Thread.sleep(pickThinkTime(random));
+				SeatHold hold = hold(partySize);
+				if (hold == null) {
+					continue;
+				}
+				Thread.sleep(pickThinkTime(random));
+				if (random.nextDouble() < abandonProbability) {
+					report.abandoned.increment();
+					return;
+				}
+				if (purchase(hold)) {
+					return;
+				}
+			}
+			report.gaveUp.increment();
+		}
+
+		// The hold, null if there were no seats for the party
+		private SeatHold hold(int partySize) {
+			long start = System.nanoTime();
+			try {
+				SeatHold hold = event.findAndHoldSeats(partySize, email);
+				report.holdLatency.record(System.nanoTime() - start);
+				report.holds.increment();
+				return hold;
+			} catch (TicketUnavailableException e) {
+				report.holdLatency.record(System.nanoTime() - start);
+				report.holdFailures.increment();
+				return null;
+			}
+		}
+
+		// Whether the seats were purchased, they aren't if the hold expired
+		private boolean purchase(SeatHold hold) {
+			long start = System.nanoTime();
+			String confirmationCode;
+			try {
+				confirmationCode = event.reserveSeats(hold.getSeatHoldId(), email);
+				report.purchaseLatency.record(System.nanoTime() - start);
+			} catch (TicketException e) {
+				report.purchaseLatency.record(System.nanoTime() - start);
+				report.purchaseFailures.increment();
+				return false;
+			}
+			report.purchases.increment();
+			report.sold(hold, confirmationCode, seatsPerRow);
+			return true;
+		}
+	}
+
+	/**
+	 * Outcome of a simulation. Counters are updated by the customers while the
+	 * rush runs, the invariants are checked once it is over.
+	 */
+	static class Report {
+		private final int capacity;
+		// Confirmation code of every seat sold, by position in the venue
+		private final AtomicReferenceArray<String> ledger;
+		// Times every seat was purchased
+		private final AtomicIntegerArray purchaseCounts;
+		private final AtomicLong seatsSold = new AtomicLong();
+		private final AtomicLong soldOutTime = new AtomicLong(-1L);
+		private final AtomicReference<RuntimeException> firstError = new AtomicReference<RuntimeException>();
+		final LatencyHistogram holdLatency = new LatencyHistogram();
+		final LatencyHistogram purchaseLatency = new LatencyHistogram();
+		final LongAdder holds = new LongAdder();
+		final LongAdder holdFailures = new LongAdder();
+		final LongAdder purchases = new LongAdder();
+		final LongAdder purchaseFailures = new LongAdder();
+		final LongAdder abandoned = new LongAdder();
+		final LongAdder gaveUp = new LongAdder();
+		final LongAdder turnedAway = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private String threads;
+		private long start;
+		private long elapsed;
+		// Filled in by check
+		private int doubleSold;
+		private int wrongOwners;
+		private int seatsAvailable;
+		private int seatsLeft;
+		private int openHolds;
+		private int freeRuns;
+		private int singleSeats;
+		private int longestRuns;
+		private int medianParty;
+		private double strandedSeats;
+
+		Report(int capacity) {
+			this.capacity = capacity;
+			ledger = new AtomicReferenceArray<String>(capacity);
+			purchaseCounts = new AtomicIntegerArray(capacity);
+		}
+
+		boolean isSoldOut() {
+			return seatsSold.get() >= capacity;
+		}
+
+		void error(RuntimeException e) {
+			errors.increment();
+			firstError.compareAndSet(null, e);
+		}
+
+		// Writes the seats of a purchase to the ledger
+		void sold(SeatHold hold, String confirmationCode, int seatsPerRow) {
+			for (Ticket ticket : hold.getTickets()) {
+				int seat = VenueFixtures.rowIndex(ticket.getSeatRow()) * seatsPerRow + ticket.getSeatNumber() - 1;
+				purchaseCounts.getAndIncrement(seat);
+				ledger.set(seat, confirmationCode);
+			}
+			if (seatsSold.addAndGet(hold.getTickets().size()) >= capacity) {
+				soldOutTime.compareAndSet(-1L, System.nanoTime() - start);
+			}
+		}
+
+		// Compares the ledger with the event once every hold is over
+		void check(EventTicketService event, int seatsPerRow) {
+			openHolds = event.getMetrics().getOpenHolds();
+			seatsAvailable = event.numSeatsAvailable();
+			medianParty = event.getMetrics().getMedianPartySize();
+			strandedSeats = event.getFragmentation();
+			int row = -1;
+			int run = 0;
+			int longest = 0;
+			for (int seat = 0; seat < capacity; seat++) {
+				if (seat % seatsPerRow == 0) {
+					row++;
+					longestRuns += longest;
+					run = 0;
+					longest = 0;
+				}
+				int count = purchaseCounts.get(seat);
+				if (count > 1) {
+					doubleSold++;
+				}
+				if (count > 0) {
+					ConfirmedTickets owner = event.getSeatOwner(VenueFixtures.rowId(row), seat % seatsPerRow + 1);
+					if (owner == null || !owner.getConfirmationCode().equals(ledger.get(seat))) {
+						wrongOwners++;
+					}
+					run = 0;
+					continue;
+				}
+				seatsLeft++;
+				run++;
+				longest = Math.max(longest, run);
+				boolean endOfRun = seat % seatsPerRow == seatsPerRow - 1 || purchaseCounts.get(seat + 1) > 0;
+				if (endOfRun) {
+					freeRuns++;
+					if (run == 1) {
+						singleSeats++;
+					}
+				}
+			}
+			longestRuns += longest;
+		}
+
+		/**
+		 * Returns the number of invariant violations found
+		 *
+		 * @return seats sold twice, seats with the wrong owner, drift of the seats
+		 *         available, holds that never ended and customers that failed
+		 */
+		long getViolations() {
+			return doubleSold + wrongOwners + Math.abs(seatsAvailable - seatsLeft) + openHolds + errors.sum();
+		}
+
+		void print(PrintStream out) {
+			double seconds = elapsed / 1e9;
+			LatencyHistogram.Snapshot holdTimes = holdLatency.snapshot();
+			LatencyHistogram.Snapshot purchaseTimes = purchaseLatency.snapshot();
+			out.printf("Threads: %s%n", threads);
+			out.printf("Rush: %.2f s, %d of %d seats sold (%.1f%%)%n", seconds, seatsSold.get(), capacity,
+					100.0 * seatsSold.get() / capacity);
+			if (soldOutTime.get() >= 0L) {
+				out.printf("Sold out after %.2f s%n", soldOutTime.get() / 1e9);
+			} else {
+				out.println("Not sold out");
+			}
+			out.printf("Holds: %d, %d failed, %.0f/s%n", holds.sum(), holdFailures.sum(),
+					(holds.sum() + holdFailures.sum()) / seconds);
+			out.printf("Purchases: %d, %d failed, %.0f/s%n", purchases.sum(), purchaseFailures.sum(),
+					(purchases.sum() + purchaseFailures.sum()) / seconds);
+			out.printf("Customers: %d abandoned a hold, %d gave up, %d turned away sold out%n", abandoned.sum(),
+					gaveUp.sum(), turnedAway.sum());
+			printLatency(out, "Hold latency", holdTimes);
+			printLatency(out, "Purchase latency", purchaseTimes);
+			int available = seatsLeft;
+			out.printf("Seats left: %d in %d runs, %d single seats, fragmentation %.3f%n", available, freeRuns,
+					singleSeats, available == 0 ? 0.0 : 1.0 - (double) longestRuns / available);
+			out.printf("Seats in gaps shorter than the median party of %d: %.1f%%%n", medianParty,
+					100.0 * strandedSeats);
+			out.printf("Violations: %d seats sold twice, %d with the wrong owner, numSeatsAvailable %d "
+					+ "for %d seats left, %d holds still open, %d errors%n", doubleSold, wrongOwners, seatsAvailable,
+					seatsLeft, openHolds, errors.sum());
+			if (firstError.get() != null) {
+				firstError.get().printStackTrace(out);
+			}
+		}
+
+		private static void printLatency(PrintStream out, String name, LatencyHistogram.Snapshot latency) {
+			out.printf("%s (us): mean %.1f, p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n", name,
+					latency.getMean() / 1e3, latency.getPercentile(0.5) / 1e3, latency.getPercentile(0.99) / 1e3,
+					latency.getPercentile(0.999) / 1e3, latency.getMax() / 1e3);
+		}
+	}
+
+}
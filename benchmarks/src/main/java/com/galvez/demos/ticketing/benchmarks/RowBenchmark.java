@@ -0,0 +1,82 @@
+package com.galvez.demos.ticketing.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.galvez.demos.ticketing.Ticket;
+import com.galvez.demos.ticketing.TicketStatus;
+import com.galvez.demos.ticketing.exceptions.TicketException;
+import com.galvez.demos.ticketing.impl.TicketImpl;
+import com.galvez.demos.ticketing.impl.TicketRow;
+
+/**
+ * Cost of TicketRow.getMaxContiguousTickets on a row where a random part of
+ * the seats is reserved, alone and right after a seat changes status.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RowBenchmark {
+
+	@Param({ "50", "500", "5000" })
+	public int seats;
+
+	@Param({ "0.5" })
+	public double fill;
+
+	private TicketRow row;
+	private Ticket[] tickets;
+	private int next;
+
+	@Setup
+	public void createRow() throws TicketException {
+		row = new TicketRow("A");
+		tickets = new Ticket[seats];
+		Random random = new Random(42L);
+		for (int i = 0; i < seats; i++) {
+			tickets[i] = new TicketImpl("A", i + 1, VenueFixtures.SEAT_PRICE);
+			row.addSeat(tickets[i]);
+		}
+		for (Ticket ticket : tickets) {
+			if (random.nextDouble() < fill) {
+				ticket.reserveTicket();
+				row.notifyStatusChange(ticket);
+			}
+		}
+	}
+
+	@Benchmark
+	public int getMaxContiguousTickets() {
+		return row.getMaxContiguousTickets();
+	}
+
+	@Benchmark
+	public int toggleSeatAndGetMaxContiguousTickets() throws TicketException {
+		// Flips seats in turn, so the fill level stays the same
+		Ticket ticket = tickets[next];
+		next = (next + 1) % tickets.length;
+		if (ticket.getStatus() == TicketStatus.AVAILABLE) {
+			ticket.reserveTicket();
+		} else {
+			ticket.releaseTicket();
+		}
+		row.notifyStatusChange(ticket);
+		return row.getMaxContiguousTickets();
+	}
+
+}
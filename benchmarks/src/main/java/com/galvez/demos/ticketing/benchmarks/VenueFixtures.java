@@ -0,0 +1,148 @@
+package com.galvez.demos.ticketing.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.galvez.demos.ticketing.EventType;
+import com.galvez.demos.ticketing.SeatHold;
+import com.galvez.demos.ticketing.Ticket;
+import com.galvez.demos.ticketing.exceptions.TicketException;
+import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
+import com.galvez.demos.ticketing.impl.CompactVenue;
+import com.galvez.demos.ticketing.impl.EventTicketService;
+import com.galvez.demos.ticketing.impl.TicketImpl;
+
+/**
+ * Events used by the benchmarks. Every fixture is built from a fixed seed, so
+ * two runs measure the same seat map.
+ */
+final class VenueFixtures {
+	static final String CUSTOMER_EMAIL = "bench@company.com";
+	static final double SEAT_PRICE = 50.0;
+	// Long enough for no hold to expire while it is measured
+	static final long HOLD_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+	private static final String ROW_PREFIX = "R";
+
+	private VenueFixtures() {
+	}
+
+	/**
+	 * Creates an event and sells part of it. Seats are sold to parties of 1 to 8
+	 * customers placed by the event itself, so the seats left are the gaps its
+	 * own allocation leaves behind. At least one seat is always sold.
+	 *
+	 * @param rows
+	 *            number of rows
+	 * @param seatsPerRow
+	 *            seats in every row
+	 * @param compact
+	 *            true to store the seats in a CompactVenue, false for a
+	 *            TicketImpl per seat
+	 * @param fill
+	 *            fraction of the seats sold, from 0 to 1
+	 * @param seed
+	 *            seed of the party sizes
+	 * @return the event
+	 * @throws TicketException
+	 *             if the event can't be filled
+	 */
+	static EventTicketService createEvent(int rows, int seatsPerRow, boolean compact, double fill, long seed)
+			throws TicketException {
+		EventTicketService event = createEmptyEvent(rows, seatsPerRow, compact);
+		event.setHoldTimeout(HOLD_TIMEOUT);
+
+		// The first hold builds the row index, sell one seat so it isn't measured
+		SeatHold first = event.findAndHoldSeats(1, CUSTOMER_EMAIL);
+		event.reserveSeats(first.getSeatHoldId(), CUSTOMER_EMAIL);
+
+		Random random = new Random(seed);
+		int target = (int) ((1.0 - fill) * rows * seatsPerRow);
+		while (event.numSeatsAvailable() > target) {
+			int partySize = Math.min(1 + random.nextInt(8), event.numSeatsAvailable() - target);
+			SeatHold hold;
+			try {
+				hold = event.findAndHoldSeats(partySize, CUSTOMER_EMAIL);
+			} catch (TicketUnavailableException e) {
+				// No row has room for the party any more, fill the gaps one seat at a time
+				hold = event.findAndHoldSeats(1, CUSTOMER_EMAIL);
+			}
+			event.reserveSeats(hold.getSeatHoldId(), CUSTOMER_EMAIL);
+		}
+		return event;
+	}
+
+	/**
+	 * Creates an event with every seat available. Rows are named R0, R1... and
+	 * seats are numbered from 1.
+	 *
+	 * @param rows
+	 *            number of rows
+	 * @param seatsPerRow
+	 *            seats in every row
+	 * @param compact
+	 *            true to store the seats in a CompactVenue, false for a
+	 *            TicketImpl per seat
+	 * @return the event
+	 */
+	static EventTicketService createEmptyEvent(int rows, int seatsPerRow, boolean compact) {
+		String[] rowIds = new String[rows];
+		for (int i = 0; i < rows; i++) {
+			rowIds[i] = rowId(i);
+		}
+
+		EventTicketService event;
+		String eventName = "Benchmark " + rows + "x" + seatsPerRow;
+		if (compact) {
+			event = new EventTicketService(eventName, Calendar.getInstance().getTime(), EventType.STAGE,
+					new CompactVenue(rowIds, seatsPerRow, SEAT_PRICE));
+		} else {
+			List<Ticket> tickets = new ArrayList<Ticket>(rows * seatsPerRow);
+			for (String rowId : rowIds) {
+				for (int seat = 1; seat <= seatsPerRow; seat++) {
+					tickets.add(new TicketImpl(rowId, seat, SEAT_PRICE));
+				}
+			}
+			event = new EventTicketService(eventName, Calendar.getInstance().getTime(), EventType.STAGE, tickets);
+		}
+		return event;
+	}
+
+	/**
+	 * Returns the id of a row created by the fixtures
+	 *
+	 * @param row
+	 *            position of the row, from 0
+	 * @return the id of the row
+	 */
+	static String rowId(int row) {
+		return ROW_PREFIX + row;
+	}
+
+	/**
+	 * Returns the position of a row created by the fixtures
+	 *
+	 * @param rowId
+	 *            id of the row, e.g. R12
+	 * @return the position of the row, from 0
+	 */
+	static int rowIndex(String rowId) {
+		return Integer.parseInt(rowId.substring(ROW_PREFIX.length()));
+	}
+
+	/**
+	 * Parses a venue size written as rows x seats per row, e.g. "100x50"
+	 *
+	 * @param venue
+	 *            the venue size
+	 * @return rows and seats per row
+	 */
+	static int[] parseVenue(String venue) {
+		int separator = venue.indexOf('x');
+		return new int[] { Integer.parseInt(venue.substring(0, separator)),
+				Integer.parseInt(venue.substring(separator + 1)) };
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.galvez.demos.ticketing;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.galvez.demos.ticketing.exceptions.TicketServiceBusyException;
+
+/**
+ * Non blocking variant of TicketService. Every call returns at once with a
+ * future, and failures are delivered through the future instead of thrown. A
+ * service that can't take more requests right now fails them with a
+ * {@link TicketServiceBusyException} rather than making the caller wait, so
+ * the caller decides whether to retry, shed the request or slow down.
+ * <p>
+ * Futures may be completed by a thread of the service. Dependent stages that
+ * do more than a little work should be run on an executor of the caller
+ * (thenApplyAsync and the like) so they don't delay the service.
+ */
+public interface AsyncTicketService {
+
+	/**
+	 * The number of seats in the venue that are neither held nor reserved
+	 *
+	 * @return future completed with the number of tickets available in the
+	 *         venue
+	 */
+	CompletableFuture<Integer> numSeatsAvailableAsync();
+
+	/**
+	 * Find and hold the best available seats for a customer
+	 *
+	 * @param numSeats
+	 *            the number of seats to find and hold
+	 * @param customerEmail
+	 *            unique identifier for the customer
+	 * @return future completed with the SeatHold, or with a
+	 *         TicketUnavailableException if there are not enough tickets
+	 *         available for the request
+	 */
+	CompletableFuture<SeatHold> findAndHoldSeatsAsync(int numSeats, String customerEmail);
+
+	/**
+	 * Find and hold the best available seats for many customers in one pass.
+	 * Requests are served in order, so earlier requests get better seats.
+	 *
+	 * @param requests
+	 *            the number of seats and customer of every request
+	 * @return future completed with the result of every request, in the same
+	 *         order as the requests
+	 */
+	CompletableFuture<List<HoldResult>> findAndHoldSeatsAsync(List<HoldRequest> requests);
+
+	/**
+	 * Commit seats held for a specific customer
+	 *
+	 * @param seatHoldId
+	 *            the seat hold identifier
+	 * @param customerEmail
+	 *            the email address of the customer to which the seat hold is
+	 *            assigned
+	 * @return future completed with a reservation confirmation code, or with a
+	 *         TicketException if there was a problem with the reservation
+	 */
+	CompletableFuture<String> reserveSeatsAsync(long seatHoldId, String customerEmail);
+}
@@ -18,4 +18,21 @@ public interface Event extends TicketService {
 
 	public EventType getEventType();
 
+	/**
+	 * Returns an immutable view of the seats of the event. It is read without
+	 * locks and shares the rows that didn't change with the previous view.
+	 * 
+	 * @return the latest seat map
+	 */
+	public SeatMap getSeatMap();
+
+	/**
+	 * Returns the version of the seat map, it grows every time a seat is held or
+	 * released. Comparing it with the version of a seat map tells whether
+	 * anything changed since the map was taken.
+	 * 
+	 * @return the current version
+	 */
+	public long getSeatMapVersion();
+
 }
@@ -0,0 +1,34 @@
+package com.galvez.demos.ticketing;
+
+/**
+ * Request to find and hold seats for a customer, used to hold seats for many
+ * customers at once
+ */
+public class HoldRequest {
+
+	private int numSeats;
+
+	private String customerEmail;
+
+	/**
+	 * Creates a new request
+	 * 
+	 * @param numSeats
+	 *            the number of seats to find and hold
+	 * @param customerEmail
+	 *            unique identifier for the customer
+	 */
+	public HoldRequest(int numSeats, String customerEmail) {
+		this.numSeats = numSeats;
+		this.customerEmail = customerEmail;
+	}
+
+	public int getNumSeats() {
+		return numSeats;
+	}
+
+	public String getCustomerEmail() {
+		return customerEmail;
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.galvez.demos.ticketing;
+
+import com.galvez.demos.ticketing.exceptions.TicketException;
+
+/**
+ * Outcome of a {@link HoldRequest}: either the SeatHold or the reason why the
+ * seats couldn't be held
+ */
+public class HoldResult {
+
+	private SeatHold seatHold;
+
+	private TicketException failure;
+
+	private HoldResult(SeatHold seatHold, TicketException failure) {
+		this.seatHold = seatHold;
+		this.failure = failure;
+	}
+
+	public static HoldResult held(SeatHold seatHold) {
+		return new HoldResult(seatHold, null);
+	}
+
+	public static HoldResult failed(TicketException failure) {
+		return new HoldResult(null, failure);
+	}
+
+	public boolean isHeld() {
+		return seatHold != null;
+	}
+
+	/**
+	 * Returns the seats held for the request
+	 * 
+	 * @return the SeatHold, null if the request failed
+	 */
+	public SeatHold getSeatHold() {
+		return seatHold;
+	}
+
+	/**
+	 * Returns why the request failed
+	 * 
+	 * @return the exception, null if the seats were held
+	 */
+	public TicketException getFailure() {
+		return failure;
+	}
+
+}
@@ -0,0 +1,17 @@
+package com.galvez.demos.ticketing;
+
+/**
+ * How the seats of a party are picked within the best row that can seat it
+ */
+public enum SeatAllocation {
+	/**
+	 * The block of seats closest to the middle of the row, wherever it is
+	 */
+	CENTER,
+	/**
+	 * A block from the smallest gap of free seats the party fits in, as close
+	 * to the middle of the row as that gap allows, so the larger gaps are kept
+	 * for larger parties
+	 */
+	BEST_FIT
+}
@@ -0,0 +1,120 @@
+package com.galvez.demos.ticketing;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Batch of seat availability changes of an event, as delivered by its change
+ * feed. Batches are numbered in sequence. A reset batch carries the whole seat
+ * map instead of the changes, it is sent to new subscribers and to
+ * subscribers that fell too far behind to be sent the batches they missed.
+ */
+public final class SeatChanges {
+
+	private final long sequence;
+
+	private final List<SeatChange> changes;
+
+	private final SeatMap seatMap;
+
+	private SeatChanges(long sequence, List<SeatChange> changes, SeatMap seatMap) {
+		this.sequence = sequence;
+		this.changes = changes;
+		this.seatMap = seatMap;
+	}
+
+	/**
+	 * Creates a batch of changes
+	 *
+	 * @param sequence
+	 *            number of the batch
+	 * @param changes
+	 *            net change of every seat that changed since the previous batch
+	 * @return the batch
+	 */
+	public static SeatChanges changes(long sequence, List<SeatChange> changes) {
+		return new SeatChanges(sequence, Collections.unmodifiableList(changes), null);
+	}
+
+	/**
+	 * Creates a reset batch
+	 *
+	 * @param sequence
+	 *            number of the last batch the seat map includes
+	 * @param seatMap
+	 *            seats of the event after that batch
+	 * @return the batch
+	 */
+	public static SeatChanges reset(long sequence, SeatMap seatMap) {
+		return new SeatChanges(sequence, Collections.<SeatChange> emptyList(), seatMap);
+	}
+
+	/**
+	 * Returns the number of the batch, the one to resume from after it
+	 *
+	 * @return the sequence number
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns whether the batch replaces everything the subscriber knows
+	 *
+	 * @return true if the batch carries the whole seat map
+	 */
+	public boolean isReset() {
+		return seatMap != null;
+	}
+
+	/**
+	 * Returns the seat map of a reset batch
+	 *
+	 * @return the seat map, null if the batch carries changes
+	 */
+	public SeatMap getSeatMap() {
+		return seatMap;
+	}
+
+	/**
+	 * Returns the seats that changed, a seat that flipped several times since
+	 * the previous batch appears once with its last availability and a seat that
+	 * ended up as it was doesn't appear
+	 *
+	 * @return unmodifiable list of changes, empty for a reset batch
+	 */
+	public List<SeatChange> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * New availability of a seat
+	 */
+	public static final class SeatChange {
+
+		private final String rowId;
+
+		private final int seatNumber;
+
+		private final boolean available;
+
+		public SeatChange(String rowId, int seatNumber, boolean available) {
+			this.rowId = rowId;
+			this.seatNumber = seatNumber;
+			this.available = available;
+		}
+
+		public String getRowId() {
+			return rowId;
+		}
+
+		public int getSeatNumber() {
+			return seatNumber;
+		}
+
+		public boolean isAvailable() {
+			return available;
+		}
+	}
+
+}
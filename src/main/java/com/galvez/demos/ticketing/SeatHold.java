@@ -38,12 +38,12 @@ public interface SeatHold {
 	public double getTotalPrice();
 
 	/**
-	 * Returns the unique identifier for this seat hold (Note: a String would be a
-	 * better unique option here, something to enhance in the future)
+	 * Returns the unique identifier for this seat hold. Ids are 64 bit and never
+	 * reused within an event.
 	 * 
 	 * @return id with the unique identifier for this hold
 	 */
-	public int getSeatHoldId();
+	public long getSeatHoldId();
 
 	/**
 	 * Notifies a listener when a ticket changes from reserved back to available
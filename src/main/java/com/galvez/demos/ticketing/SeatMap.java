@@ -0,0 +1,216 @@
+package com.galvez.demos.ticketing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable view of the seats of an event at some version. Every row is an
+ * immutable {@link Row} replaced as a whole when its seats change, so two
+ * versions of the map share the rows that didn't change between them and the
+ * rows to render again are the ones that are not the same object.
+ */
+public final class SeatMap {
+
+	private final long version;
+
+	private final List<Row> rows;
+
+	private final int seatsAvailable;
+
+	/**
+	 * Creates a seat map
+	 *
+	 * @param version
+	 *            version of the event the map has every change of
+	 * @param rows
+	 *            rows sorted by row id
+	 */
+	public SeatMap(long version, Row[] rows) {
+		this.version = version;
+		this.rows = Collections.unmodifiableList(Arrays.asList(rows.clone()));
+		int available = 0;
+		for (Row row : rows) {
+			available += row.getAvailableSeats();
+		}
+		this.seatsAvailable = available;
+	}
+
+	/**
+	 * Returns the version of the map. The map has every change up to this
+	 * version and may have some later ones, so a newer version always means
+	 * something to render again.
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the rows sorted by row id
+	 *
+	 * @return unmodifiable list of rows
+	 */
+	public List<Row> getRows() {
+		return rows;
+	}
+
+	/**
+	 * Looks up a row by id
+	 *
+	 * @param rowId
+	 *            id of the row
+	 * @return the row, null if the map has no such row
+	 */
+	public Row getRow(String rowId) {
+		int low = 0;
+		int high = rows.size() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = rows.get(middle).getRowId().compareTo(rowId);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return rows.get(middle);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the seats available in the map
+	 *
+	 * @return number of available seats
+	 */
+	public int getSeatsAvailable() {
+		return seatsAvailable;
+	}
+
+	/**
+	 * Returns the rows that changed since a previous map of the same event
+	 *
+	 * @param previous
+	 *            map to compare with, null for none
+	 * @return the rows of this map that are not in the previous one
+	 */
+	public List<Row> getRowsChangedSince(SeatMap previous) {
+		if (previous == null) {
+			return rows;
+		}
+		List<Row> changed = new ArrayList<Row>();
+		for (Row row : rows) {
+			if (previous.getRow(row.getRowId()) != row) {
+				changed.add(row);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Immutable view of the seats of a row
+	 */
+	public static final class Row {
+		private static final int WORD_BITS = 64;
+
+		private final String rowId;
+
+		// Shared by every version of the row
+		private final int[] seatNumbers;
+
+		// A bit is set when the seat in that position is available
+		private final long[] available;
+
+		private final int availableSeats;
+
+		private final long version;
+
+		/**
+		 * Creates a row. The arrays are kept, not copied, so they must not be
+		 * changed afterwards.
+		 *
+		 * @param rowId
+		 *            id of the row
+		 * @param seatNumbers
+		 *            seat numbers in ascending order
+		 * @param available
+		 *            bitset of the available seats, by position
+		 * @param version
+		 *            number of changes of the row
+		 */
+		public Row(String rowId, int[] seatNumbers, long[] available, long version) {
+			this.rowId = rowId;
+			this.seatNumbers = seatNumbers;
+			this.available = available;
+			this.version = version;
+			int count = 0;
+			for (long word : available) {
+				count += Long.bitCount(word);
+			}
+			this.availableSeats = count;
+		}
+
+		public String getRowId() {
+			return rowId;
+		}
+
+		public int getSeatCount() {
+			return seatNumbers.length;
+		}
+
+		/**
+		 * Returns the number of a seat
+		 *
+		 * @param position
+		 *            position of the seat in the row, from 0
+		 * @return the seat number
+		 */
+		public int getSeatNumber(int position) {
+			return seatNumbers[position];
+		}
+
+		/**
+		 * Returns whether the seat in a position is available
+		 *
+		 * @param position
+		 *            position of the seat in the row, from 0
+		 * @return true if the seat is neither held nor sold
+		 */
+		public boolean isAvailable(int position) {
+			if (position < 0 || position >= seatNumbers.length) {
+				throw new IndexOutOfBoundsException("No seat in position " + position);
+			}
+			return (available[position / WORD_BITS] & (1L << position)) != 0;
+		}
+
+		/**
+		 * Returns whether a seat is available
+		 *
+		 * @param seatNumber
+		 *            number of the seat
+		 * @return true if the row has the seat and it is neither held nor sold
+		 */
+		public boolean isSeatAvailable(int seatNumber) {
+			int position = Arrays.binarySearch(seatNumbers, seatNumber);
+			return position >= 0 && isAvailable(position);
+		}
+
+		public int getAvailableSeats() {
+			return availableSeats;
+		}
+
+		/**
+		 * Returns the number of changes of the row, it grows every time a seat of
+		 * the row is held or released
+		 *
+		 * @return the version of the row
+		 */
+		public long getVersion() {
+			return version;
+		}
+	}
+
+}
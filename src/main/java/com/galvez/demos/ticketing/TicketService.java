@@ -1,5 +1,7 @@
 package com.galvez.demos.ticketing;
 
+import java.util.List;
+
 import com.galvez.demos.ticketing.exceptions.TicketException;
 import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
 
@@ -25,6 +27,16 @@ public interface TicketService {
 	 */
 	SeatHold findAndHoldSeats(int numSeats, String customerEmail) throws TicketUnavailableException;
 
+	/**
+	 * Find and hold the best available seats for many customers in one pass.
+	 * Requests are served in order, so earlier requests get better seats.
+	 *
+	 * @param requests
+	 *            the number of seats and customer of every request
+	 * @return the result of every request, in the same order as the requests
+	 */
+	List<HoldResult> findAndHoldSeats(List<HoldRequest> requests);
+
 	/**
 	 * Commit seats held for a specific customer
 	 *
@@ -37,5 +49,5 @@ public interface TicketService {
 	 * @throws TicketException
 	 *             if there was a problem with the reservation
 	 */
-	String reserveSeats(int seatHoldId, String customerEmail) throws TicketException;
+	String reserveSeats(long seatHoldId, String customerEmail) throws TicketException;
 }
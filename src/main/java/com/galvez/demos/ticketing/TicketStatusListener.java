@@ -1,5 +1,14 @@
 package com.galvez.demos.ticketing;
 
+/**
+ * Listener of the status changes of the tickets of an event. It is called on
+ * the thread changing the ticket, and the seats of an expired hold are given
+ * back on the expiration thread shared by every event of the JVM (or on the
+ * command loop of the event): a slow listener delays the expiration of the
+ * holds of all those events. Listeners must return quickly, consumers that
+ * may be slow should subscribe to the change feed of the event instead, which
+ * never makes the sale or the expirations wait.
+ */
 public interface TicketStatusListener {
 
 	/**
@@ -6,6 +6,10 @@ public class TicketException extends Exception {
 		super(message);
 	}
 
+	public TicketException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
 	private static final long serialVersionUID = -895868505829037658L;
 
 }
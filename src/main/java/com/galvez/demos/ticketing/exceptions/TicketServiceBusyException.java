@@ -0,0 +1,15 @@
+package com.galvez.demos.ticketing.exceptions;
+
+/**
+ * Thrown when a ticket service has too many requests waiting to take another
+ * one. Nothing was done for the request, it can be sent again later.
+ */
+public class TicketServiceBusyException extends TicketException {
+
+	private static final long serialVersionUID = -3021576425391763805L;
+
+	public TicketServiceBusyException(String message) {
+		super(message);
+	}
+
+}
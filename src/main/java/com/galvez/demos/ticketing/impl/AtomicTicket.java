@@ -0,0 +1,21 @@
+package com.galvez.demos.ticketing.impl;
+
+import com.galvez.demos.ticketing.TicketStatus;
+
+/**
+ * A ticket whose status can be changed atomically
+ */
+interface AtomicTicket {
+
+	/**
+	 * Changes the status of the ticket only if it is in the expected status
+	 * 
+	 * @param expected
+	 *            status the ticket must be in
+	 * @param status
+	 *            new status for the ticket
+	 * @return true if the status was changed
+	 */
+	boolean compareAndSetStatus(TicketStatus expected, TicketStatus status);
+
+}
@@ -0,0 +1,297 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Index of the blocks of seats that span two or three adjacent rows, for
+ * parties too large for the free seats of any single row. A block takes the
+ * same seat positions in every row of the span, so the seats of a span that
+ * can be used are the ones available in all of its rows. For every span length
+ * there is a segment tree over the spans, best first by the ranks of their
+ * rows, of the longest run of seats available in every row of the span, so the
+ * best span that fits a block is found in O(log rows).
+ * <p>
+ * Rows only mark themselves as changed, which is a compare and set, and the
+ * spans of the changed rows are recomputed on the next search. Holds don't pay
+ * for an index they don't use, and a search pays for the rows changed since
+ * the previous one. The state seen by a search may already be stale, so the
+ * block it returns has to be checked by the rows when its seats are taken.
+ */
+class BlockIndex {
+	/** Largest number of rows a block can span */
+	static final int MAX_ROWS = 3;
+	private static final int WORD_BITS = 64;
+
+	// Rows in the order they are in the venue
+	private final TicketRow[] rows;
+	private final int[] positionOfRank;
+	private final int leafCount;
+	// Longest run of every span of 2 + i rows, as segment trees with the best span first
+	private final int[][] commonRuns;
+	// Leaf of the span starting at every row and first row of the span of every leaf
+	private final int[][] leafOfSpan;
+	private final int[][] spanOfLeaf;
+	// Copy of the available seats of every row and its seat count, as of its last refresh
+	private final long[][] availableSeats;
+	private final int[] seatCounts;
+	// Rows changed since the last search, flagged so they are queued once
+	private final AtomicIntegerArray changed;
+	private final ConcurrentLinkedQueue<Integer> changedRows = new ConcurrentLinkedQueue<Integer>();
+
+	/**
+	 * Creates the index with every row marked as changed, so nothing is read
+	 * from the rows until the first search
+	 *
+	 * @param rowsByPosition
+	 *            rows in the order they are in the venue, already ranked by the
+	 *            row index
+	 */
+	BlockIndex(TicketRow[] rowsByPosition) {
+		rows = rowsByPosition;
+		positionOfRank = new int[rows.length];
+		for (int position = 0; position < rows.length; position++) {
+			positionOfRank[rows[position].getRank()] = position;
+		}
+		int leaves = 1;
+		while (leaves < rows.length) {
+			leaves <<= 1;
+		}
+		leafCount = leaves;
+		commonRuns = new int[MAX_ROWS - 1][2 * leafCount];
+		leafOfSpan = new int[MAX_ROWS - 1][];
+		spanOfLeaf = new int[MAX_ROWS - 1][];
+		for (int span = 2; span <= MAX_ROWS; span++) {
+			orderSpans(span);
+		}
+		availableSeats = new long[rows.length][];
+		seatCounts = new int[rows.length];
+		changed = new AtomicIntegerArray(rows.length);
+		for (int position = 0; position < rows.length; position++) {
+			markChanged(position);
+		}
+	}
+
+	// Sorts the spans of a length by the sum of the ranks of their rows
+	private void orderSpans(final int span) {
+		int spans = Math.max(0, rows.length - span + 1);
+		Integer[] firsts = new Integer[spans];
+		for (int first = 0; first < spans; first++) {
+			firsts[first] = first;
+		}
+		Arrays.sort(firsts, new Comparator<Integer>() {
+			public int compare(Integer first, Integer other) {
+				int comparison = Integer.compare(rankSum(first, span), rankSum(other, span));
+				return comparison != 0 ? comparison : Integer.compare(first, other);
+			}
+		});
+		leafOfSpan[span - 2] = new int[spans];
+		spanOfLeaf[span - 2] = new int[spans];
+		for (int leaf = 0; leaf < spans; leaf++) {
+			spanOfLeaf[span - 2][leaf] = firsts[leaf];
+			leafOfSpan[span - 2][firsts[leaf]] = leaf;
+		}
+	}
+
+	private int rankSum(int first, int span) {
+		int sum = 0;
+		for (int position = first; position < first + span; position++) {
+			sum += rows[position].getRank();
+		}
+		return sum;
+	}
+
+	/**
+	 * Marks a row as changed
+	 *
+	 * @param rank
+	 *            rank of the row, zero is the best row
+	 */
+	void rowChanged(int rank) {
+		markChanged(positionOfRank[rank]);
+	}
+
+	private void markChanged(int position) {
+		if (changed.get(position) == 0 && changed.compareAndSet(position, 0, 1)) {
+			changedRows.add(position);
+		}
+	}
+
+	/**
+	 * Finds the best block for a party. Spans of fewer rows are preferred and,
+	 * among spans of the same length, the one with the best rows. The
+	 * party is split evenly over the rows of the span, the last row taking the
+	 * remainder centered under the others.
+	 *
+	 * @param numSeats
+	 *            number of seats of the party
+	 * @param maxRows
+	 *            largest number of rows the party can be split over
+	 * @return the block, null if no span of rows can seat the party
+	 */
+	synchronized Block findBlock(int numSeats, int maxRows) {
+		refresh();
+		for (int span = 2; span <= Math.min(maxRows, MAX_ROWS); span++) {
+			int width = (numSeats + span - 1) / span;
+			if ((span - 1) * width >= numSeats) {
+				// The last row would be left without seats
+				continue;
+			}
+			int first = findBestSpan(span, width);
+			if (first >= 0) {
+				return new Block(Arrays.copyOfRange(rows, first, first + span), findStart(first, span, width), width,
+						numSeats);
+			}
+		}
+		return null;
+	}
+
+	// First row of the best span whose common run fits the width, -1 if none
+	private int findBestSpan(int span, int width) {
+		int[] tree = commonRuns[span - 2];
+		if (tree[1] < width) {
+			return -1;
+		}
+		int node = 1;
+		while (node < leafCount) {
+			node = tree[2 * node] >= width ? 2 * node : 2 * node + 1;
+		}
+		return spanOfLeaf[span - 2][node - leafCount];
+	}
+
+	// Start of the block closest to the best place of the first row of the span
+	private int findStart(int first, int span, int width) {
+		int seatCount = Integer.MAX_VALUE;
+		for (int position = first; position < first + span; position++) {
+			seatCount = Math.min(seatCount, seatCounts[position]);
+		}
+		int idealStart = Math.min(rows[first].getIdealStart(width), seatCount - width);
+		FreeRunTree common = new FreeRunTree(commonSeats(first, span));
+		return common.closestWindow(idealStart, width);
+	}
+
+	// Copies the rows changed since the last search and recomputes their spans
+	private void refresh() {
+		Integer position;
+		while ((position = changedRows.poll()) != null) {
+			// Cleared before reading the row, a change from now on queues it again
+			changed.set(position, 0);
+			TicketRow row = rows[position];
+			availableSeats[position] = row.copyAvailableSeats();
+			seatCounts[position] = row.getSeatCount();
+			for (int span = 2; span <= MAX_ROWS; span++) {
+				for (int first = Math.max(0, position - span + 1); first <= position
+						&& first + span <= rows.length; first++) {
+					update(span, first);
+				}
+			}
+		}
+	}
+
+	private void update(int span, int first) {
+		int[] tree = commonRuns[span - 2];
+		int node = leafCount + leafOfSpan[span - 2][first];
+		tree[node] = longestRun(commonSeats(first, span));
+		for (node /= 2; node >= 1; node /= 2) {
+			tree[node] = Math.max(tree[2 * node], tree[2 * node + 1]);
+		}
+	}
+
+	// Seats available in every row of a span, the rows not copied yet have none
+	private long[] commonSeats(int first, int span) {
+		int words = Integer.MAX_VALUE;
+		for (int position = first; position < first + span; position++) {
+			words = availableSeats[position] == null ? 0 : Math.min(words, availableSeats[position].length);
+			if (words == 0) {
+				return new long[1];
+			}
+		}
+		long[] common = new long[words];
+		for (int i = 0; i < words; i++) {
+			long word = -1L;
+			for (int position = first; position < first + span; position++) {
+				word &= availableSeats[position][i];
+			}
+			common[i] = word;
+		}
+		return common;
+	}
+
+	// Longest run of set bits, carried from word to word
+	private static int longestRun(long[] words) {
+		int longest = 0;
+		int run = 0;
+		for (long word : words) {
+			if (word == -1L) {
+				run += WORD_BITS;
+				longest = Math.max(longest, run);
+				continue;
+			}
+			longest = Math.max(longest, run + Long.numberOfTrailingZeros(~word));
+			// Every shift-and-AND removes one bit from each run
+			int inner = 0;
+			for (long rest = word; rest != 0; rest &= rest >>> 1) {
+				inner++;
+			}
+			longest = Math.max(longest, inner);
+			run = Long.numberOfLeadingZeros(~word);
+		}
+		return longest;
+	}
+
+	/**
+	 * Seats of a party split over adjacent rows
+	 */
+	static final class Block {
+		private final TicketRow[] rows;
+		private final int start;
+		private final int width;
+		private final int seats;
+
+		private Block(TicketRow[] rows, int start, int width, int seats) {
+			this.rows = rows;
+			this.start = start;
+			this.width = width;
+			this.seats = seats;
+		}
+
+		/**
+		 * Returns one of the rows of the block
+		 *
+		 * @param row
+		 *            row of the block, from 0 in the order of the venue
+		 * @return the row
+		 */
+		TicketRow getRow(int row) {
+			return rows[row];
+		}
+
+		int getRowCount() {
+			return rows.length;
+		}
+
+		/**
+		 * Returns the position of the first seat of the block in one of its rows
+		 *
+		 * @param row
+		 *            row of the block, from 0
+		 * @return position of the first seat in the row
+		 */
+		int getStart(int row) {
+			return start + (width - getSeats(row)) / 2;
+		}
+
+		/**
+		 * Returns the number of seats of the block in one of its rows
+		 *
+		 * @param row
+		 *            row of the block, from 0
+		 * @return number of seats in the row
+		 */
+		int getSeats(int row) {
+			return row < rows.length - 1 ? width : seats - (rows.length - 1) * width;
+		}
+	}
+}
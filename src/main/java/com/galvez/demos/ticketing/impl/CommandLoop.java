@@ -0,0 +1,356 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single writer command loop. Commands are published by any number of threads
+ * onto a preallocated ring buffer and applied one at a time, in publication
+ * order, by the thread of the loop. The state touched by the commands is only
+ * ever changed by that thread, so it needs no locks and stays in its cache.
+ * Callers receive a CompletableFuture with the result of their command.
+ * <p>
+ * Tasks given to {@link #execute(Runnable)} never wait for room: when the ring
+ * buffer is full they are queued apart and applied between commands, and once
+ * the loop is shut down they run on the caller.
+ */
+public class CommandLoop implements Executor {
+
+	private static final VarHandle PUBLISHED = MethodHandles.arrayElementVarHandle(long[].class);
+	// Busy spins before yielding and yields before parking when there is no work
+	private static final int SPINS = 100;
+	private static final int YIELDS = 100;
+	private static final long PARK_NANOS = 100000L;
+
+	private final Slot[] slots;
+	// Sequence published in every slot, the slot is ready when it matches
+	private final long[] published;
+	private final int mask;
+	// Next sequence to be claimed by a producer
+	private final AtomicLong claimed;
+	// Every sequence below this one has been applied
+	private volatile long consumed;
+	private volatile boolean running;
+	private volatile boolean sleeping;
+	private final Thread thread;
+	// Tasks that found the ring buffer full, applied between commands
+	private final ConcurrentLinkedQueue<Runnable> overflow = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Creates and starts a new loop
+	 *
+	 * @param name
+	 *            name of the thread of the loop
+	 * @param capacity
+	 *            number of slots of the ring buffer, rounded up to a power of
+	 *            two
+	 */
+	public CommandLoop(String name, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		slots = new Slot[size];
+		published = new long[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+			published[i] = -1L;
+		}
+		mask = size - 1;
+		claimed = new AtomicLong();
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				consume();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Publishes a command. If the ring buffer is full the caller waits until
+	 * there is room.
+	 *
+	 * @param command
+	 *            command to apply on the thread of the loop
+	 * @return future completed with the result of the command or with the
+	 *         exception it threw
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> command) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		if (Thread.currentThread() == thread) {
+			// Waiting for our own queue would never end, apply it now
+			apply(command, future);
+			return future;
+		}
+		if (!running) {
+			throw new RejectedExecutionException("The command loop is shut down");
+		}
+		long sequence = claimed.getAndIncrement();
+		while (sequence - consumed >= slots.length) {
+			if (!running && !thread.isAlive()) {
+				throw new RejectedExecutionException("The command loop is shut down");
+			}
+			LockSupport.parkNanos(1000L);
+		}
+		publish(sequence, command, future);
+		rejectIfShutDown(future);
+		return future;
+	}
+
+	/**
+	 * Publishes a command if the ring buffer has room for it. The caller never
+	 * waits for the loop, except for the thread to end if the loop is shut
+	 * down at that very moment.
+	 *
+	 * @param command
+	 *            command to apply on the thread of the loop
+	 * @return future completed with the result of the command or with the
+	 *         exception it threw, null if the ring buffer is full
+	 */
+	public <T> CompletableFuture<T> trySubmit(Callable<T> command) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		if (Thread.currentThread() == thread) {
+			apply(command, future);
+			return future;
+		}
+		if (!running) {
+			future.completeExceptionally(new RejectedExecutionException("The command loop is shut down"));
+			return future;
+		}
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - consumed >= slots.length) {
+				return null;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+		publish(sequence, command, future);
+		rejectIfShutDown(future);
+		return future;
+	}
+
+	/**
+	 * Runs a task on the thread of the loop without ever making the caller wait
+	 * for room, so it can be called from threads shared by many loops such as
+	 * the one expiring holds. If the ring buffer is full the task is applied
+	 * between the next commands, and if the loop is shut down it runs on the
+	 * caller once the thread of the loop has ended, so the task is never lost.
+	 */
+	public void execute(Runnable task) {
+		if (Thread.currentThread() == thread) {
+			task.run();
+			return;
+		}
+		if (running) {
+			LoopTask command = new LoopTask(task);
+			boolean published = trySubmit(command) != null;
+			if (!published) {
+				overflow.add(task);
+				if (sleeping) {
+					LockSupport.unpark(thread);
+				}
+			}
+			if (running) {
+				return;
+			}
+			// Shut down while publishing, the loop may have ended before the task
+			awaitTermination();
+			if (published && !command.started) {
+				overflow.add(task);
+			}
+		} else {
+			overflow.add(task);
+		}
+		awaitTermination();
+		drainOverflow();
+	}
+
+	/**
+	 * Returns the number of tasks waiting outside the ring buffer because they
+	 * found it full
+	 *
+	 * @return tasks waiting to be applied between commands
+	 */
+	public int getOverflowDepth() {
+		return overflow.size();
+	}
+
+	/**
+	 * Returns the number of commands waiting to be applied
+	 *
+	 * @return commands in the ring buffer
+	 */
+	public int getQueueDepth() {
+		return (int) Math.max(0L, claimed.get() - consumed);
+	}
+
+	/**
+	 * Returns the number of slots of the ring buffer
+	 *
+	 * @return capacity of the loop
+	 */
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Returns the number of commands applied since the loop started
+	 *
+	 * @return applied commands
+	 */
+	public long getCompletedCommands() {
+		return consumed;
+	}
+
+	/**
+	 * Stops accepting commands. The commands and tasks already published are
+	 * still applied before the thread ends, the tasks given to
+	 * {@link #execute(Runnable)} afterwards run on their caller. Expired holds of
+	 * the events of the loop are still released.
+	 */
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	// The loop may have ended before reaching a command published while shutting down
+	private void rejectIfShutDown(CompletableFuture<?> future) {
+		if (!running) {
+			awaitTermination();
+			future.completeExceptionally(new RejectedExecutionException("The command loop is shut down"));
+		}
+	}
+
+	private void awaitTermination() {
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Applies the tasks left behind by a loop that has ended, one caller at a time
+	private void drainOverflow() {
+		synchronized (overflow) {
+			Runnable task;
+			while ((task = overflow.poll()) != null) {
+				run(task);
+			}
+		}
+	}
+
+	private <T> void publish(long sequence, Callable<T> command, CompletableFuture<T> future) {
+		Slot slot = slots[(int) (sequence & mask)];
+		slot.command = command;
+		slot.future = future;
+		PUBLISHED.setRelease(published, (int) (sequence & mask), sequence);
+		if (sleeping) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void consume() {
+		long next = 0L;
+		int idle = 0;
+		while (running || next < claimed.get() || !overflow.isEmpty()) {
+			int index = (int) (next & mask);
+			if ((long) PUBLISHED.getAcquire(published, index) == next) {
+				Slot slot = slots[index];
+				Callable command = slot.command;
+				CompletableFuture future = slot.future;
+				slot.command = null;
+				slot.future = null;
+				apply(command, future);
+				consumed = ++next;
+				idle = 0;
+				// One overflowed task per command, so a busy ring can't starve them
+				Runnable task = overflow.poll();
+				if (task != null) {
+					run(task);
+				}
+			} else if (!overflow.isEmpty()) {
+				Runnable task = overflow.poll();
+				if (task != null) {
+					run(task);
+				}
+				idle = 0;
+			} else if (idle < SPINS) {
+				idle++;
+				Thread.onSpinWait();
+			} else if (idle < SPINS + YIELDS) {
+				idle++;
+				Thread.yield();
+			} else {
+				sleeping = true;
+				if ((long) PUBLISHED.getAcquire(published, index) != next && overflow.isEmpty() && running) {
+					LockSupport.parkNanos(this, PARK_NANOS);
+				}
+				sleeping = false;
+			}
+		}
+	}
+
+	private static void run(Runnable task) {
+		try {
+			task.run();
+		} catch (Throwable e) {
+			// Nobody waits for the task, a failure only ends it and is reported
+			Thread thread = Thread.currentThread();
+			thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+		}
+	}
+
+	private static <T> void apply(Callable<T> command, CompletableFuture<T> future) {
+		try {
+			future.complete(command.call());
+		} catch (Throwable e) {
+			future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Task published onto the ring buffer, remembering whether the loop reached
+	 * it
+	 */
+	private static final class LoopTask implements Callable<Void> {
+		private final Runnable task;
+		private volatile boolean started;
+
+		private LoopTask(Runnable task) {
+			this.task = task;
+		}
+
+		public Void call() {
+			started = true;
+			run(task);
+			return null;
+		}
+	}
+
+	/**
+	 * Preallocated entry of the ring buffer
+	 */
+	private static final class Slot {
+		private Callable<?> command;
+		private CompletableFuture<?> future;
+	}
+}
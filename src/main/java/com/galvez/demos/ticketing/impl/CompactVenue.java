@@ -0,0 +1,243 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+import com.galvez.demos.ticketing.Ticket;
+import com.galvez.demos.ticketing.TicketStatus;
+import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
+
+/**
+ * Compact representation of the seats of a venue for very large events. The
+ * seats are stored as parallel primitive arrays (struct of arrays) instead of
+ * one Ticket object per seat: rows are small ints, the status of every seat is
+ * a byte and prices come from a table of price tiers. Ticket objects are only
+ * created as lightweight views when seats are handed out in a SeatHold.
+ * <p>
+ * Rows, seat numbers and prices are kept in a {@link VenueTemplate}, which can
+ * be shared by every event of the same venue, and only the status of the seats
+ * belongs to the event.
+ */
+public class CompactVenue {
+
+	private static final TicketStatus[] STATUSES = TicketStatus.values();
+	private static final byte AVAILABLE = (byte) TicketStatus.AVAILABLE.ordinal();
+	private static final VarHandle STATES = MethodHandles.arrayElementVarHandle(byte[].class);
+
+	private final VenueTemplate template;
+	// TicketStatus ordinal of every seat, only changed through STATES
+	private final byte[] states;
+
+	/**
+	 * Creates a venue where all the rows have the same number of seats and price
+	 *
+	 * @param rowIds
+	 *            String array with the row Ids: A, B, C, D...
+	 * @param seatsPerRow
+	 *            Number of seats per row, numbered from 1
+	 * @param price
+	 *            Price for all the tickets
+	 */
+	public CompactVenue(String[] rowIds, int seatsPerRow, double price) {
+		this(new VenueTemplate(rowIds, seatsPerRow, price));
+	}
+
+	/**
+	 * Creates a venue with a price tier per row
+	 *
+	 * @param rowIds
+	 *            String array with the row Ids: A, B, C, D...
+	 * @param seatsPerRow
+	 *            Number of seats of every row, numbered from 1
+	 * @param rowPriceTiers
+	 *            Price tier of every row
+	 * @param tierPrices
+	 *            Price of every tier, there can be up to 256 tiers
+	 */
+	public CompactVenue(String[] rowIds, int[] seatsPerRow, int[] rowPriceTiers, double[] tierPrices) {
+		this(new VenueTemplate(rowIds, seatsPerRow, rowPriceTiers, tierPrices));
+	}
+
+	/**
+	 * Creates a venue with every seat of a template available. Only the status
+	 * of the seats is allocated, a byte per seat.
+	 *
+	 * @param template
+	 *            rows, seat numbers and prices of the venue
+	 */
+	public CompactVenue(VenueTemplate template) {
+		this.template = template;
+		states = new byte[template.getSeatCount()];
+		Arrays.fill(states, AVAILABLE);
+	}
+
+	/**
+	 * Creates a venue over a template with the status of its seats, as read from
+	 * a snapshot. The array is not copied.
+	 *
+	 * @param template
+	 *            rows, seat numbers and prices of the venue
+	 * @param states
+	 *            TicketStatus ordinal of every seat
+	 */
+	CompactVenue(VenueTemplate template, byte[] states) {
+		this.template = template;
+		if (states.length != template.getSeatCount()) {
+			throw new IllegalArgumentException("The seat arrays do not match the rows");
+		}
+		for (int seat = 0; seat < states.length; seat++) {
+			if (states[seat] < 0 || states[seat] >= STATUSES.length) {
+				throw new IllegalArgumentException("Seat " + seat + " has an unknown status");
+			}
+		}
+		this.states = states;
+	}
+
+	/**
+	 * Returns the template the venue was created from
+	 *
+	 * @return rows, seat numbers and prices of the venue
+	 */
+	public VenueTemplate getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Returns the number of rows in the venue
+	 *
+	 * @return number of rows
+	 */
+	public int getRowCount() {
+		return template.getRowCount();
+	}
+
+	/**
+	 * Returns the total number of seats in the venue
+	 *
+	 * @return number of seats
+	 */
+	public int getSeatCount() {
+		return states.length;
+	}
+
+	public String getRowId(int row) {
+		return template.getRowId(row);
+	}
+
+	int getRowStart(int row) {
+		return template.getRowStart(row);
+	}
+
+	int getRowSeatCount(int row) {
+		return template.getRowSeatCount(row);
+	}
+
+	int getSeatNumber(int seat) {
+		return template.getSeatNumber(seat);
+	}
+
+	TicketStatus getStatus(int seat) {
+		return STATUSES[(byte) STATES.getVolatile(states, seat)];
+	}
+
+	/**
+	 * Copies the status of a range of seats
+	 *
+	 * @param seat
+	 *            index of the first seat in the venue
+	 * @param states
+	 *            array receiving the TicketStatus ordinals
+	 * @param offset
+	 *            position of the first seat in the array
+	 * @param count
+	 *            number of seats
+	 */
+	void copyStates(int seat, byte[] states, int offset, int count) {
+		for (int i = 0; i < count; i++) {
+			states[offset + i] = (byte) STATES.getVolatile(this.states, seat + i);
+		}
+	}
+
+	/**
+	 * Returns the view of a seat as a Ticket. Views are not cached, two views of
+	 * the same seat are equal.
+	 *
+	 * @param seat
+	 *            index of the seat in the venue
+	 * @return the ticket for the seat
+	 */
+	Ticket getTicket(int seat) {
+		return new CompactTicket(this, seat);
+	}
+
+	/**
+	 * Lightweight Ticket backed by the arrays of the venue
+	 */
+	static final class CompactTicket implements Ticket, AtomicTicket {
+		private final CompactVenue venue;
+		private final int seat;
+
+		CompactTicket(CompactVenue venue, int seat) {
+			this.venue = venue;
+			this.seat = seat;
+		}
+
+		public double getTicketPrice() {
+			return venue.template.getPrice(seat);
+		}
+
+		public int getSeatNumber() {
+			return venue.template.getSeatNumber(seat);
+		}
+
+		public String getSeatRow() {
+			return venue.template.getRowId(venue.template.getRow(seat));
+		}
+
+		public TicketStatus getStatus() {
+			return venue.getStatus(seat);
+		}
+
+		public void reserveTicket() throws TicketUnavailableException {
+			if (!compareAndSetStatus(TicketStatus.AVAILABLE, TicketStatus.RESERVED)) {
+				throw new TicketUnavailableException("Ticket is not available");
+			}
+		}
+
+		public void purchaseTicket() throws TicketUnavailableException {
+			if (!compareAndSetStatus(TicketStatus.RESERVED, TicketStatus.SOLD)) {
+				throw new TicketUnavailableException("Ticket is not reserved");
+			}
+		}
+
+		public void releaseTicket() throws TicketUnavailableException {
+			if (!compareAndSetStatus(TicketStatus.RESERVED, TicketStatus.AVAILABLE)) {
+				throw new TicketUnavailableException("Ticket is not reserved");
+			}
+		}
+
+		public boolean compareAndSetStatus(TicketStatus expected, TicketStatus status) {
+			return STATES.compareAndSet(venue.states, seat, (byte) expected.ordinal(), (byte) status.ordinal());
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof CompactTicket)) {
+				return false;
+			}
+			CompactTicket ticket = (CompactTicket) other;
+			return ticket.venue == venue && ticket.seat == seat;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(venue) + seat;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Row %s, Seat %d", getSeatRow(), getSeatNumber());
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generator of confirmation codes. A code is 12 random Crockford base 32
+ * symbols (60 bits) followed by a Luhn mod 32 check symbol, so a mistyped
+ * symbol or two swapped neighbours are rejected without a lookup. The random
+ * bits come from the ThreadLocalRandom of the calling thread, so purchases
+ * don't contend on a shared SecureRandom the way UUID.randomUUID() does. Codes
+ * identify a purchase, they are not meant to be secret.
+ */
+final class ConfirmationCodes {
+	static final int LENGTH = 13;
+	private static final char[] SYMBOLS = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+	private static final int BASE = 32;
+	private static final int RANDOM_SYMBOLS = LENGTH - 1;
+	private static final int[] VALUES = new int[128];
+
+	static {
+		for (int i = 0; i < VALUES.length; i++) {
+			VALUES[i] = -1;
+		}
+		for (int i = 0; i < SYMBOLS.length; i++) {
+			VALUES[SYMBOLS[i]] = i;
+		}
+	}
+
+	private ConfirmationCodes() {
+	}
+
+	/**
+	 * Returns a new confirmation code
+	 *
+	 * @return code of 13 symbols, the last one is the check symbol
+	 */
+	static String next() {
+		long bits = ThreadLocalRandom.current().nextLong();
+		char[] code = new char[LENGTH];
+		for (int i = 0; i < RANDOM_SYMBOLS; i++) {
+			code[i] = SYMBOLS[(int) (bits & (BASE - 1))];
+			bits >>>= 5;
+		}
+		code[RANDOM_SYMBOLS] = SYMBOLS[checkValue(code)];
+		return new String(code);
+	}
+
+	/**
+	 * Tells whether a code is well formed and its check symbol matches
+	 *
+	 * @param code
+	 *            code to check
+	 * @return true if the code could have been generated by {@link #next()}
+	 */
+	static boolean isValid(String code) {
+		if (code == null || code.length() != LENGTH) {
+			return false;
+		}
+		int sum = 0;
+		boolean doubled = false;
+		for (int i = code.length() - 1; i >= 0; i--) {
+			int value = valueOf(code.charAt(i));
+			if (value < 0) {
+				return false;
+			}
+			sum += luhnAddend(value, doubled);
+			doubled = !doubled;
+		}
+		return sum % BASE == 0;
+	}
+
+	// Check symbol that makes the Luhn sum of the whole code a multiple of the base
+	private static int checkValue(char[] code) {
+		int sum = 0;
+		boolean doubled = true;
+		for (int i = RANDOM_SYMBOLS - 1; i >= 0; i--) {
+			sum += luhnAddend(valueOf(code[i]), doubled);
+			doubled = !doubled;
+		}
+		return (BASE - sum % BASE) % BASE;
+	}
+
+	private static int luhnAddend(int value, boolean doubled) {
+		int addend = doubled ? 2 * value : value;
+		return addend / BASE + addend % BASE;
+	}
+
+	private static int valueOf(char symbol) {
+		return symbol < VALUES.length ? VALUES[symbol] : -1;
+	}
+}
@@ -0,0 +1,448 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.galvez.demos.ticketing.Ticket;
+
+/**
+ * Append only binary journal of the holds, confirmations and releases of an
+ * event, written through a memory mapped file. Recording a change only copies
+ * the record into the mapped region, it is made durable by {@link #sync(long)}
+ * with group commit: the first thread waiting forces the file for every record
+ * written so far while the threads arriving during the force wait for the next
+ * one, so a single fsync covers many confirmations.
+ * <p>
+ * Every record is framed by its length and followed by the CRC32 of its
+ * content, so a record torn by a crash ends the replay instead of being
+ * applied. Records never cross the boundary of a mapped region.
+ */
+public class EventJournal implements Closeable {
+
+	// The file is mapped in regions of 16 MB
+	private static final int DEFAULT_REGION_SIZE = 16 << 20;
+	private static final byte HOLD = 1;
+	private static final byte CONFIRMATION = 2;
+	private static final byte RELEASE = 3;
+	// Length marking that the rest of the region is unused
+	private static final int REGION_END = -1;
+	// Length before and checksum after every record
+	private static final int FRAME_SIZE = 8;
+
+	private final FileChannel channel;
+	private final int regionSize;
+	private final boolean sync;
+	// Guards the mapped region and the write position
+	private final Object writeLock = new Object();
+	private MappedByteBuffer region;
+	private long regionStart;
+	private long writePosition;
+	private boolean closed;
+	// Guards the durable position and the force in progress
+	private final Object syncLock = new Object();
+	private long durablePosition;
+	private boolean forcing;
+	private long forceCount;
+
+	/**
+	 * Opens or creates a journal that forces its records to disk on
+	 * {@link #sync(long)}
+	 *
+	 * @param file
+	 *            file of the journal
+	 * @throws IOException
+	 *             if the file can't be opened
+	 */
+	public EventJournal(Path file) throws IOException {
+		this(file, true);
+	}
+
+	/**
+	 * Opens or creates a journal
+	 *
+	 * @param file
+	 *            file of the journal
+	 * @param sync
+	 *            true to force the records to disk on {@link #sync(long)}, false
+	 *            to leave them to the operating system, which survives a crash
+	 *            of the process but not of the machine
+	 * @throws IOException
+	 *             if the file can't be opened
+	 */
+	public EventJournal(Path file, boolean sync) throws IOException {
+		this(file, sync, DEFAULT_REGION_SIZE);
+	}
+
+	/**
+	 * Opens or creates a journal. The records already in the file are kept and
+	 * new records are written after the last valid one.
+	 *
+	 * @param file
+	 *            file of the journal
+	 * @param sync
+	 *            true to force the records to disk on {@link #sync(long)}
+	 * @param regionSize
+	 *            size in bytes of the regions of the file mapped at once, it
+	 *            limits the size of a record
+	 * @throws IOException
+	 *             if the file can't be opened
+	 */
+	public EventJournal(Path file, boolean sync, int regionSize) throws IOException {
+		if (regionSize < 1024) {
+			throw new IllegalArgumentException("Region size must be at least 1 KB");
+		}
+		this.regionSize = regionSize;
+		this.sync = sync;
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		writePosition = scan(null);
+		regionStart = writePosition - writePosition % regionSize;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+		region.position((int) (writePosition - regionStart));
+		if (region.remaining() >= 4 && region.getInt(region.position()) != 0) {
+			// Leftovers of a torn record, clear them so they are not read after new records
+			while (region.hasRemaining()) {
+				region.put((byte) 0);
+			}
+			region.position((int) (writePosition - regionStart));
+		}
+		durablePosition = writePosition;
+	}
+
+	/**
+	 * Records that a customer held seats
+	 *
+	 * @param seatHoldId
+	 *            the seat hold identifier
+	 * @param customerEmail
+	 *            customer holding the seats
+	 * @param tickets
+	 *            tickets in the hold
+	 * @param expirationTime
+	 *            wall clock time in milliseconds when the hold expires
+	 * @return position of the journal after the record, to be passed to
+	 *         {@link #sync(long)}
+	 * @throws IOException
+	 *             if the record can't be written
+	 */
+	public long recordHold(long seatHoldId, String customerEmail, List<Ticket> tickets, long expirationTime)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(seatHoldId);
+		out.writeUTF(customerEmail);
+		writeSeats(out, tickets);
+		out.writeLong(expirationTime);
+		return append(HOLD, bytes.toByteArray());
+	}
+
+	/**
+	 * Records that a customer purchased the seats of a hold
+	 *
+	 * @param seatHoldId
+	 *            the seat hold identifier
+	 * @param confirmationCode
+	 *            code returned to the customer
+	 * @param customerEmail
+	 *            customer purchasing the seats
+	 * @param tickets
+	 *            tickets purchased
+	 * @return position of the journal after the record, to be passed to
+	 *         {@link #sync(long)}
+	 * @throws IOException
+	 *             if the record can't be written
+	 */
+	public long recordConfirmation(long seatHoldId, String confirmationCode, String customerEmail,
+			List<Ticket> tickets) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(seatHoldId);
+		out.writeUTF(confirmationCode);
+		out.writeUTF(customerEmail);
+		writeSeats(out, tickets);
+		return append(CONFIRMATION, bytes.toByteArray());
+	}
+
+	/**
+	 * Records that the seats of a hold were given back to the event
+	 *
+	 * @param seatHoldId
+	 *            the seat hold identifier
+	 * @return position of the journal after the record, to be passed to
+	 *         {@link #sync(long)}
+	 * @throws IOException
+	 *             if the record can't be written
+	 */
+	public long recordRelease(long seatHoldId) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeLong(seatHoldId);
+		return append(RELEASE, bytes.toByteArray());
+	}
+
+	/**
+	 * Waits until the records up to a position are on disk. The file is forced
+	 * once for all the threads waiting at the same time. It returns immediately
+	 * if the journal was opened without sync.
+	 *
+	 * @param position
+	 *            position returned when a record was written
+	 * @throws IOException
+	 *             if the file can't be forced
+	 */
+	public void sync(long position) throws IOException {
+		if (!sync) {
+			return;
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				synchronized (syncLock) {
+					while (forcing && durablePosition < position) {
+						try {
+							syncLock.wait();
+						} catch (InterruptedException e) {
+							// The record is written, it has to be made durable anyway
+							interrupted = true;
+						}
+					}
+					if (durablePosition >= position) {
+						return;
+					}
+					forcing = true;
+				}
+				// Force every record written so far, including the ones of the threads waiting
+				MappedByteBuffer forced;
+				long end;
+				synchronized (writeLock) {
+					forced = region;
+					end = writePosition;
+				}
+				boolean done = false;
+				try {
+					forced.force();
+					done = true;
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				} finally {
+					synchronized (syncLock) {
+						forcing = false;
+						if (done) {
+							durablePosition = Math.max(durablePosition, end);
+							forceCount++;
+						}
+						syncLock.notifyAll();
+					}
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Reads every record of the journal in the order they were written. It is
+	 * meant to rebuild an event on startup, before new records are written.
+	 *
+	 * @param listener
+	 *            listener receiving the records
+	 * @throws IOException
+	 *             if the journal can't be read
+	 */
+	public void replay(JournalListener listener) throws IOException {
+		synchronized (writeLock) {
+			ensureOpen();
+			scan(listener);
+		}
+	}
+
+	/**
+	 * Returns the number of times the file was forced to disk, every force
+	 * commits all the records written before it
+	 *
+	 * @return number of forces
+	 */
+	public long getForceCount() {
+		synchronized (syncLock) {
+			return forceCount;
+		}
+	}
+
+	/**
+	 * Forces the pending records and closes the file
+	 */
+	public void close() throws IOException {
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				if (sync) {
+					region.force();
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	private long append(byte type, byte[] payload) throws IOException {
+		int length = payload.length + 1;
+		if (length + FRAME_SIZE > regionSize) {
+			throw new IllegalArgumentException("The record does not fit in a region of the journal");
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(type);
+		checksum.update(payload);
+		synchronized (writeLock) {
+			ensureOpen();
+			if (region.remaining() < length + FRAME_SIZE) {
+				if (region.remaining() >= 4) {
+					region.putInt(REGION_END);
+				}
+				nextRegion();
+			}
+			region.putInt(length);
+			region.put(type);
+			region.put(payload);
+			region.putInt((int) checksum.getValue());
+			writePosition = regionStart + region.position();
+			return writePosition;
+		}
+	}
+
+	// Called with the write lock held
+	private void nextRegion() throws IOException {
+		try {
+			if (sync) {
+				// A sync only forces the current region, the previous ones must be on disk
+				region.force();
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		regionStart += regionSize;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("The journal is closed");
+		}
+	}
+
+	/**
+	 * Reads the records from the start of the file
+	 *
+	 * @param listener
+	 *            listener receiving the records, null to only find the end
+	 * @return position after the last valid record
+	 */
+	private long scan(JournalListener listener) throws IOException {
+		long size = channel.size();
+		long position = 0L;
+		while (position < size) {
+			long start = position - position % regionSize;
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, size - start));
+			buffer.position((int) (position - start));
+			while (true) {
+				if (buffer.remaining() < FRAME_SIZE) {
+					if (buffer.limit() < regionSize) {
+						return position;
+					}
+					break;
+				}
+				int length = buffer.getInt();
+				if (length == REGION_END) {
+					break;
+				}
+				if (length <= 0 || length > buffer.remaining() - 4) {
+					return position;
+				}
+				byte[] record = new byte[length];
+				buffer.get(record);
+				CRC32 checksum = new CRC32();
+				checksum.update(record);
+				if (buffer.getInt() != (int) checksum.getValue()) {
+					// Torn by a crash, nothing after it was acknowledged
+					return position;
+				}
+				if (listener != null) {
+					try {
+						dispatch(record, listener);
+					} catch (EOFException e) {
+						// The checksum matched, the record was written short
+						throw new IOException("Corrupt journal record at " + position, e);
+					}
+				}
+				position = start + buffer.position();
+			}
+			position = start + regionSize;
+		}
+		return position;
+	}
+
+	private static void dispatch(byte[] record, JournalListener listener) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1));
+		long seatHoldId = in.readLong();
+		switch (record[0]) {
+		case HOLD: {
+			String customerEmail = in.readUTF();
+			int seats = in.readInt();
+			String[] rows = new String[seats];
+			int[] seatNumbers = new int[seats];
+			readSeats(in, rows, seatNumbers);
+			long expirationTime = in.readLong();
+			listener.holdRecorded(seatHoldId, customerEmail, expirationTime, rows, seatNumbers);
+			break;
+		}
+		case CONFIRMATION: {
+			String confirmationCode = in.readUTF();
+			String customerEmail = in.readUTF();
+			int seats = in.readInt();
+			String[] rows = new String[seats];
+			int[] seatNumbers = new int[seats];
+			readSeats(in, rows, seatNumbers);
+			listener.confirmationRecorded(seatHoldId, confirmationCode, customerEmail, rows, seatNumbers);
+			break;
+		}
+		case RELEASE:
+			listener.releaseRecorded(seatHoldId);
+			break;
+		default:
+			throw new IOException("Unknown journal record type " + record[0]);
+		}
+	}
+
+	private static void writeSeats(DataOutputStream out, List<Ticket> tickets) throws IOException {
+		out.writeInt(tickets.size());
+		for (Ticket ticket : tickets) {
+			out.writeUTF(ticket.getSeatRow());
+			out.writeInt(ticket.getSeatNumber());
+		}
+	}
+
+	private static void readSeats(DataInputStream in, String[] rows, int[] seatNumbers) throws IOException {
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = in.readUTF();
+			seatNumbers[i] = in.readInt();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.galvez.demos.ticketing.AsyncTicketService;
+import com.galvez.demos.ticketing.Event;
+import com.galvez.demos.ticketing.EventType;
+import com.galvez.demos.ticketing.HoldRequest;
+import com.galvez.demos.ticketing.HoldResult;
+import com.galvez.demos.ticketing.SeatHold;
+import com.galvez.demos.ticketing.SeatMap;
+import com.galvez.demos.ticketing.exceptions.TicketException;
+import com.galvez.demos.ticketing.exceptions.TicketServiceBusyException;
+import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
+
+/**
+ * Single writer execution mode for an event. Every command for the event
+ * (hold, confirm, expire and query) is published onto the ring buffer of a
+ * {@link CommandLoop} and applied by its thread, so the event is never touched
+ * by two threads at once and holds and expirations are applied in a
+ * deterministic order. The synchronous TicketService methods wait for their
+ * command, the asynchronous ones return a future and never wait: when the ring
+ * buffer is full their future fails with a TicketServiceBusyException.
+ */
+public class EventLoopTicketService implements Event, AsyncTicketService {
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private EventTicketService event;
+
+	private CommandLoop loop;
+
+	// Commands published for this event, to find the hot events of a loop
+	private LongAdder commandCount = new LongAdder();
+
+	// Asynchronous commands turned away because the loop was full
+	private LongAdder rejectedCount = new LongAdder();
+
+	/**
+	 * Runs the event on a loop of its own
+	 *
+	 * @param event
+	 *            event receiving the commands
+	 */
+	public EventLoopTicketService(EventTicketService event) {
+		this(event, new CommandLoop("event-loop-" + event.getEventName(), DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Runs the event on the given loop, which can be shared with other events.
+	 * The expired holds of the event are released through the loop too.
+	 *
+	 * @param event
+	 *            event receiving the commands
+	 * @param loop
+	 *            loop applying the commands
+	 */
+	public EventLoopTicketService(EventTicketService event, CommandLoop loop) {
+		this.event = event;
+		this.loop = loop;
+		event.setExpirationExecutor(loop);
+	}
+
+	public int numSeatsAvailable() {
+		return event.numSeatsAvailable();
+	}
+
+	public SeatHold findAndHoldSeats(int numSeats, String customerEmail) throws TicketUnavailableException {
+		try {
+			return await(submit(holdCommand(numSeats, customerEmail)));
+		} catch (TicketUnavailableException e) {
+			throw e;
+		} catch (TicketException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public List<HoldResult> findAndHoldSeats(List<HoldRequest> requests) {
+		try {
+			return await(submit(batchHoldCommand(requests)));
+		} catch (TicketException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String reserveSeats(long seatHoldId, String customerEmail) throws TicketException {
+		return await(submit(reserveCommand(seatHoldId, customerEmail)));
+	}
+
+	/**
+	 * Returns the seats available at once, the count is read without going
+	 * through the loop
+	 */
+	public CompletableFuture<Integer> numSeatsAvailableAsync() {
+		return CompletableFuture.completedFuture(Integer.valueOf(numSeatsAvailable()));
+	}
+
+	/**
+	 * Publishes a request to find and hold the best available seats
+	 *
+	 * @param numSeats
+	 *            the number of seats to find and hold
+	 * @param customerEmail
+	 *            unique identifier for the customer
+	 * @return future completed with the SeatHold, with a
+	 *         TicketUnavailableException if there are not enough seats or with a
+	 *         TicketServiceBusyException if the loop is full
+	 */
+	public CompletableFuture<SeatHold> findAndHoldSeatsAsync(int numSeats, String customerEmail) {
+		return offer(holdCommand(numSeats, customerEmail));
+	}
+
+	/**
+	 * Publishes a batch of hold requests as a single command
+	 *
+	 * @param requests
+	 *            the number of seats and customer of every request
+	 * @return future completed with the result of every request, or with a
+	 *         TicketServiceBusyException if the loop is full
+	 */
+	public CompletableFuture<List<HoldResult>> findAndHoldSeatsAsync(List<HoldRequest> requests) {
+		return offer(batchHoldCommand(requests));
+	}
+
+	/**
+	 * Publishes a request to commit the seats held for a customer
+	 *
+	 * @param seatHoldId
+	 *            the seat hold identifier
+	 * @param customerEmail
+	 *            the email address of the customer to which the seat hold is
+	 *            assigned
+	 * @return future completed with the confirmation code, or with a
+	 *         TicketException if the seats couldn't be committed, a
+	 *         TicketServiceBusyException if the loop is full
+	 */
+	public CompletableFuture<String> reserveSeatsAsync(long seatHoldId, String customerEmail) {
+		return offer(reserveCommand(seatHoldId, customerEmail));
+	}
+
+	private Callable<SeatHold> holdCommand(final int numSeats, final String customerEmail) {
+		return new Callable<SeatHold>() {
+			public SeatHold call() throws TicketUnavailableException {
+				return event.findAndHoldSeats(numSeats, customerEmail);
+			}
+		};
+	}
+
+	private Callable<List<HoldResult>> batchHoldCommand(final List<HoldRequest> requests) {
+		return new Callable<List<HoldResult>>() {
+			public List<HoldResult> call() {
+				return event.findAndHoldSeats(requests);
+			}
+		};
+	}
+
+	private Callable<String> reserveCommand(final long seatHoldId, final String customerEmail) {
+		return new Callable<String>() {
+			public String call() throws TicketException {
+				return event.reserveSeats(seatHoldId, customerEmail);
+			}
+		};
+	}
+
+	// Publishes a command, waiting for room in the loop
+	private <T> CompletableFuture<T> submit(Callable<T> command) {
+		commandCount.increment();
+		return loop.submit(command);
+	}
+
+	// Publishes a command if the loop has room, fails it otherwise
+	private <T> CompletableFuture<T> offer(Callable<T> command) {
+		CompletableFuture<T> future = loop.trySubmit(command);
+		if (future == null) {
+			rejectedCount.increment();
+			future = new CompletableFuture<T>();
+			future.completeExceptionally(new TicketServiceBusyException("The event is busy, try again later"));
+			return future;
+		}
+		commandCount.increment();
+		return future;
+	}
+
+	public String getEventName() {
+		return event.getEventName();
+	}
+
+	public Date getEventDate() {
+		return event.getEventDate();
+	}
+
+	public int seatsAvailable() {
+		return numSeatsAvailable();
+	}
+
+	public EventType getEventType() {
+		return event.getEventType();
+	}
+
+	/**
+	 * Returns the seat map without going through the loop, it is read without
+	 * locks
+	 */
+	public SeatMap getSeatMap() {
+		return event.getSeatMap();
+	}
+
+	public long getSeatMapVersion() {
+		return event.getSeatMapVersion();
+	}
+
+	/**
+	 * Returns the loop applying the commands of this event
+	 *
+	 * @return the command loop
+	 */
+	public CommandLoop getCommandLoop() {
+		return loop;
+	}
+
+	/**
+	 * Returns the number of commands published for this event
+	 *
+	 * @return published commands
+	 */
+	public long getCommandCount() {
+		return commandCount.sum();
+	}
+
+	/**
+	 * Returns the number of asynchronous commands turned away because the loop
+	 * was full
+	 *
+	 * @return rejected commands
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	/**
+	 * Waits for a command, rethrowing the TicketException it failed with
+	 */
+	private static <T> T await(CompletableFuture<T> future) throws TicketException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					// The command is already published, wait for its outcome
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TicketException) {
+				throw (TicketException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
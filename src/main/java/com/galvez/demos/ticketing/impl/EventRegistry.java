@@ -0,0 +1,259 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.galvez.demos.ticketing.Event;
+
+/**
+ * Registry of the events hosted by this JVM. Events are looked up by id and
+ * partitioned across a fixed set of shards, one {@link CommandLoop} per core by
+ * default. Every event is bound to the shard with the fewest events when it is
+ * added and all its TicketService calls run on that shard, so events on
+ * different shards never contend and the events of a shard share one thread
+ * instead of locks.
+ */
+public class EventRegistry {
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private final CommandLoop[] shards;
+	// Events bound to every shard, only changed while holding the registry lock
+	private final int[] shardEvents;
+	private final Map<String, Entry> events;
+
+	/**
+	 * Creates a registry with a shard per available core
+	 */
+	public EventRegistry() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a registry
+	 *
+	 * @param shardCount
+	 *            number of shards
+	 * @param capacity
+	 *            number of commands every shard can queue
+	 */
+	public EventRegistry(int shardCount, int capacity) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("There must be at least one shard");
+		}
+		shards = new CommandLoop[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new CommandLoop("event-shard-" + i, capacity);
+		}
+		shardEvents = new int[shardCount];
+		events = new ConcurrentHashMap<String, Entry>();
+	}
+
+	/**
+	 * Adds an event, binding it to the shard with the fewest events
+	 *
+	 * @param eventId
+	 *            id to look up the event
+	 * @param event
+	 *            event to host, it must not be used directly from now on
+	 * @return the event bound to its shard
+	 */
+	public synchronized EventLoopTicketService addEvent(String eventId, EventTicketService event) {
+		if (events.containsKey(eventId)) {
+			throw new IllegalArgumentException("Event " + eventId + " is already registered");
+		}
+		int shard = 0;
+		for (int i = 1; i < shards.length; i++) {
+			if (shardEvents[i] < shardEvents[shard]) {
+				shard = i;
+			}
+		}
+		EventLoopTicketService service = new EventLoopTicketService(event, shards[shard]);
+		events.put(eventId, new Entry(eventId, event, service, shard));
+		shardEvents[shard]++;
+		return service;
+	}
+
+	/**
+	 * Removes an event from the registry and closes its change feed. Holds still
+	 * open are released on its shard as usual.
+	 *
+	 * @param eventId
+	 *            id of the event
+	 * @return true if the event was registered
+	 */
+	public synchronized boolean retireEvent(String eventId) {
+		Entry entry = events.remove(eventId);
+		if (entry == null) {
+			return false;
+		}
+		shardEvents[entry.shard]--;
+		entry.event.closeChangeFeed();
+		return true;
+	}
+
+	/**
+	 * Looks up an event. Its TicketService calls are routed to the owning shard.
+	 *
+	 * @param eventId
+	 *            id of the event
+	 * @return the event, null if it is not registered
+	 */
+	public Event getEvent(String eventId) {
+		Entry entry = events.get(eventId);
+		return entry == null ? null : entry.service;
+	}
+
+	/**
+	 * Returns the ids of the registered events
+	 *
+	 * @return unmodifiable view of the event ids
+	 */
+	public Set<String> getEventIds() {
+		return Collections.unmodifiableSet(events.keySet());
+	}
+
+	/**
+	 * Returns the number of shards
+	 *
+	 * @return number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns the shard owning an event
+	 *
+	 * @param eventId
+	 *            id of the event
+	 * @return index of the shard, -1 if the event is not registered
+	 */
+	public int getShard(String eventId) {
+		Entry entry = events.get(eventId);
+		return entry == null ? -1 : entry.shard;
+	}
+
+	/**
+	 * Returns the current load of every shard
+	 *
+	 * @return a load report per shard, in shard order
+	 */
+	public List<ShardLoad> getShardLoads() {
+		int[] eventCounts = new int[shards.length];
+		String[] hottestEvents = new String[shards.length];
+		long[] hottestCommands = new long[shards.length];
+		for (Entry entry : events.values()) {
+			eventCounts[entry.shard]++;
+			long commands = entry.service.getCommandCount();
+			if (hottestEvents[entry.shard] == null || commands > hottestCommands[entry.shard]) {
+				hottestEvents[entry.shard] = entry.eventId;
+				hottestCommands[entry.shard] = commands;
+			}
+		}
+		List<ShardLoad> loads = new ArrayList<ShardLoad>(shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			loads.add(new ShardLoad(i, eventCounts[i], shards[i].getQueueDepth(), shards[i].getCompletedCommands(),
+					hottestEvents[i], hottestCommands[i]));
+		}
+		return loads;
+	}
+
+	/**
+	 * Stops the shards once the commands already published are applied and
+	 * closes the change feeds of the events
+	 */
+	public void shutdown() {
+		for (Entry entry : events.values()) {
+			entry.event.closeChangeFeed();
+		}
+		for (CommandLoop shard : shards) {
+			shard.shutdown();
+		}
+	}
+
+	private static final class Entry {
+		private final String eventId;
+		private final EventTicketService event;
+		private final EventLoopTicketService service;
+		private final int shard;
+
+		private Entry(String eventId, EventTicketService event, EventLoopTicketService service, int shard) {
+			this.eventId = eventId;
+			this.event = event;
+			this.service = service;
+			this.shard = shard;
+		}
+	}
+
+	/**
+	 * Load of a shard at the time it was reported
+	 */
+	public static class ShardLoad {
+		private final int shard;
+		private final int eventCount;
+		private final int queueDepth;
+		private final long completedCommands;
+		private final String hottestEvent;
+		private final long hottestEventCommands;
+
+		ShardLoad(int shard, int eventCount, int queueDepth, long completedCommands, String hottestEvent,
+				long hottestEventCommands) {
+			this.shard = shard;
+			this.eventCount = eventCount;
+			this.queueDepth = queueDepth;
+			this.completedCommands = completedCommands;
+			this.hottestEvent = hottestEvent;
+			this.hottestEventCommands = hottestEventCommands;
+		}
+
+		public int getShard() {
+			return shard;
+		}
+
+		public int getEventCount() {
+			return eventCount;
+		}
+
+		/**
+		 * Returns the number of commands waiting in the shard
+		 *
+		 * @return queued commands
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		/**
+		 * Returns the number of commands applied by the shard since it started
+		 *
+		 * @return applied commands
+		 */
+		public long getCompletedCommands() {
+			return completedCommands;
+		}
+
+		/**
+		 * Returns the event of the shard with the most commands
+		 *
+		 * @return id of the event, null if the shard has no events
+		 */
+		public String getHottestEvent() {
+			return hottestEvent;
+		}
+
+		public long getHottestEventCommands() {
+			return hottestEventCommands;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Shard %d: %d events, %d queued, %d applied, hottest %s (%d commands)", shard,
+					eventCount, queueDepth, completedCommands, hottestEvent, hottestEventCommands);
+		}
+	}
+}
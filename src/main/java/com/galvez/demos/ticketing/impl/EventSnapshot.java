@@ -0,0 +1,479 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.galvez.demos.ticketing.EventType;
+import com.galvez.demos.ticketing.SeatHold;
+import com.galvez.demos.ticketing.Ticket;
+import com.galvez.demos.ticketing.TicketStatus;
+
+/**
+ * Versioned binary snapshot of a whole event: its layout, the status of every
+ * seat, the open holds with the time they have left and the confirmations.
+ * The seats are written as flat arrays, so loading a snapshot is a handful of
+ * bulk reads into a {@link CompactVenue} instead of one object per seat.
+ * <p>
+ * A snapshot is taken while the event keeps selling, locking one row at a
+ * time, so it is consistent per row only. Loading reconciles it: the seats of
+ * a confirmation are sold, holds whose seats are not all reserved are dropped
+ * and reserved seats without a hold are made available again.
+ * <p>
+ * The ranking of an event created from a {@link VenueLayout} (its rows by
+ * quality and the best block of every row) is saved with it, and an event
+ * can be loaded back into the template it shared with other events.
+ */
+public final class EventSnapshot {
+
+	// "TKSN"
+	private static final int MAGIC = 0x544B534E;
+	private static final int VERSION = 3;
+	private static final byte AVAILABLE = (byte) TicketStatus.AVAILABLE.ordinal();
+	private static final byte RESERVED = (byte) TicketStatus.RESERVED.ordinal();
+	private static final byte SOLD = (byte) TicketStatus.SOLD.ordinal();
+
+	private EventSnapshot() {
+	}
+
+	/**
+	 * Writes a snapshot of an event. The file is replaced atomically once the
+	 * snapshot is on disk, so a crash leaves either the old or the new snapshot.
+	 *
+	 * @param event
+	 *            event to save, it can keep selling while it is saved
+	 * @param file
+	 *            file of the snapshot
+	 * @throws IOException
+	 *             if the snapshot can't be written
+	 */
+	public static void write(EventTicketService event, Path file) throws IOException {
+		VenueTemplate template = event.getTemplate();
+		boolean ranked = template != null && template.isRanked();
+		List<TicketRow> rows = event.getRows();
+		String[] rowIds;
+		int[] rowStart;
+		int[] seatNumbers;
+		byte[] priceTiers;
+		double[] tierPrices;
+		byte[] states;
+		if (template != null) {
+			// The seats of a compact venue are copied from its arrays, with no Ticket per seat
+			Map<String, TicketRow> rowsById = new HashMap<String, TicketRow>();
+			for (TicketRow row : rows) {
+				rowsById.put(row.getRowId(), row);
+			}
+			rowIds = new String[template.getRowCount()];
+			rowStart = new int[rowIds.length + 1];
+			int seatCount = template.getSeatCount();
+			seatNumbers = new int[seatCount];
+			priceTiers = new byte[seatCount];
+			states = new byte[seatCount];
+			for (int row = 0; row < rowIds.length; row++) {
+				rowIds[row] = template.getRowId(row);
+				rowStart[row + 1] = rowStart[row] + template.getRowSeatCount(row);
+				// The ranking refers to the rows in the order of the template
+				rowsById.get(rowIds[row]).copyStates(states, rowStart[row]);
+			}
+			for (int seat = 0; seat < seatCount; seat++) {
+				seatNumbers[seat] = template.getSeatNumber(seat);
+				priceTiers[seat] = (byte) template.getPriceTier(seat);
+			}
+			tierPrices = template.getTierPrices();
+		} else {
+			rowIds = new String[rows.size()];
+			rowStart = new int[rows.size() + 1];
+			List<Ticket[]> rowSeats = new ArrayList<Ticket[]>(rows.size());
+			for (int row = 0; row < rowIds.length; row++) {
+				Ticket[] seats = rows.get(row).getSeats();
+				rowIds[row] = rows.get(row).getRowId();
+				rowSeats.add(seats);
+				rowStart[row + 1] = rowStart[row] + seats.length;
+			}
+			int seatCount = rowStart[rowIds.length];
+			seatNumbers = new int[seatCount];
+			priceTiers = new byte[seatCount];
+			states = new byte[seatCount];
+			Map<Double, Integer> tiers = new LinkedHashMap<Double, Integer>();
+			for (int row = 0; row < rowIds.length; row++) {
+				Ticket[] seats = rowSeats.get(row);
+				for (int i = 0; i < seats.length; i++) {
+					int seat = rowStart[row] + i;
+					seatNumbers[seat] = seats[i].getSeatNumber();
+					states[seat] = (byte) seats[i].getStatus().ordinal();
+					Integer tier = tiers.get(seats[i].getTicketPrice());
+					if (tier == null) {
+						if (tiers.size() == 256) {
+							throw new IOException("An event with more than 256 prices can't be saved");
+						}
+						tier = tiers.size();
+						tiers.put(seats[i].getTicketPrice(), tier);
+					}
+					priceTiers[seat] = (byte) tier.intValue();
+				}
+			}
+			tierPrices = new double[tiers.size()];
+			int tier = 0;
+			for (Double price : tiers.keySet()) {
+				tierPrices[tier++] = price;
+			}
+		}
+		int seatCount = seatNumbers.length;
+		Map<String, Integer> rowNumbers = new HashMap<String, Integer>();
+		for (int row = 0; row < rowIds.length; row++) {
+			rowNumbers.put(rowIds[row], row);
+		}
+
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(temporary.toFile());
+		try {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16),
+					new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, event.getEventName());
+			out.writeLong(event.getEventDate().getTime());
+			writeString(out, event.getEventType().name());
+			out.writeLong(event.getHoldTimeout());
+			out.writeInt(rowIds.length);
+			out.writeInt(seatCount);
+			out.writeInt(tierPrices.length);
+			for (String rowId : rowIds) {
+				writeString(out, rowId);
+			}
+			ByteBuffer ints = ByteBuffer.allocate(4 * (rowStart.length + seatCount));
+			ints.asIntBuffer().put(rowStart).put(seatNumbers);
+			out.write(ints.array());
+			out.write(priceTiers);
+			ByteBuffer prices = ByteBuffer.allocate(8 * tierPrices.length);
+			prices.asDoubleBuffer().put(tierPrices);
+			out.write(prices.array());
+			out.write(states);
+			out.writeBoolean(ranked);
+			if (ranked) {
+				for (int rank = 0; rank < rowIds.length; rank++) {
+					out.writeInt(template.getRowByQuality(rank));
+				}
+				for (int row = 0; row < rowIds.length; row++) {
+					int[] starts = template.getBestStarts(row);
+					out.writeInt(starts == null ? -1 : starts.length);
+					if (starts != null) {
+						for (int start : starts) {
+							out.writeInt(start);
+						}
+					}
+				}
+			}
+
+			List<SeatHoldImpl> holds = new ArrayList<SeatHoldImpl>();
+			List<Long> remainingTimes = new ArrayList<Long>();
+			for (SeatHold hold : event.getSeatHolds()) {
+				if (hold instanceof SeatHoldImpl) {
+					SeatHoldImpl seatHold = (SeatHoldImpl) hold;
+					long remainingTime = seatHold.getRemainingTime();
+					if (seatHold.isHeld() && remainingTime > 0) {
+						holds.add(seatHold);
+						remainingTimes.add(remainingTime);
+					}
+				}
+			}
+			out.writeInt(holds.size());
+			for (int i = 0; i < holds.size(); i++) {
+				SeatHoldImpl hold = holds.get(i);
+				out.writeLong(hold.getSeatHoldId());
+				writeString(out, hold.getCustomerEmail());
+				out.writeLong(remainingTimes.get(i));
+				writeSeats(out, hold.getTickets(), rowNumbers, rowStart, seatNumbers);
+			}
+			List<ConfirmedTickets> confirmations = new ArrayList<ConfirmedTickets>(event.getConfirmedTickets());
+			out.writeInt(confirmations.size());
+			for (ConfirmedTickets confirmation : confirmations) {
+				writeString(out, confirmation.getConfirmationCode());
+				writeString(out, confirmation.getConfirmationEmail());
+				writeSeats(out, confirmation.getTickets(), rowNumbers, rowStart, seatNumbers);
+			}
+			out.flush();
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads an event from a snapshot. The seats of the event are kept in a
+	 * CompactVenue whatever the layout of the saved event, and the open holds get
+	 * the time they had left when the snapshot was taken.
+	 *
+	 * @param file
+	 *            file of the snapshot
+	 * @return the event, ready to sell
+	 * @throws IOException
+	 *             if the snapshot can't be read or is corrupt
+	 */
+	public static EventTicketService read(Path file) throws IOException {
+		return read(file, null);
+	}
+
+	/**
+	 * Loads an event from a snapshot into the template it was created from, so
+	 * the event shares the template with the other events held in the venue
+	 * again and only the status of its seats is allocated.
+	 *
+	 * @param file
+	 *            file of the snapshot
+	 * @param template
+	 *            template of the saved event, null to build one from the
+	 *            snapshot
+	 * @return the event, ready to sell
+	 * @throws IOException
+	 *             if the snapshot can't be read, is corrupt or its seats or
+	 *             ranking are not the ones of the template
+	 */
+	public static EventTicketService read(Path file, VenueTemplate template) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		if (buffer.limit() < 12) {
+			throw new IOException("The snapshot is truncated");
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(buffer.array(), 0, buffer.limit() - 4);
+		if (buffer.getInt(buffer.limit() - 4) != (int) checksum.getValue()) {
+			throw new IOException("The snapshot is corrupt");
+		}
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException("The file is not an event snapshot");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported snapshot version " + version);
+		}
+		String eventName = readString(buffer);
+		Date eventDate = new Date(buffer.getLong());
+		EventType eventType = EventType.valueOf(readString(buffer));
+		long holdTimeout = buffer.getLong();
+		int rowCount = buffer.getInt();
+		int seatCount = buffer.getInt();
+		int tierCount = buffer.getInt();
+		String[] rowIds = new String[rowCount];
+		for (int row = 0; row < rowCount; row++) {
+			rowIds[row] = readString(buffer);
+		}
+		int[] rowStart = new int[rowCount + 1];
+		int[] seatNumbers = new int[seatCount];
+		buffer.asIntBuffer().get(rowStart).get(seatNumbers);
+		buffer.position(buffer.position() + 4 * (rowStart.length + seatCount));
+		byte[] priceTiers = new byte[seatCount];
+		buffer.get(priceTiers);
+		double[] tierPrices = new double[tierCount];
+		buffer.asDoubleBuffer().get(tierPrices);
+		buffer.position(buffer.position() + 8 * tierCount);
+		byte[] states = new byte[seatCount];
+		buffer.get(states);
+		int[] rowsByQuality = null;
+		int[][] bestStarts = null;
+		if (buffer.get() != 0) {
+			rowsByQuality = readRanking(buffer, rowCount);
+			bestStarts = readBestStarts(buffer, rowStart);
+		}
+
+		int holdCount = buffer.getInt();
+		long[] holdIds = new long[holdCount];
+		String[] holdEmails = new String[holdCount];
+		long[] remainingTimes = new long[holdCount];
+		int[][] holdSeats = new int[holdCount][];
+		for (int i = 0; i < holdCount; i++) {
+			holdIds[i] = buffer.getLong();
+			holdEmails[i] = readString(buffer);
+			remainingTimes[i] = buffer.getLong();
+			holdSeats[i] = readSeats(buffer, seatCount);
+		}
+		int confirmationCount = buffer.getInt();
+		String[] codes = new String[confirmationCount];
+		String[] confirmationEmails = new String[confirmationCount];
+		int[][] confirmationSeats = new int[confirmationCount][];
+		for (int i = 0; i < confirmationCount; i++) {
+			codes[i] = readString(buffer);
+			confirmationEmails[i] = readString(buffer);
+			confirmationSeats[i] = readSeats(buffer, seatCount);
+		}
+
+		// Confirmations win, then holds keep the seats that are still reserved
+		for (int[] seats : confirmationSeats) {
+			for (int seat : seats) {
+				states[seat] = SOLD;
+			}
+		}
+		boolean[] held = new boolean[seatCount];
+		boolean[] validHolds = new boolean[holdCount];
+		for (int i = 0; i < holdCount; i++) {
+			validHolds[i] = true;
+			for (int seat : holdSeats[i]) {
+				if (states[seat] != RESERVED || held[seat]) {
+					validHolds[i] = false;
+				}
+			}
+			if (validHolds[i]) {
+				for (int seat : holdSeats[i]) {
+					held[seat] = true;
+				}
+			}
+		}
+		for (int seat = 0; seat < seatCount; seat++) {
+			if (states[seat] == RESERVED && !held[seat]) {
+				states[seat] = AVAILABLE;
+			}
+		}
+
+		if (template == null) {
+			double[] rowQuality = null;
+			if (rowsByQuality != null) {
+				// Any score keeping the order of the ranking will do
+				rowQuality = new double[rowCount];
+				for (int rank = 0; rank < rowCount; rank++) {
+					rowQuality[rowsByQuality[rank]] = rowCount - rank;
+				}
+			}
+			template = new VenueTemplate(rowIds, rowStart, seatNumbers, priceTiers, tierPrices, rowQuality,
+					bestStarts);
+		} else {
+			checkTemplate(template, rowIds, rowStart, seatNumbers, priceTiers, tierPrices, rowsByQuality);
+		}
+		CompactVenue venue = new CompactVenue(template, states);
+		EventTicketService event = new EventTicketService(eventName, eventDate, eventType, venue);
+		event.setHoldTimeout(holdTimeout);
+		for (int i = 0; i < holdCount; i++) {
+			if (validHolds[i]) {
+				event.restoreHold(holdIds[i], getTickets(venue, holdSeats[i]), holdEmails[i], remainingTimes[i]);
+			}
+		}
+		for (int i = 0; i < confirmationCount; i++) {
+			event.restoreConfirmation(
+					new ConfirmedTickets(codes[i], confirmationEmails[i], getTickets(venue, confirmationSeats[i])));
+		}
+		return event;
+	}
+
+	private static int[] readRanking(ByteBuffer buffer, int rowCount) throws IOException {
+		int[] rowsByQuality = new int[rowCount];
+		buffer.asIntBuffer().get(rowsByQuality);
+		buffer.position(buffer.position() + 4 * rowCount);
+		boolean[] ranked = new boolean[rowCount];
+		for (int row : rowsByQuality) {
+			if (row < 0 || row >= rowCount || ranked[row]) {
+				throw new IOException("The ranking of the rows in the snapshot is corrupt");
+			}
+			ranked[row] = true;
+		}
+		return rowsByQuality;
+	}
+
+	private static int[][] readBestStarts(ByteBuffer buffer, int[] rowStart) throws IOException {
+		int[][] bestStarts = new int[rowStart.length - 1][];
+		for (int row = 0; row < bestStarts.length; row++) {
+			int length = buffer.getInt();
+			if (length < 0) {
+				continue;
+			}
+			int seats = rowStart[row + 1] - rowStart[row];
+			if (length != seats + 1) {
+				throw new IOException("The best blocks of a row in the snapshot are corrupt");
+			}
+			int[] starts = new int[length];
+			buffer.asIntBuffer().get(starts);
+			buffer.position(buffer.position() + 4 * length);
+			for (int size = 1; size < length; size++) {
+				if (starts[size] < 0 || starts[size] > seats - size) {
+					throw new IOException("The best blocks of a row in the snapshot are corrupt");
+				}
+			}
+			bestStarts[row] = starts;
+		}
+		return bestStarts;
+	}
+
+	// The snapshot must have been taken from an event of the template
+	private static void checkTemplate(VenueTemplate template, String[] rowIds, int[] rowStart, int[] seatNumbers,
+			byte[] priceTiers, double[] tierPrices, int[] rowsByQuality) throws IOException {
+		if (template.getRowCount() != rowIds.length || template.getSeatCount() != seatNumbers.length
+				|| template.isRanked() != (rowsByQuality != null)) {
+			throw new IOException("The snapshot was not taken from an event of the template");
+		}
+		for (int row = 0; row < rowIds.length; row++) {
+			if (!template.getRowId(row).equals(rowIds[row]) || template.getRowStart(row) != rowStart[row]
+					|| (rowsByQuality != null && template.getRowByQuality(row) != rowsByQuality[row])) {
+				throw new IOException("The snapshot was not taken from an event of the template");
+			}
+		}
+		for (int seat = 0; seat < seatNumbers.length; seat++) {
+			if (template.getSeatNumber(seat) != seatNumbers[seat] || (priceTiers[seat] & 0xFF) >= tierPrices.length
+					|| template.getPrice(seat) != tierPrices[priceTiers[seat] & 0xFF]) {
+				throw new IOException("The snapshot was not taken from an event of the template");
+			}
+		}
+	}
+
+	private static List<Ticket> getTickets(CompactVenue venue, int[] seats) {
+		List<Ticket> tickets = new ArrayList<Ticket>(seats.length);
+		for (int seat : seats) {
+			tickets.add(venue.getTicket(seat));
+		}
+		return tickets;
+	}
+
+	// Seats are written as their index in the seat arrays
+	private static void writeSeats(DataOutputStream out, List<Ticket> tickets, Map<String, Integer> rowNumbers,
+			int[] rowStart, int[] seatNumbers) throws IOException {
+		out.writeInt(tickets.size());
+		for (Ticket ticket : tickets) {
+			Integer row = rowNumbers.get(ticket.getSeatRow());
+			int seat = row == null ? -1
+					: Arrays.binarySearch(seatNumbers, rowStart[row], rowStart[row + 1], ticket.getSeatNumber());
+			if (seat < 0) {
+				throw new IllegalStateException(ticket + " is not a seat of the event");
+			}
+			out.writeInt(seat);
+		}
+	}
+
+	private static int[] readSeats(ByteBuffer buffer, int seatCount) throws IOException {
+		int[] seats = new int[buffer.getInt()];
+		buffer.asIntBuffer().get(seats);
+		buffer.position(buffer.position() + 4 * seats.length);
+		for (int seat : seats) {
+			if (seat < 0 || seat >= seatCount) {
+				throw new IOException("The snapshot refers to an unknown seat");
+			}
+		}
+		return seats;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -1,24 +1,51 @@
 package com.galvez.demos.ticketing.impl;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.galvez.demos.ticketing.Event;
 import com.galvez.demos.ticketing.EventType;
+import com.galvez.demos.ticketing.HoldRequest;
+import com.galvez.demos.ticketing.HoldResult;
+import com.galvez.demos.ticketing.SeatAllocation;
 import com.galvez.demos.ticketing.SeatHold;
+import com.galvez.demos.ticketing.SeatMap;
 import com.galvez.demos.ticketing.Ticket;
 import com.galvez.demos.ticketing.TicketService;
+import com.galvez.demos.ticketing.TicketStatus;
 import com.galvez.demos.ticketing.TicketStatusListener;
 import com.galvez.demos.ticketing.exceptions.TicketException;
 import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
 
 /**
  * EventTicketService represents an event with the ability to reserve and sell
- * tickets for the event
+ * tickets for the event.
+ * <p>
+ * The service is thread safe and has no global lock. Seats are claimed by
+ * clearing their availability bit while holding the monitor of their
+ * {@link TicketRow}, so requests for different rows run in parallel. That
+ * claim is the point where a hold takes effect: a seat can only be claimed by
+ * one hold until it is released back to its row, so no seat is ever held or
+ * sold twice. The number of seats available is a counter updated after each
+ * claim and release, so while holds are in flight it may briefly lag the rows.
+ * <p>
+ * When an {@link EventJournal} is set, holds, confirmations and releases are
+ * recorded in it and a confirmation code is only returned once its record is
+ * on disk.
  * 
  * @author jgalve
  *
@@ -33,11 +60,77 @@ public class EventTicketService implements TicketService, Event, TicketStatusLis
 
 	private Map<String, TicketRow> availableTickets;
 
-	private Map<Integer, SeatHold> reservedTickets;
+	// Rows sorted by quality, built when the first seats are requested
+	private volatile RowIndex rowIndex;
 
-	private Map<String, ConfirmedTickets> purchasedTickets;
+	// Rows of an event created from a layout by quality and by position, null
+	// to rank the rows by id
+	private List<TicketRow> rowsByQuality;
+	private List<TicketRow> rowsByPosition;
 
-	private int totalTicketsAvailable;
+	// Template of the seats of a compact venue, null for TicketImpl seats
+	private VenueTemplate template;
+
+	// How the seats of a party are picked within a row
+	private SeatAllocation seatAllocation = SeatAllocation.CENTER;
+
+	// Rows a party too large for any row can be split over, 1 to never split
+	private volatile int maxRowsPerParty = 1;
+
+	// Open holds, removed when they are purchased or released
+	private HoldRegistry<SeatHold> reservedTickets;
+
+	// Ids of the holds of the event, unique in the JVM
+	private HoldIds holdIds;
+
+	// Purchases by confirmation code, customer, seat and hold
+	private PurchaseLedger purchasedTickets;
+
+	private LongAdder totalTicketsAvailable;
+
+	// Time in milliseconds a customer has to purchase the held tickets
+	private long holdTimeout = SeatHoldImpl.DEFAULT_RELEASE_TIMEOUT;
+
+	private HoldExpirationScheduler expirationScheduler = HoldExpirationScheduler.getDefault();
+
+	// Executor releasing expired holds, null to release them on the scheduler thread
+	private Executor expirationExecutor;
+
+	// Journal recording the sales, null to keep them in memory only
+	private volatile EventJournal journal;
+
+	private final TicketMetrics metrics = new TicketMetrics(this);
+
+	// Grows after a row publishes a new view of its seats
+	private final AtomicLong seatMapVersion = new AtomicLong();
+
+	// Latest seat map handed out, rebuilt from the views of the rows
+	private final AtomicReference<SeatMap> seatMap = new AtomicReference<SeatMap>();
+
+	// Rows sorted by row id, they don't change once the event is created
+	private volatile TicketRow[] sortedRows;
+
+	// Feed of the seat changes, created for the first subscriber
+	private SeatChangeFeed changeFeed;
+
+	// Forgets the holds released without being purchased and records them
+	private HoldReleaseListener releaseListener = new HoldReleaseListener() {
+		public void holdReleased(SeatHoldImpl hold) {
+			reservedTickets.remove(hold.getSeatHoldId());
+			if (hold.isTimedOut()) {
+				// Holds given back by a failed purchase were counted as failed purchases
+				metrics.holdExpired();
+			}
+			EventJournal current = journal;
+			if (current != null) {
+				try {
+					current.recordRelease(hold.getSeatHoldId());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	};
 
 	/**
 	 * Creates a new Event
@@ -53,9 +146,11 @@ public class EventTicketService implements TicketService, Event, TicketStatusLis
 		this.eventDate = eventDate;
 		this.eventName = eventName;
 		this.eventType = eventType;
-		availableTickets = new HashMap<String, TicketRow>();
-		reservedTickets = new HashMap<Integer, SeatHold>();
-		purchasedTickets = new HashMap<String, ConfirmedTickets>();
+		availableTickets = new ConcurrentHashMap<String, TicketRow>();
+		reservedTickets = new HoldRegistry<SeatHold>();
+		holdIds = new HoldIds();
+		purchasedTickets = new PurchaseLedger();
+		totalTicketsAvailable = new LongAdder();
 	}
 
 	/**
@@ -72,13 +167,9 @@ public class EventTicketService implements TicketService, Event, TicketStatusLis
 	 */
 	public EventTicketService(String eventName, Date eventDate, EventType eventType, List<Ticket> tickets) {
 		this(eventName, eventDate, eventType);
-		Map<String, TicketRow> availableTickets = new HashMap<String, TicketRow>();
-
 		for (Ticket ticket : tickets) {
 			addTicket(ticket);
 		}
-
-		this.availableTickets = availableTickets;
 	}
 
 	/**
@@ -97,7 +188,9 @@ public class EventTicketService implements TicketService, Event, TicketStatusLis
 			Map<String, TicketRow> availableTickets) {
 		this(eventName, eventDate, eventType);
 		this.availableTickets = availableTickets;
-		totalTicketsAvailable = availableTickets.size();
+		for (TicketRow row : availableTickets.values()) {
+			totalTicketsAvailable.add(row.getAvailableSeats());
+		}
 	}
 
 	/**
@@ -128,15 +221,94 @@ public class EventTicketService implements TicketService, Event, TicketStatusLis
 		}
 	}
 
+	/**
+	 * Creates a new event over a compact venue. The seats stay in the arrays of
+	 * the venue and Ticket objects are only created for the seats that are held,
+	 * which takes a fraction of the memory of one Ticket per seat.
+	 * 
+	 * @param eventName
+	 *            Name for the event
+	 * @param eventDate
+	 *            Date when the event will happen
+	 * @param eventType
+	 *            Type of the event, either Screen or Stage based
+	 * @param venue
+	 *            seats that will be available for this event
+	 */
+	public EventTicketService(String eventName, Date eventDate, EventType eventType, CompactVenue venue) {
+		this(eventName, eventDate, eventType);
+		template = venue.getTemplate();
+		TicketRow[] rows = new TicketRow[venue.getRowCount()];
+		for (int row = 0; row < rows.length; row++) {
+			rows[row] = new TicketRow(venue, row);
+			rows[row].setEventName(eventName);
+			availableTickets.put(rows[row].getRowId(), rows[row]);
+			totalTicketsAvailable.add(rows[row].getAvailableSeats());
+		}
+		if (template.isRanked()) {
+			rowsByPosition = Arrays.asList(rows);
+			rowsByQuality = new ArrayList<TicketRow>(rows.length);
+			for (int rank = 0; rank < rows.length; rank++) {
+				rowsByQuality.add(rows[template.getRowByQuality(rank)]);
+			}
+		}
+	}
+
+	/**
+	 * Creates a new event in a venue template shared with other events. Only
+	 * the status of the seats and the rows of the event are allocated, the
+	 * rows, seat numbers, prices and ranking are read from the template.
+	 * 
+	 * @param eventName
+	 *            Name for the event
+	 * @param eventDate
+	 *            Date when the event will happen
+	 * @param eventType
+	 *            Type of the event, either Screen or Stage based
+	 * @param template
+	 *            seats of the venue, every seat is available for this event
+	 */
+	public EventTicketService(String eventName, Date eventDate, EventType eventType, VenueTemplate template) {
+		this(eventName, eventDate, eventType, new CompactVenue(template));
+	}
+
+	/**
+	 * Creates a new event over a venue layout. Rows are ranked by their best seat
+	 * and the seats of a party are the block closest to the best block of its
+	 * size in the row, both worked out from the scores of the seats when the
+	 * event is created. The type of the event doesn't change the ranking. The
+	 * seats are stored in a CompactVenue. To hold many events in the same venue
+	 * the layout should be compiled once with
+	 * {@link VenueLayout#createTemplate(double)} instead.
+	 * 
+	 * @param eventName
+	 *            Name for the event
+	 * @param eventDate
+	 *            Date when the event will happen
+	 * @param eventType
+	 *            Type of the event, either Screen or Stage based
+	 * @param layout
+	 *            seats of the venue and their scores
+	 * @param price
+	 *            Default price for the tickets
+	 */
+	public EventTicketService(String eventName, Date eventDate, EventType eventType, VenueLayout layout,
+			double price) {
+		this(eventName, eventDate, eventType, layout.createTemplate(price));
+	}
+
 	private void addTicket(Ticket ticket) {
 		TicketRow row = availableTickets.get(ticket.getSeatRow());
 		if (row == null) {
 			row = new TicketRow(ticket.getSeatRow());
+			row.setEventName(eventName);
+			row.setSeatAllocation(seatAllocation);
 			availableTickets.put(row.getRowId(), row);
+			rowIndex = null;
 		}
 		try {
 			row.addSeat(ticket);
-			totalTicketsAvailable++;
+			totalTicketsAvailable.increment();
 		} catch (TicketException e) {
 			// This shouldn't happen given that we are checking for this
 			throw new RuntimeException(e);
@@ -144,70 +316,453 @@ public class EventTicketService implements TicketService, Event, TicketStatusLis
 	}
 
 	public int numSeatsAvailable() {
-		return totalTicketsAvailable;
+		return totalTicketsAvailable.intValue();
 	}
 
 	public SeatHold findAndHoldSeats(int numSeats, String customerEmail) throws TicketUnavailableException {
+		if (numSeats <= 0) {
+			throw new IllegalArgumentException("The number of seats must be positive");
+		}
+		long start = metrics.start();
+		HoldFlightEvent flight = new HoldFlightEvent();
+		flight.begin();
+		try {
+			SeatHold hold = holdBestSeats(numSeats, customerEmail, flight);
+			metrics.holdSucceeded(start, numSeats);
+			commitHold(flight, numSeats, HoldFlightEvent.HELD, hold.getSeatHoldId());
+			return hold;
+		} catch (TicketUnavailableException ex) {
+			metrics.holdFailed(start, numSeats);
+			commitHold(flight, numSeats, HoldFlightEvent.UNAVAILABLE, -1L);
+			throw ex;
+		}
+	}
+
+	// Records the hold request if a flight recording asks for it
+	private void commitHold(HoldFlightEvent flight, int numSeats, String outcome, long holdId) {
+		flight.end();
+		if (flight.shouldCommit()) {
+			flight.eventName = eventName;
+			flight.seatsRequested = numSeats;
+			flight.outcome = outcome;
+			flight.holdId = holdId;
+			flight.commit();
+		}
+	}
+
+	// Holds the best seats together for a customer, counting the rows tried
+	private SeatHold holdBestSeats(int numSeats, String customerEmail, HoldFlightEvent flight)
+			throws TicketUnavailableException {
 		// First make sure we have enough tickets available
 		if (numSeats > numSeatsAvailable()) {
 			throw new TicketUnavailableException("There are not enough tickets available");
 		}
 
-		/*
-		 * When the event is a screen based (Movie) then the worst seats are in the
-		 * front while in a stage based the best seats are in the front
-		 */
-		TreeSet<String> sortedKeys = new TreeSet<String>(availableTickets.keySet());
-		Iterator<String> iterator;
-		if (getEventType() == EventType.SCREEN) {
-			iterator = sortedKeys.descendingIterator();
-		} else {
-			iterator = sortedKeys.iterator();
-		}
-
-		// We'll now iterate through the rows finding the best seats in the best row
-		List<Ticket> tickets = null;
-		while (iterator.hasNext()) {
-			String section = iterator.next();
-			TicketRow ticketRow = availableTickets.get(section);
-			if (ticketRow.getMaxContiguousTickets() >= numSeats) {
+		// We'll now ask the index for the best row with enough seats together
+		RowIndex index = getRowIndex();
+		int rank;
+		while ((rank = index.findBestRow(numSeats)) >= 0) {
+			flight.rowsScanned++;
+			SeatHoldImpl hold = holdSeats(index.getRow(rank), numSeats, customerEmail);
+			if (hold != null) {
+				return recordOrUndo(hold);
+			}
+		}
+
+		// No row has room for the whole party, try to split it over adjacent rows
+		SeatHold hold = holdSplitParty(index, numSeats, customerEmail, flight);
+		if (hold != null) {
+			return hold;
+		}
+
+		// We didn't find tickets in any row
+		throw new TicketUnavailableException("There are not enough tickets available");
+	}
+
+	/**
+	 * Holds the best block of seats over adjacent rows for a party, if parties
+	 * can be split
+	 * 
+	 * @param index
+	 *            rows of the event
+	 * @param numSeats
+	 *            the number of seats to hold
+	 * @param customerEmail
+	 *            customer holding the seats
+	 * @param flight
+	 *            event counting the rows tried, null if there is none
+	 * @return the SeatHold, null if no rows can seat the party together
+	 * @throws TicketUnavailableException
+	 *             if the seats couldn't be reserved
+	 */
+	private SeatHold holdSplitParty(RowIndex index, int numSeats, String customerEmail, HoldFlightEvent flight)
+			throws TicketUnavailableException {
+		int maxRows = maxRowsPerParty;
+		if (maxRows <= 1 || numSeats > numSeatsAvailable()) {
+			return null;
+		}
+		BlockIndex blocks = index.getBlockIndex();
+		BlockIndex.Block block;
+		while ((block = blocks.findBlock(numSeats, maxRows)) != null) {
+			if (flight != null) {
+				flight.rowsScanned += block.getRowCount();
+			}
+			List<Ticket> tickets = takeBlock(block);
+			if (tickets != null) {
+				return holdTickets(tickets, customerEmail);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Takes the seats of a block out of its rows, one row at a time so no two
+	 * rows are ever locked together
+	 * 
+	 * @return the tickets, null if some row no longer had the seats, then the
+	 *         seats taken from the other rows are given back
+	 */
+	private List<Ticket> takeBlock(BlockIndex.Block block) {
+		List<Ticket> tickets = new ArrayList<Ticket>();
+		for (int i = 0; i < block.getRowCount(); i++) {
+			TicketRow row = block.getRow(i);
+			try {
+				tickets.addAll(row.getTickets(block.getStart(i), block.getSeats(i)));
+			} catch (TicketUnavailableException ex) {
+				// The index was behind the row, the row queued itself to be read again
+				metrics.staleIndexRead();
+				for (Ticket ticket : tickets) {
+					availableTickets.get(ticket.getSeatRow()).updateSeat(ticket);
+				}
+				if (!tickets.isEmpty()) {
+					seatMapVersion.incrementAndGet();
+				}
+				return null;
+			}
+		}
+		return tickets;
+	}
+
+	/**
+	 * Holds the seats of every request in one pass over the rows. While the next
+	 * request is best served from the same row as the previous one, the row stays
+	 * locked, so a burst of requests takes one lock per row instead of one per
+	 * request.
+	 */
+	public List<HoldResult> findAndHoldSeats(List<HoldRequest> requests) {
+		long start = metrics.start();
+		List<HoldResult> results = holdAll(requests);
+		metrics.holdsProcessed(start, requests, results);
+		return results;
+	}
+
+	// Holds the seats of every request, in order
+	private List<HoldResult> holdAll(List<HoldRequest> requests) {
+		List<HoldResult> results = new ArrayList<HoldResult>(requests.size());
+		RowIndex index = getRowIndex();
+		int next = 0;
+		while (next < requests.size()) {
+			HoldRequest request = requests.get(next);
+			if (request.getNumSeats() <= 0) {
+				results.add(HoldResult.failed(new TicketException("The number of seats must be positive")));
+				next++;
+				continue;
+			}
+			int rank = index.findBestRow(request.getNumSeats());
+			if (rank < 0) {
 				try {
-					tickets = ticketRow.getTickets(numSeats);
-					break;
+					SeatHold hold = holdSplitParty(index, request.getNumSeats(), request.getCustomerEmail(), null);
+					results.add(hold != null ? HoldResult.held(hold)
+							: HoldResult.failed(new TicketUnavailableException("There are not enough tickets available")));
 				} catch (TicketUnavailableException ex) {
-					/*
-					 * We shouldn't get here, but if we are running with multiple threads we could.
-					 * In any case we can just move on to the next row
-					 * 
-					 */
+					results.add(HoldResult.failed(ex));
+				} catch (UncheckedIOException e) {
+					results.add(HoldResult.failed(new TicketException("The hold could not be recorded", e.getCause())));
+				}
+				next++;
+				continue;
+			}
+			TicketRow row = index.getRow(rank);
+			int first = results.size();
+			synchronized (row) {
+				// The row publishes every change to the index while it is locked
+				while (next < requests.size() && requests.get(next).getNumSeats() > 0
+						&& index.findBestRow(requests.get(next).getNumSeats()) == rank) {
+					request = requests.get(next);
+					try {
+						SeatHoldImpl hold = holdSeats(row, request.getNumSeats(), request.getCustomerEmail());
+						if (hold == null) {
+							// The index was behind the row, look for another row
+							break;
+						}
+						results.add(HoldResult.held(hold));
+					} catch (TicketUnavailableException ex) {
+						results.add(HoldResult.failed(ex));
+					}
+					next++;
+				}
+			}
+			// The holds are journaled once the row is free again, a failed write only fails its request
+			for (int i = first; i < results.size(); i++) {
+				HoldResult result = results.get(i);
+				if (result.isHeld()) {
+					try {
+						recordHold((SeatHoldImpl) result.getSeatHold());
+					} catch (IOException e) {
+						results.set(i, HoldResult.failed(new TicketException("The hold could not be recorded", e)));
+					}
 				}
 			}
 		}
+		return results;
+	}
 
-		if (tickets == null) {
-			// We didn't find tickets in any row
-			throw new TicketUnavailableException("There are not enough tickets available");
+	/**
+	 * Holds the best seats of a row for a customer
+	 * 
+	 * @param row
+	 *            row to take the seats from
+	 * @param numSeats
+	 *            the number of seats to hold
+	 * @param customerEmail
+	 *            customer holding the seats
+	 * @return the SeatHold, registered but not recorded yet, null if the row no
+	 *         longer has enough seats together
+	 * @throws TicketUnavailableException
+	 *             if the seats couldn't be reserved
+	 */
+	private SeatHoldImpl holdSeats(TicketRow row, int numSeats, String customerEmail) throws TicketUnavailableException {
+		List<Ticket> tickets;
+		try {
+			tickets = row.getTickets(numSeats);
+		} catch (TicketUnavailableException ex) {
+			/*
+			 * Another thread took the seats after we looked at the index. Refresh the row
+			 * in the index so the caller can look again
+			 * 
+			 */
+			metrics.staleIndexRead();
+			row.publishChanges();
+			return null;
 		}
+		return registerHold(tickets, customerEmail);
+	}
+
+	/**
+	 * Holds tickets already taken out of their rows for a customer
+	 * 
+	 * @param tickets
+	 *            tickets taken
+	 * @param customerEmail
+	 *            customer holding the seats
+	 * @return the SeatHold
+	 * @throws TicketUnavailableException
+	 *             if the seats couldn't be reserved, they are given back to their
+	 *             rows
+	 */
+	private SeatHold holdTickets(List<Ticket> tickets, String customerEmail) throws TicketUnavailableException {
+		return recordOrUndo(registerHold(tickets, customerEmail));
+	}
+
+	// Records a registered hold, a hold that can't be recorded fails the request
+	private SeatHold recordOrUndo(SeatHoldImpl hold) {
+		try {
+			recordHold(hold);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return hold;
+	}
 
-		totalTicketsAvailable -= tickets.size();
-		SeatHold hold = new SeatHoldImpl(tickets, customerEmail);
+	/**
+	 * Reserves tickets already taken out of their rows and registers the hold,
+	 * it can't expire until it is recorded
+	 * 
+	 * @param tickets
+	 *            tickets taken
+	 * @param customerEmail
+	 *            customer holding the seats
+	 * @return the hold
+	 * @throws TicketUnavailableException
+	 *             if the seats couldn't be reserved, they are given back to their
+	 *             rows
+	 */
+	private SeatHoldImpl registerHold(List<Ticket> tickets, String customerEmail) throws TicketUnavailableException {
+		totalTicketsAvailable.add(-tickets.size());
+		seatMapVersion.incrementAndGet();
+		SeatHoldImpl hold;
+		try {
+			hold = new SeatHoldImpl(holdIds.nextId(), tickets, customerEmail, eventName);
+		} catch (TicketUnavailableException ex) {
+			// None of the tickets was reserved, give the claimed seats back to their rows
+			for (Ticket ticket : tickets) {
+				if (ticket.getStatus() == TicketStatus.AVAILABLE) {
+					notifyStatusChange(ticket);
+				}
+			}
+			throw ex;
+		}
 		hold.notifyTicketAvailableAgain(this);
 		reservedTickets.put(hold.getSeatHoldId(), hold);
+		hold.notifyHoldReleased(releaseListener);
 		return hold;
 	}
 
-	public String reserveSeats(int seatHoldId, String customerEmail) throws TicketException {
+	/**
+	 * Writes a registered hold to the journal and schedules its expiration. The
+	 * row of the hold must not be locked, the write can take a while.
+	 * 
+	 * @param hold
+	 *            hold returned by {@link #registerHold(List, String)}
+	 * @throws IOException
+	 *             if the hold couldn't be written, then it is undone and its
+	 *             seats are given back to their rows
+	 */
+	private void recordHold(SeatHoldImpl hold) throws IOException {
+		EventJournal current = journal;
+		long timeout = holdTimeout;
+		if (current != null) {
+			try {
+				// Holds are not synced, a hold lost in a crash is lost with its customer
+				current.recordHold(hold.getSeatHoldId(), hold.getCustomerEmail(), hold.getTickets(),
+						System.currentTimeMillis() + timeout);
+			} catch (IOException e) {
+				// The customer won't get the id of a hold that wasn't recorded, give its seats back
+				reservedTickets.remove(hold.getSeatHoldId());
+				hold.cancel();
+				throw e;
+			}
+		}
+		// Only now the hold can expire, it is registered everywhere its release is seen
+		hold.scheduleRelease(timeout, expirationScheduler, expirationExecutor);
+	}
+
+	/**
+	 * Returns the index of rows sorted by quality, building it if the rows
+	 * changed
+	 * 
+	 * @return the row index
+	 */
+	private RowIndex getRowIndex() {
+		RowIndex index = rowIndex;
+		if (index != null) {
+			return index;
+		}
+		synchronized (this) {
+			if (rowIndex != null) {
+				return rowIndex;
+			}
+			if (rowsByQuality != null) {
+				rowIndex = new RowIndex(rowsByQuality, rowsByPosition);
+				return rowIndex;
+			}
+			/*
+			 * When the event is a screen based (Movie) then the worst seats are in the
+			 * front while in a stage based the best seats are in the front
+			 */
+			List<TicketRow> rows = new ArrayList<TicketRow>(new TreeMap<String, TicketRow>(availableTickets).values());
+			if (getEventType() == EventType.SCREEN) {
+				Collections.reverse(rows);
+			}
+			rowIndex = new RowIndex(rows);
+			return rowIndex;
+		}
+	}
+
+	public String reserveSeats(long seatHoldId, String customerEmail) throws TicketException {
+		long start = metrics.start();
+		PurchaseFlightEvent flight = new PurchaseFlightEvent();
+		flight.begin();
+		try {
+			ConfirmedTickets tickets = purchase(seatHoldId, customerEmail);
+			metrics.purchaseSucceeded(start, tickets.getTickets().size());
+			commitPurchase(flight, seatHoldId, tickets.getTickets().size(), PurchaseFlightEvent.PURCHASED);
+			return tickets.getConfirmationCode();
+		} catch (TicketUnavailableException ex) {
+			metrics.purchaseFailed(start);
+			commitPurchase(flight, seatHoldId, 0, PurchaseFlightEvent.UNAVAILABLE);
+			throw ex;
+		} catch (TicketException ex) {
+			metrics.purchaseFailed(start);
+			commitPurchase(flight, seatHoldId, 0, PurchaseFlightEvent.REJECTED);
+			throw ex;
+		}
+	}
+
+	// Records the purchase attempt if a flight recording asks for it
+	private void commitPurchase(PurchaseFlightEvent flight, long seatHoldId, int seats, String outcome) {
+		flight.end();
+		if (flight.shouldCommit()) {
+			flight.eventName = eventName;
+			flight.holdId = seatHoldId;
+			flight.seats = seats;
+			flight.outcome = outcome;
+			flight.commit();
+		}
+	}
+
+	// Purchases the seats of a hold and records the purchase
+	private ConfirmedTickets purchase(long seatHoldId, String customerEmail) throws TicketException {
 		SeatHold heldTickets = reservedTickets.get(seatHoldId);
+		if (heldTickets == null) {
+			if (purchasedTickets.getByHold(seatHoldId) != null) {
+				throw new TicketUnavailableException("The specified tickets are no longer available");
+			}
+			if (holdIds.isIssued(seatHoldId)) {
+				throw new TicketUnavailableException("Reservation has expired");
+			}
+			throw new TicketException("The seat hold does not exist");
+		}
 		String confirmationCode = heldTickets.confirmSeats(customerEmail);
 
 		if (confirmationCode == null) {
 			throw new TicketException("The confirmation code and email do not match");
 		}
 
+		while (!purchasedTickets.reserveCode(confirmationCode)) {
+			// The code is taken by another purchase, codes are random
+			confirmationCode = ConfirmationCodes.next();
+		}
 		ConfirmedTickets tickets = new ConfirmedTickets(confirmationCode, customerEmail, heldTickets.getTickets());
 
-		purchasedTickets.put(confirmationCode, tickets);
-		return confirmationCode;
+		EventJournal current = journal;
+		if (current != null) {
+			try {
+				current.sync(current.recordConfirmation(seatHoldId, confirmationCode, customerEmail,
+						heldTickets.getTickets()));
+			} catch (IOException e) {
+				purchasedTickets.releaseCode(confirmationCode);
+				cancelPurchase(current, seatHoldId, customerEmail, heldTickets, e);
+				throw new TicketException("The purchase could not be recorded", e);
+			}
+		}
+
+		// The code can only be looked up once the purchase is durable
+		purchasedTickets.add(seatHoldId, tickets);
+		reservedTickets.remove(seatHoldId);
+		return tickets;
+	}
+
+	/*
+	 * Puts a hold whose confirmation could not be made durable back as it was
+	 * before the purchase, so it can be purchased again or expire. The
+	 * confirmation may be in the journal anyway, recording the hold again after
+	 * it reopens the hold on replay. The journal has just failed, so that record
+	 * is a best effort.
+	 */
+	private void cancelPurchase(EventJournal current, long seatHoldId, String customerEmail, SeatHold heldTickets,
+			IOException failure) {
+		if (!(heldTickets instanceof SeatHoldImpl) || !((SeatHoldImpl) heldTickets).cancelConfirmation()) {
+			// The tickets can't be reserved again, the seats stay sold without an owner
+			reservedTickets.remove(seatHoldId);
+			return;
+		}
+		try {
+			current.recordHold(seatHoldId, customerEmail, heldTickets.getTickets(),
+					((SeatHoldImpl) heldTickets).getExpirationTime());
+		} catch (IOException e) {
+			failure.addSuppressed(e);
+		}
 	}
 
 	public String getEventName() {
@@ -226,13 +781,453 @@ public class EventTicketService implements TicketService, Event, TicketStatusLis
 		return eventType;
 	}
 
+	/**
+	 * Returns the time a customer has to purchase held tickets before they are
+	 * released
+	 * 
+	 * @return hold timeout in milliseconds
+	 */
+	public long getHoldTimeout() {
+		return holdTimeout;
+	}
+
+	/**
+	 * Sets the time a customer has to purchase held tickets before they are
+	 * released. It only applies to holds created after the change.
+	 * 
+	 * @param holdTimeout
+	 *            hold timeout in milliseconds
+	 */
+	public void setHoldTimeout(long holdTimeout) {
+		if (holdTimeout <= 0) {
+			throw new IllegalArgumentException("Hold timeout must be positive");
+		}
+		this.holdTimeout = holdTimeout;
+	}
+
+	/**
+	 * Returns how the seats of a party are picked within a row
+	 * 
+	 * @return the seat allocation
+	 */
+	public SeatAllocation getSeatAllocation() {
+		return seatAllocation;
+	}
+
+	/**
+	 * Sets how the seats of a party are picked within the best row that can seat
+	 * it. The default, center, takes the seats closest to the middle of the row,
+	 * which late in a sale leaves gaps of one or two seats that no party fits in.
+	 * Best fit takes them from the smallest gap the party fits in, so more of the
+	 * house is sold.
+	 * 
+	 * @param seatAllocation
+	 *            allocation for the requests from now on
+	 */
+	public synchronized void setSeatAllocation(SeatAllocation seatAllocation) {
+		if (seatAllocation == null) {
+			throw new IllegalArgumentException("The seat allocation can't be null");
+		}
+		this.seatAllocation = seatAllocation;
+		for (TicketRow row : availableTickets.values()) {
+			row.setSeatAllocation(seatAllocation);
+		}
+	}
+
+	/**
+	 * Returns the number of adjacent rows a party can be split over
+	 * 
+	 * @return the maximum number of rows per party, 1 if parties are never split
+	 */
+	public int getMaxRowsPerParty() {
+		return maxRowsPerParty;
+	}
+
+	/**
+	 * Sets the number of adjacent rows a party can be split over when no row has
+	 * room for the whole party. The party gets the same seats in every row, the
+	 * last row taking the remainder centered under the others. By default
+	 * parties are never split.
+	 * 
+	 * @param maxRowsPerParty
+	 *            from 1, to never split a party, to 3
+	 */
+	public void setMaxRowsPerParty(int maxRowsPerParty) {
+		if (maxRowsPerParty < 1 || maxRowsPerParty > BlockIndex.MAX_ROWS) {
+			throw new IllegalArgumentException("A party can be split over 1 to " + BlockIndex.MAX_ROWS + " rows");
+		}
+		this.maxRowsPerParty = maxRowsPerParty;
+	}
+
+	/**
+	 * Returns the fraction of the available seats that are in gaps too short for
+	 * the median party, the seats that will be hard to sell
+	 * 
+	 * @return a value from 0 to 1, zero if there are no seats available
+	 */
+	public double getFragmentation() {
+		int partySize = metrics.getMedianPartySize();
+		long available = 0L;
+		long stranded = 0L;
+		for (TicketRow row : availableTickets.values()) {
+			available += row.getAvailableSeats();
+			stranded += row.getSeatsInGapsShorterThan(partySize);
+		}
+		return available == 0L ? 0.0 : (double) stranded / available;
+	}
+
+	/**
+	 * Returns the scheduler releasing the expired holds of this event
+	 * 
+	 * @return the expiration scheduler
+	 */
+	public HoldExpirationScheduler getExpirationScheduler() {
+		return expirationScheduler;
+	}
+
+	/**
+	 * Sets the scheduler releasing the expired holds of this event. By default
+	 * all the events share the same scheduler.
+	 * 
+	 * @param expirationScheduler
+	 *            scheduler for the holds created from now on
+	 */
+	public void setExpirationScheduler(HoldExpirationScheduler expirationScheduler) {
+		this.expirationScheduler = expirationScheduler;
+	}
+
+	/**
+	 * Sets the executor that releases the seats of expired holds. By default they
+	 * are released on the thread of the expiration scheduler. The executor is
+	 * called from that thread, which is shared by every event, so it must
+	 * neither block nor drop the release, as a {@link CommandLoop} does.
+	 * 
+	 * @param expirationExecutor
+	 *            executor for the holds created from now on, null to use the
+	 *            scheduler thread
+	 */
+	public void setExpirationExecutor(Executor expirationExecutor) {
+		this.expirationExecutor = expirationExecutor;
+	}
+
+	/**
+	 * Rebuilds the sales of this event from a journal and records the holds,
+	 * confirmations and releases in it from now on. The purchased seats are sold
+	 * again, the holds that were still open get their seats back with the time
+	 * they had left and the holds that would have expired by now are released.
+	 * It has to be set before any seat of the event is held.
+	 * 
+	 * @param journal
+	 *            journal of this event
+	 * @throws IOException
+	 *             if the journal can't be read or written
+	 */
+	public synchronized void setJournal(EventJournal journal) throws IOException {
+		if (reservedTickets.size() > 0 || this.journal != null) {
+			throw new IllegalStateException("The journal must be set before seats are held");
+		}
+		// The last record of a hold wins: a hold recorded again after its
+		// confirmation is a purchase that failed to be recorded
+		final Map<Long, JournalRecord> openHolds = new LinkedHashMap<Long, JournalRecord>();
+		final Map<Long, JournalRecord> purchases = new LinkedHashMap<Long, JournalRecord>();
+		journal.replay(new JournalListener() {
+			public void holdRecorded(long seatHoldId, String customerEmail, long expirationTime, String[] rows,
+					int[] seatNumbers) {
+				purchases.remove(seatHoldId);
+				openHolds.put(seatHoldId, new JournalRecord(null, customerEmail, expirationTime, rows, seatNumbers));
+			}
+
+			public void confirmationRecorded(long seatHoldId, String confirmationCode, String customerEmail,
+					String[] rows, int[] seatNumbers) {
+				openHolds.remove(seatHoldId);
+				purchases.put(seatHoldId, new JournalRecord(confirmationCode, customerEmail, 0L, rows, seatNumbers));
+			}
+
+			public void releaseRecorded(long seatHoldId) {
+				openHolds.remove(seatHoldId);
+			}
+		});
+		for (Map.Entry<Long, JournalRecord> purchase : purchases.entrySet()) {
+			restorePurchase(purchase.getKey(), purchase.getValue());
+		}
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Long, JournalRecord> hold : openHolds.entrySet()) {
+			JournalRecord record = hold.getValue();
+			if (record.expirationTime <= now) {
+				journal.recordRelease(hold.getKey());
+				continue;
+			}
+			List<Ticket> tickets = findTickets(record);
+			for (Ticket ticket : tickets) {
+				try {
+					ticket.reserveTicket();
+				} catch (TicketUnavailableException e) {
+					throw new IllegalStateException(String.format("Row %s, Seat %d in the journal was held twice",
+							ticket.getSeatRow(), ticket.getSeatNumber()));
+				}
+				notifyStatusChange(ticket);
+			}
+			seatMapVersion.incrementAndGet();
+			restoreHold(hold.getKey(), tickets, record.customerEmail, record.expirationTime - now);
+		}
+		this.journal = journal;
+	}
+
+	// Finds the tickets of the seats of a journal record
+	private List<Ticket> findTickets(JournalRecord record) {
+		List<Ticket> tickets = new ArrayList<Ticket>(record.rows.length);
+		for (int i = 0; i < record.rows.length; i++) {
+			TicketRow row = availableTickets.get(record.rows[i]);
+			Ticket ticket = row == null ? null : row.findTicket(record.seatNumbers[i]);
+			if (ticket == null) {
+				throw new IllegalStateException(String.format("Row %s, Seat %d in the journal does not exist",
+						record.rows[i], record.seatNumbers[i]));
+			}
+			tickets.add(ticket);
+		}
+		return tickets;
+	}
+
+	/**
+	 * Sells again the seats of a purchase read from the journal
+	 */
+	private void restorePurchase(long seatHoldId, JournalRecord purchase) {
+		List<Ticket> tickets = findTickets(purchase);
+		for (Ticket ticket : tickets) {
+			try {
+				ticket.reserveTicket();
+				notifyStatusChange(ticket);
+				ticket.purchaseTicket();
+			} catch (TicketUnavailableException e) {
+				throw new IllegalStateException(String.format("Row %s, Seat %d in the journal was sold twice",
+						ticket.getSeatRow(), ticket.getSeatNumber()));
+			}
+		}
+		ConfirmedTickets confirmation = new ConfirmedTickets(purchase.confirmationCode, purchase.customerEmail,
+				tickets);
+		purchasedTickets.add(seatHoldId, confirmation);
+	}
+
+	/**
+	 * Hold or confirmation read from the journal, kept until the replay tells
+	 * whether it stands
+	 */
+	private static final class JournalRecord {
+		// Null for a hold
+		private final String confirmationCode;
+		private final String customerEmail;
+		// Zero for a confirmation
+		private final long expirationTime;
+		private final String[] rows;
+		private final int[] seatNumbers;
+
+		private JournalRecord(String confirmationCode, String customerEmail, long expirationTime, String[] rows,
+				int[] seatNumbers) {
+			this.confirmationCode = confirmationCode;
+			this.customerEmail = customerEmail;
+			this.expirationTime = expirationTime;
+			this.rows = rows;
+			this.seatNumbers = seatNumbers;
+		}
+	}
+
+	/**
+	 * Returns the counters and latencies of the operations of this event. They
+	 * are recorded from the start, register them to read them through JMX.
+	 * 
+	 * @return the metrics of the event
+	 */
+	public TicketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns an immutable view of the seats of the event. The view is built
+	 * from the latest view of every row, without locking them, and is shared
+	 * until a seat is held or released again.
+	 * <p>
+	 * The map has every change up to its version, and may have some later ones
+	 * made while it was built, so its rows can be newer than its version says.
+	 * A map with a newer version never misses a change of an older one.
+	 * 
+	 * @return the latest seat map
+	 */
+	public SeatMap getSeatMap() {
+		SeatMap current = seatMap.get();
+		long version = seatMapVersion.get();
+		if (current != null && current.getVersion() == version) {
+			return current;
+		}
+		// Views read after the version have at least every change up to it
+		TicketRow[] rows = getSortedRows();
+		SeatMap.Row[] views = new SeatMap.Row[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			views[i] = rows[i].getSnapshot();
+		}
+		SeatMap next = new SeatMap(version, views);
+		// Keep the newest map, another reader may have built a newer one
+		while ((current == null || current.getVersion() < version) && !seatMap.compareAndSet(current, next)) {
+			current = seatMap.get();
+		}
+		return next;
+	}
+
+	/**
+	 * Returns the number of changes of the seats of the event. It grows every
+	 * time a seat is held or released, so a seat map with a lower version may
+	 * miss some changes. A seat map with this version may also have later
+	 * changes, see {@link #getSeatMap()}.
+	 * 
+	 * @return the current version
+	 */
+	public long getSeatMapVersion() {
+		return seatMapVersion.get();
+	}
+
+	/**
+	 * Returns the feed of the seat availability changes of this event, creating
+	 * it the first time and again after it was closed. Subscribers are sent the
+	 * changes in batches, apart from the threads selling the seats.
+	 * 
+	 * @return the change feed
+	 */
+	public synchronized SeatChangeFeed getChangeFeed() {
+		if (changeFeed == null || changeFeed.isClosed()) {
+			changeFeed = new SeatChangeFeed(this);
+		}
+		return changeFeed;
+	}
+
+	/**
+	 * Closes the change feed of this event, if it has one. Its subscribers
+	 * complete and the feed stops ticking, so the event is no longer referenced
+	 * by the ticker shared by the feeds of the JVM.
+	 */
+	public synchronized void closeChangeFeed() {
+		if (changeFeed != null) {
+			changeFeed.close();
+			changeFeed = null;
+		}
+	}
+
+	private TicketRow[] getSortedRows() {
+		TicketRow[] rows = sortedRows;
+		if (rows == null) {
+			rows = getRows().toArray(new TicketRow[0]);
+			sortedRows = rows;
+		}
+		return rows;
+	}
+
+	/**
+	 * Returns the rows of the event sorted by row id
+	 * 
+	 * @return the rows
+	 */
+	List<TicketRow> getRows() {
+		return new ArrayList<TicketRow>(new TreeMap<String, TicketRow>(availableTickets).values());
+	}
+
+	/**
+	 * Returns the template of the seats of the event
+	 * 
+	 * @return the template, null if the event has a TicketImpl per seat
+	 */
+	VenueTemplate getTemplate() {
+		return template;
+	}
+
+	Collection<SeatHold> getSeatHolds() {
+		return reservedTickets.values();
+	}
+
+	Collection<ConfirmedTickets> getConfirmedTickets() {
+		return purchasedTickets.values();
+	}
+
+	/**
+	 * Recreates a hold whose tickets are already reserved in the rows, as read
+	 * from a snapshot
+	 * 
+	 * @param seatHoldId
+	 *            identifier of the hold
+	 * @param tickets
+	 *            reserved tickets of the hold
+	 * @param customerEmail
+	 *            customer holding the tickets
+	 * @param remainingTime
+	 *            time in milliseconds left before the hold expires
+	 */
+	void restoreHold(long seatHoldId, List<Ticket> tickets, String customerEmail, long remainingTime) {
+		SeatHoldImpl hold = SeatHoldImpl.restore(seatHoldId, tickets, customerEmail, eventName);
+		hold.notifyTicketAvailableAgain(this);
+		reservedTickets.put(seatHoldId, hold);
+		hold.notifyHoldReleased(releaseListener);
+		hold.scheduleRelease(remainingTime, expirationScheduler, expirationExecutor);
+		// New ids must come after the restored ones
+		holdIds.restore(seatHoldId);
+	}
+
+	void restoreConfirmation(ConfirmedTickets tickets) {
+		purchasedTickets.add(tickets);
+	}
+
+	/**
+	 * Looks up a purchase by its confirmation code
+	 * 
+	 * @param confirmationCode
+	 *            code returned when the seats were reserved
+	 * @return the purchase, null if there is none
+	 */
+	public ConfirmedTickets getPurchase(String confirmationCode) {
+		return purchasedTickets.getByCode(confirmationCode);
+	}
+
+	/**
+	 * Returns the purchases of a customer
+	 * 
+	 * @param customerEmail
+	 *            email of the customer
+	 * @return the purchases in the order they were made, empty if there are none
+	 */
+	public List<ConfirmedTickets> getPurchases(String customerEmail) {
+		return purchasedTickets.getByEmail(customerEmail);
+	}
+
+	/**
+	 * Returns the purchase that owns a seat
+	 * 
+	 * @param rowId
+	 *            row of the seat
+	 * @param seatNumber
+	 *            number of the seat
+	 * @return the purchase, null if the seat was not sold
+	 */
+	public ConfirmedTickets getSeatOwner(String rowId, int seatNumber) {
+		return purchasedTickets.getBySeat(rowId, seatNumber);
+	}
+
 	public void notifyStatusChange(Ticket ticket) {
+		TicketRow row = availableTickets.get(ticket.getSeatRow());
+		if (row != null) {
+			/*
+			 * Count what the row applied, the ticket may have been held again by the time
+			 * we read its status
+			 */
+			int change = row.updateSeat(ticket);
+			if (change != 0) {
+				totalTicketsAvailable.add(change);
+				// The row published its new view before the version moves
+				seatMapVersion.incrementAndGet();
+			}
+			return;
+		}
 		switch (ticket.getStatus()) {
 		case AVAILABLE:
-			totalTicketsAvailable++;
+			totalTicketsAvailable.increment();
 			break;
 		case RESERVED:
-			totalTicketsAvailable--;
+			totalTicketsAvailable.decrement();
 			break;
 		default:
 			break;
@@ -0,0 +1,194 @@
+package com.galvez.demos.ticketing.impl;
+
+/**
+ * Gaps of free seats of a row bucketed by length. Every bucket is a doubly
+ * linked list threaded through arrays indexed by the first seat of the gap,
+ * and a bitset over the lengths tells which buckets have gaps, so the smallest
+ * gap a party fits in is found with a few word scans and a seat changing
+ * splits or merges gaps in constant time.
+ */
+class FreeGapIndex {
+	private static final int WORD_BITS = 64;
+	private static final int NONE = -1;
+
+	private final long[] words;
+	private final int seatCount;
+	// Length of the gap starting at a seat, 0 if no gap starts there
+	private final int[] gapLength;
+	// First seat of the gap ending at a seat, only valid at the end of a gap
+	private final int[] gapStart;
+	private final int[] next;
+	private final int[] previous;
+	// First gap of every length, NONE if there are no gaps of that length
+	private final int[] heads;
+	// A bit is set when there are gaps of that length
+	private final long[] lengths;
+
+	/**
+	 * Builds the index for the given bitset. The array is not copied, every
+	 * change to a bit has to be followed by a call to {@link #seatFreed(int)} or
+	 * {@link #seatTaken(int)}.
+	 *
+	 * @param words
+	 *            bitset with the available seats
+	 * @param seatCount
+	 *            number of seats of the row
+	 */
+	FreeGapIndex(long[] words, int seatCount) {
+		this.words = words;
+		this.seatCount = seatCount;
+		gapLength = new int[seatCount];
+		gapStart = new int[seatCount];
+		next = new int[seatCount];
+		previous = new int[seatCount];
+		heads = new int[seatCount + 1];
+		lengths = new long[seatCount / WORD_BITS + 1];
+		for (int i = 0; i <= seatCount; i++) {
+			heads[i] = NONE;
+		}
+		int start = NONE;
+		for (int i = 0; i <= seatCount; i++) {
+			boolean free = i < seatCount && isFree(i);
+			if (free && start == NONE) {
+				start = i;
+			} else if (!free && start != NONE) {
+				addGap(start, i - start);
+				start = NONE;
+			}
+		}
+	}
+
+	/**
+	 * Finds the block of seats from the smallest gap that fits it, among the
+	 * gaps of that length the one that gets the block closest to the ideal
+	 * position
+	 *
+	 * @param length
+	 *            number of seats of the block
+	 * @param idealStart
+	 *            position where the block would be best placed
+	 * @return the start of the block, -1 if no gap is long enough
+	 */
+	int bestFit(int length, int idealStart) {
+		int fit = nextLength(length);
+		if (fit == NONE) {
+			return -1;
+		}
+		int best = -1;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int start = heads[fit]; start != NONE; start = next[start]) {
+			int candidate = Math.min(Math.max(idealStart, start), start + fit - length);
+			int distance = Math.abs(candidate - idealStart);
+			if (distance < bestDistance) {
+				best = candidate;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Merges a seat that became available with the gaps next to it
+	 *
+	 * @param position
+	 *            position of the seat
+	 */
+	void seatFreed(int position) {
+		int start = position;
+		int end = position + 1;
+		if (position > 0 && isFree(position - 1)) {
+			start = gapStart[position - 1];
+			removeGap(start);
+		}
+		if (end < seatCount && isFree(end)) {
+			int length = gapLength[end];
+			removeGap(end);
+			end += length;
+		}
+		addGap(start, end - start);
+	}
+
+	/**
+	 * Splits the gap of a seat that stopped being available
+	 *
+	 * @param position
+	 *            position of the seat
+	 */
+	void seatTaken(int position) {
+		int start = previousTaken(position) + 1;
+		int end = start + gapLength[start];
+		removeGap(start);
+		if (position > start) {
+			addGap(start, position - start);
+		}
+		if (end > position + 1) {
+			addGap(position + 1, end - position - 1);
+		}
+	}
+
+	private boolean isFree(int position) {
+		return (words[position / WORD_BITS] & (1L << position)) != 0;
+	}
+
+	// Last seat before the given one that is not available, -1 if there is none
+	private int previousTaken(int position) {
+		int index = position - 1;
+		if (index < 0) {
+			return -1;
+		}
+		int wordIndex = index / WORD_BITS;
+		long taken = ~words[wordIndex] & (-1L >>> (WORD_BITS - 1 - index % WORD_BITS));
+		while (taken == 0L) {
+			if (--wordIndex < 0) {
+				return -1;
+			}
+			taken = ~words[wordIndex];
+		}
+		return wordIndex * WORD_BITS + WORD_BITS - 1 - Long.numberOfLeadingZeros(taken);
+	}
+
+	// Smallest length with gaps that is at least the given one, NONE if none
+	private int nextLength(int length) {
+		if (length > seatCount) {
+			return NONE;
+		}
+		int wordIndex = length / WORD_BITS;
+		long word = lengths[wordIndex] & (-1L << length);
+		while (word == 0L) {
+			if (++wordIndex == lengths.length) {
+				return NONE;
+			}
+			word = lengths[wordIndex];
+		}
+		return wordIndex * WORD_BITS + Long.numberOfTrailingZeros(word);
+	}
+
+	private void addGap(int start, int length) {
+		gapLength[start] = length;
+		gapStart[start + length - 1] = start;
+		int head = heads[length];
+		next[start] = head;
+		previous[start] = NONE;
+		if (head != NONE) {
+			previous[head] = start;
+		}
+		heads[length] = start;
+		lengths[length / WORD_BITS] |= 1L << length;
+	}
+
+	private void removeGap(int start) {
+		int length = gapLength[start];
+		gapLength[start] = 0;
+		if (previous[start] != NONE) {
+			next[previous[start]] = next[start];
+		} else {
+			heads[length] = next[start];
+		}
+		if (next[start] != NONE) {
+			previous[next[start]] = previous[start];
+		}
+		if (heads[length] == NONE) {
+			lengths[length / WORD_BITS] &= ~(1L << length);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package com.galvez.demos.ticketing.impl;
+
+/**
+ * Segment tree over an availability bitset. Every node keeps the longest run
+ * of set bits touching its left edge (prefix), touching its right edge
+ * (suffix) and anywhere inside it (max). The leaves are the 64 bit words of
+ * the bitset, so changing a seat costs one word summary plus O(log n) node
+ * updates, the longest run is read from the root and a block of seats is
+ * located by walking down the tree.
+ */
+class FreeRunTree {
+	private static final int WORD_BITS = 64;
+
+	private final long[] words;
+	private final int leafCount;
+	private final int[] prefix;
+	private final int[] suffix;
+	private final int[] max;
+	// Length of the run carried between nodes while searching
+	private int run;
+
+	/**
+	 * Builds the tree for the given bitset. The array is not copied, every
+	 * change to a word has to be followed by a call to {@link #update(int)}.
+	 *
+	 * @param words
+	 *            bitset with the available seats, bits after the last seat must
+	 *            be clear
+	 */
+	FreeRunTree(long[] words) {
+		this.words = words;
+		int leaves = 1;
+		while (leaves < words.length) {
+			leaves <<= 1;
+		}
+		leafCount = leaves;
+		prefix = new int[2 * leafCount];
+		suffix = new int[2 * leafCount];
+		max = new int[2 * leafCount];
+		for (int i = 0; i < words.length; i++) {
+			setLeaf(i);
+		}
+		int length = WORD_BITS;
+		for (int first = leafCount / 2; first >= 1; first /= 2) {
+			for (int node = first; node < 2 * first; node++) {
+				combine(node, length);
+			}
+			length *= 2;
+		}
+	}
+
+	/**
+	 * Refreshes the tree after a word of the bitset changed
+	 *
+	 * @param wordIndex
+	 *            index of the word that changed
+	 */
+	void update(int wordIndex) {
+		setLeaf(wordIndex);
+		int length = WORD_BITS;
+		for (int node = (leafCount + wordIndex) / 2; node >= 1; node /= 2) {
+			combine(node, length);
+			length *= 2;
+		}
+	}
+
+	/**
+	 * Returns the longest run of set bits
+	 *
+	 * @return the length of the longest run
+	 */
+	int maxRun() {
+		return max[1];
+	}
+
+	/**
+	 * Finds the block of set bits closest to an ideal position: the first block
+	 * starting at or after it and the last block starting before it are looked
+	 * up and the nearest of the two is selected, the left one on a tie.
+	 *
+	 * @param idealStart
+	 *            position where the block would be best placed
+	 * @param length
+	 *            length of the block
+	 * @return the start of the block, -1 if there is none
+	 */
+	int closestWindow(int idealStart, int length) {
+		if (length > maxRun()) {
+			return -1;
+		}
+		int rightStart = leftmostWindow(idealStart, length);
+		if (rightStart == idealStart) {
+			return rightStart;
+		}
+		int leftStart = rightmostWindow(idealStart + length - 1, length);
+		if (leftStart < 0) {
+			return rightStart;
+		}
+		if (rightStart < 0 || idealStart - leftStart <= rightStart - idealStart) {
+			return leftStart;
+		}
+		return rightStart;
+	}
+
+	/**
+	 * Finds the first block of set bits starting at or after a position
+	 *
+	 * @param from
+	 *            first position where the block can start
+	 * @param length
+	 *            length of the block
+	 * @return the start of the block, -1 if there is none
+	 */
+	int leftmostWindow(int from, int length) {
+		run = 0;
+		return leftmost(1, 0, leafCount * WORD_BITS, from, length);
+	}
+
+	/**
+	 * Finds the last block of set bits ending at or before a position
+	 *
+	 * @param to
+	 *            position after the last bit of the block (exclusive)
+	 * @param length
+	 *            length of the block
+	 * @return the start of the block, -1 if there is none
+	 */
+	int rightmostWindow(int to, int length) {
+		run = 0;
+		return rightmost(1, 0, leafCount * WORD_BITS, to, length);
+	}
+
+	private int leftmost(int node, int nodeStart, int nodeLength, int from, int length) {
+		if (nodeStart + nodeLength <= from) {
+			return -1;
+		}
+		if (nodeStart >= from) {
+			if (run + prefix[node] >= length) {
+				return nodeStart - run;
+			}
+			if (max[node] < length) {
+				run = prefix[node] == nodeLength ? run + nodeLength : suffix[node];
+				return -1;
+			}
+		}
+		if (node >= leafCount) {
+			long word = getWord(node - leafCount);
+			if (from > nodeStart) {
+				word &= -1L << (from - nodeStart);
+			}
+			long starts = windowStarts(word, length);
+			if (starts != 0) {
+				return nodeStart + Long.numberOfTrailingZeros(starts);
+			}
+			run = word == -1L ? run + WORD_BITS : Long.numberOfLeadingZeros(~word);
+			return -1;
+		}
+		int half = nodeLength / 2;
+		int found = leftmost(2 * node, nodeStart, half, from, length);
+		if (found >= 0) {
+			return found;
+		}
+		return leftmost(2 * node + 1, nodeStart + half, half, from, length);
+	}
+
+	private int rightmost(int node, int nodeStart, int nodeLength, int to, int length) {
+		if (nodeStart >= to) {
+			return -1;
+		}
+		if (nodeStart + nodeLength <= to) {
+			if (run + suffix[node] >= length) {
+				return nodeStart + nodeLength + run - length;
+			}
+			if (max[node] < length) {
+				run = suffix[node] == nodeLength ? run + nodeLength : prefix[node];
+				return -1;
+			}
+		}
+		if (node >= leafCount) {
+			long word = getWord(node - leafCount);
+			if (to - nodeStart < WORD_BITS) {
+				word &= (1L << (to - nodeStart)) - 1;
+			}
+			long starts = windowStarts(word, length);
+			if (starts != 0) {
+				return nodeStart + WORD_BITS - 1 - Long.numberOfLeadingZeros(starts);
+			}
+			run = word == -1L ? run + WORD_BITS : Long.numberOfTrailingZeros(~word);
+			return -1;
+		}
+		int half = nodeLength / 2;
+		int found = rightmost(2 * node + 1, nodeStart + half, half, to, length);
+		if (found >= 0) {
+			return found;
+		}
+		return rightmost(2 * node, nodeStart, half, to, length);
+	}
+
+	/**
+	 * Returns a word with a bit set in every position where a run of the given
+	 * length starts inside the word, using shift-and-AND doubling
+	 */
+	private static long windowStarts(long word, int length) {
+		if (length > WORD_BITS) {
+			return 0L;
+		}
+		long starts = word;
+		int covered = 1;
+		while (covered < length && starts != 0) {
+			int shift = Math.min(covered, length - covered);
+			starts &= starts >>> shift;
+			covered += shift;
+		}
+		return starts;
+	}
+
+	// Leaves past the end of the bitset have no set bits
+	private long getWord(int wordIndex) {
+		return wordIndex < words.length ? words[wordIndex] : 0L;
+	}
+
+	private void setLeaf(int wordIndex) {
+		long word = words[wordIndex];
+		int node = leafCount + wordIndex;
+		prefix[node] = Long.numberOfTrailingZeros(~word);
+		suffix[node] = Long.numberOfLeadingZeros(~word);
+		// Every shift-and-AND removes one bit from each run
+		int longest = 0;
+		while (word != 0) {
+			word &= word >>> 1;
+			longest++;
+		}
+		max[node] = longest;
+	}
+
+	private void combine(int node, int childLength) {
+		int left = 2 * node;
+		int right = left + 1;
+		prefix[node] = prefix[left] == childLength ? childLength + prefix[right] : prefix[left];
+		suffix[node] = suffix[right] == childLength ? childLength + suffix[left] : suffix[right];
+		max[node] = Math.max(Math.max(max[left], max[right]), suffix[left] + prefix[right]);
+	}
+}
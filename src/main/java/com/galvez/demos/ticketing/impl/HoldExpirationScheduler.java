@@ -0,0 +1,315 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared expiration engine for seat holds. Expirations are kept in a hashed
+ * timing wheel that is advanced by a single daemon thread, so the number of
+ * threads does not grow with the number of open holds. On every tick all the
+ * holds expiring in the current bucket are released together.
+ * <p>
+ * The thread of the default scheduler lives as long as the JVM, other
+ * schedulers must be shut down when they are no longer used.
+ */
+public class HoldExpirationScheduler {
+
+	// Tick of 100 milliseconds, a wheel of 512 buckets covers ~51 seconds per turn
+	private static final long DEFAULT_TICK = 100L;
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static final HoldExpirationScheduler DEFAULT_SCHEDULER = new HoldExpirationScheduler(DEFAULT_TICK,
+			DEFAULT_WHEEL_SIZE);
+
+	private final long tickNanos;
+	private final Expiration[] wheel;
+	private final int mask;
+	// New expirations, moved into the wheel by the worker thread on every tick
+	private final Queue<Expiration> registrations;
+	private final AtomicInteger pendingExpirations;
+	private final AtomicBoolean started;
+	private volatile boolean shutdown;
+	private volatile Thread worker;
+	private volatile long startTime;
+	private volatile long lastExpirationLag;
+	private volatile long maxExpirationLag;
+	// Only accessed by the worker thread
+	private long currentTick;
+
+	/**
+	 * Creates a new scheduler
+	 *
+	 * @param tickMillis
+	 *            duration of a tick in milliseconds, expirations are rounded up
+	 *            to the next tick
+	 * @param wheelSize
+	 *            number of buckets in the wheel, it is rounded up to a power of
+	 *            two
+	 */
+	public HoldExpirationScheduler(long tickMillis, int wheelSize) {
+		if (tickMillis <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("Tick and wheel size must be positive");
+		}
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize) {
+			size <<= 1;
+		}
+		wheel = new Expiration[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Expiration(null, 0L);
+		}
+		mask = size - 1;
+		registrations = new ConcurrentLinkedQueue<Expiration>();
+		pendingExpirations = new AtomicInteger();
+		started = new AtomicBoolean();
+	}
+
+	/**
+	 * Returns the scheduler shared by all the events in this JVM
+	 *
+	 * @return the default scheduler
+	 */
+	public static HoldExpirationScheduler getDefault() {
+		return DEFAULT_SCHEDULER;
+	}
+
+	/**
+	 * Schedules a task to be executed once the timeout is reached
+	 *
+	 * @param task
+	 *            task to run on expiration, it runs on the scheduler thread so
+	 *            it must be short
+	 * @param timeoutMillis
+	 *            time in milliseconds before the task is executed
+	 * @return an Expiration that can be used to cancel the task
+	 * @throws RejectedExecutionException
+	 *             if the scheduler is shut down
+	 */
+	public Expiration schedule(Runnable task, long timeoutMillis) {
+		if (shutdown) {
+			throw new RejectedExecutionException("The expiration scheduler is shut down");
+		}
+		start();
+		Expiration expiration = new Expiration(task,
+				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, timeoutMillis)));
+		pendingExpirations.incrementAndGet();
+		registrations.add(expiration);
+		return expiration;
+	}
+
+	/**
+	 * Returns the number of expirations that are still waiting to be executed
+	 *
+	 * @return number of pending expirations
+	 */
+	public int getPendingExpirations() {
+		return pendingExpirations.get();
+	}
+
+	/**
+	 * Returns how late the last expiration was executed
+	 *
+	 * @return lag in milliseconds between the deadline and the execution of the
+	 *         last expiration
+	 */
+	public long getLastExpirationLag() {
+		return TimeUnit.NANOSECONDS.toMillis(lastExpirationLag);
+	}
+
+	/**
+	 * Returns the worst lag seen by this scheduler
+	 *
+	 * @return maximum lag in milliseconds between a deadline and its execution
+	 */
+	public long getMaxExpirationLag() {
+		return TimeUnit.NANOSECONDS.toMillis(maxExpirationLag);
+	}
+
+	/**
+	 * Stops the thread of the scheduler. Expirations still pending are never
+	 * run and no new ones can be scheduled.
+	 *
+	 * @throws IllegalStateException
+	 *             if this is the default scheduler, it is shared by every event
+	 */
+	public void shutdown() {
+		if (this == DEFAULT_SCHEDULER) {
+			throw new IllegalStateException("The default scheduler can't be shut down");
+		}
+		shutdown = true;
+		Thread thread = worker;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Returns whether the scheduler was shut down
+	 *
+	 * @return true after {@link #shutdown()}
+	 */
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	private void start() {
+		if (started.get() || !started.compareAndSet(false, true)) {
+			return;
+		}
+		startTime = System.nanoTime();
+		Thread thread = new Thread(new Worker(), "hold-expiration");
+		thread.setDaemon(true);
+		worker = thread;
+		thread.start();
+	}
+
+	/**
+	 * Moves the newly scheduled expirations into their buckets
+	 */
+	private void transferRegistrations() {
+		Expiration expiration;
+		while ((expiration = registrations.poll()) != null) {
+			if (expiration.isCancelled()) {
+				continue;
+			}
+			long ticks = (expiration.deadline - startTime + tickNanos - 1) / tickNanos;
+			long targetTick = Math.max(ticks, currentTick);
+			expiration.remainingRounds = (targetTick - currentTick) >> Integer.numberOfTrailingZeros(wheel.length);
+			wheel[(int) (targetTick & mask)].append(expiration);
+		}
+	}
+
+	/**
+	 * Collects every expiration due in the bucket and runs them as a batch
+	 */
+	private void expireBucket(Expiration bucket, long now) {
+		List<Expiration> expired = new ArrayList<Expiration>();
+		Expiration expiration = bucket.next;
+		while (expiration != bucket) {
+			Expiration next = expiration.next;
+			if (expiration.isCancelled()) {
+				expiration.unlink();
+			} else if (expiration.remainingRounds > 0) {
+				expiration.remainingRounds--;
+			} else if (expiration.deadline - now <= 0) {
+				expiration.unlink();
+				if (expiration.state.compareAndSet(Expiration.PENDING, Expiration.EXPIRED)) {
+					pendingExpirations.decrementAndGet();
+					expired.add(expiration);
+				}
+			}
+			expiration = next;
+		}
+
+		for (Expiration item : expired) {
+			long lag = now - item.deadline;
+			lastExpirationLag = lag;
+			if (lag > maxExpirationLag) {
+				maxExpirationLag = lag;
+			}
+			try {
+				item.task.run();
+			} catch (RuntimeException e) {
+				// A failing hold shouldn't stop the rest of the expirations
+				Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+			}
+			item.task = null;
+		}
+	}
+
+	/**
+	 * Worker advancing the wheel one tick at a time
+	 */
+	class Worker implements Runnable {
+		public void run() {
+			while (!shutdown) {
+				long deadline = startTime + (currentTick + 1) * tickNanos;
+				long now = System.nanoTime();
+				while (deadline - now > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(deadline - now);
+					} catch (InterruptedException e) {
+						// Only shutdown interrupts the worker
+						if (shutdown) {
+							return;
+						}
+					}
+					now = System.nanoTime();
+				}
+				transferRegistrations();
+				expireBucket(wheel[(int) (currentTick & mask)], now);
+				currentTick++;
+			}
+		}
+	}
+
+	/**
+	 * A scheduled expiration. It can be cancelled until the scheduler runs it.
+	 */
+	public class Expiration {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final AtomicInteger state;
+		private final long deadline;
+		private Runnable task;
+		private long remainingRounds;
+		// Bucket links, only touched by the worker thread
+		private Expiration next;
+		private Expiration previous;
+
+		private Expiration(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+			state = new AtomicInteger(PENDING);
+			next = this;
+			previous = this;
+		}
+
+		/**
+		 * Cancels this expiration
+		 *
+		 * @return true if the expiration was cancelled, false if it already ran
+		 *         or was cancelled before
+		 */
+		public boolean cancel() {
+			if (state.compareAndSet(PENDING, CANCELLED)) {
+				pendingExpirations.decrementAndGet();
+				task = null;
+				return true;
+			}
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void append(Expiration expiration) {
+			expiration.previous = previous;
+			expiration.next = this;
+			previous.next = expiration;
+			previous = expiration;
+		}
+
+		private void unlink() {
+			previous.next = next;
+			next.previous = previous;
+			next = this;
+			previous = this;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.galvez.demos.ticketing.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of a request to hold seats. Disabled unless a recording
+ * asks for it, when it is off begin and commit are empty and the event is never
+ * allocated.
+ */
+@Name("com.galvez.demos.ticketing.Hold")
+@Label("Hold Seats")
+@Category("Ticketing")
+@Description("Request to find and hold the best seats together")
+@Enabled(false)
+@StackTrace(false)
+class HoldFlightEvent extends Event {
+	static final String HELD = "HELD";
+	static final String UNAVAILABLE = "UNAVAILABLE";
+
+	@Label("Event Name")
+	String eventName;
+
+	@Label("Seats Requested")
+	int seatsRequested;
+
+	@Label("Rows Scanned")
+	@Description("Rows tried before the seats were held or the request failed")
+	int rowsScanned;
+
+	@Label("Outcome")
+	String outcome;
+
+	@Label("Hold Id")
+	@Description("Id of the hold created, -1 if the request failed")
+	long holdId;
+
+}
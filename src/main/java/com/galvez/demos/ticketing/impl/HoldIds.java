@@ -0,0 +1,126 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hold ids of an event. Every hold id of the JVM comes from one counter, so no
+ * two holds share an id whatever event they belong to. The counter starts at
+ * the current time shifted 16 bits, so the ids of a new run never repeat the
+ * ids of a previous one (still found in journals and snapshots) unless it made
+ * over 65536 holds per millisecond.
+ * <p>
+ * An event takes its ids from the counter in blocks and remembers where its
+ * blocks start, so it can tell the ids it issued from the ids of other events
+ * without keeping every id.
+ */
+final class HoldIds {
+	static final int BLOCK_SIZE = 1024;
+	// Next id of the JVM
+	private static final AtomicLong NEXT = new AtomicLong(System.currentTimeMillis() << 16);
+
+	// Block the ids are being issued from, null until the first id
+	private volatile Block current;
+	// Start of every block taken by the event, in ascending order
+	private volatile long[] blockStarts = new long[0];
+	// Ids of the holds read from a journal or snapshot
+	private final Set<Long> restoredIds = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Returns a hold id for a hold created without an event
+	 *
+	 * @return the id, unique in the JVM
+	 */
+	static long next() {
+		return NEXT.getAndIncrement();
+	}
+
+	/**
+	 * Adds an id read from a journal or snapshot to the ids of the event, and
+	 * moves the counter past it so it is never issued again
+	 *
+	 * @param seatHoldId
+	 *            restored hold id
+	 */
+	void restore(long seatHoldId) {
+		restoredIds.add(seatHoldId);
+		long next = NEXT.get();
+		while (next <= seatHoldId && !NEXT.compareAndSet(next, seatHoldId + 1)) {
+			next = NEXT.get();
+		}
+	}
+
+	/**
+	 * Returns the next hold id of the event
+	 *
+	 * @return the id, unique in the JVM
+	 */
+	long nextId() {
+		while (true) {
+			Block block = current;
+			if (block != null) {
+				long id = block.next.getAndIncrement();
+				if (id < block.end) {
+					return id;
+				}
+			}
+			takeBlock(block);
+		}
+	}
+
+	/**
+	 * Returns whether an id was issued by this event
+	 *
+	 * @param seatHoldId
+	 *            hold id
+	 * @return true if {@link #nextId()} returned it or it was restored
+	 */
+	boolean isIssued(long seatHoldId) {
+		if (restoredIds.contains(seatHoldId)) {
+			return true;
+		}
+		long[] starts = blockStarts;
+		int index = Arrays.binarySearch(starts, seatHoldId);
+		if (index < 0) {
+			// The block starting before the id
+			index = -index - 2;
+			if (index < 0) {
+				return false;
+			}
+		}
+		long start = starts[index];
+		if (seatHoldId >= start + BLOCK_SIZE) {
+			return false;
+		}
+		// Only the ids of the current block may not have been issued yet
+		Block block = current;
+		return block == null || block.start != start || seatHoldId < block.next.get();
+	}
+
+	// Replaces the exhausted block, unless another thread already did
+	private synchronized void takeBlock(Block exhausted) {
+		if (current != exhausted) {
+			return;
+		}
+		Block block = new Block(NEXT.getAndAdd(BLOCK_SIZE));
+		long[] starts = Arrays.copyOf(blockStarts, blockStarts.length + 1);
+		starts[starts.length - 1] = block.start;
+		// Known as issued before any of its ids is
+		blockStarts = starts;
+		current = block;
+	}
+
+	private static final class Block {
+		private final long start;
+		private final long end;
+		private final AtomicLong next;
+
+		private Block(long start) {
+			this.start = start;
+			this.end = start + BLOCK_SIZE;
+			this.next = new AtomicLong(start);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map from hold id to value with primitive long keys. It is split in stripes
+ * locked independently, and every stripe is an open addressing table with
+ * linear probing, so looking up a hold allocates nothing and removed entries
+ * free their slot right away (backward shift deletion, no tombstones).
+ *
+ * @param <V>
+ *            type of the values
+ */
+class HoldRegistry<V> {
+	private static final int STRIPES = 16;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Stripe[] stripes;
+
+	HoldRegistry() {
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Returns the value of a hold
+	 *
+	 * @param id
+	 *            hold id
+	 * @return the value, null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	V get(long id) {
+		long hash = hash(id);
+		return (V) stripeOf(hash).get(id, hash);
+	}
+
+	/**
+	 * Sets the value of a hold
+	 *
+	 * @param id
+	 *            hold id
+	 * @param value
+	 *            the value, not null
+	 * @return the previous value, null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	V put(long id, V value) {
+		if (value == null) {
+			throw new NullPointerException("Values can't be null");
+		}
+		long hash = hash(id);
+		return (V) stripeOf(hash).put(id, hash, value);
+	}
+
+	/**
+	 * Removes the value of a hold
+	 *
+	 * @param id
+	 *            hold id
+	 * @return the value removed, null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(long id) {
+		long hash = hash(id);
+		return (V) stripeOf(hash).remove(id, hash);
+	}
+
+	/**
+	 * Returns the number of entries
+	 *
+	 * @return number of entries
+	 */
+	int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns a copy of the values, each stripe is copied at a different time
+	 *
+	 * @return the values
+	 */
+	@SuppressWarnings("unchecked")
+	List<V> values() {
+		List<V> values = new ArrayList<V>();
+		for (Stripe stripe : stripes) {
+			stripe.copyValues((List<Object>) values);
+		}
+		return values;
+	}
+
+	private Stripe stripeOf(long hash) {
+		return stripes[(int) (hash >>> 60)];
+	}
+
+	// Finalizer of MurmurHash3, sequential ids end up spread over the table
+	private static long hash(long id) {
+		long hash = id;
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static final class Stripe {
+		private long[] keys = new long[INITIAL_CAPACITY];
+		// A null value marks an empty slot
+		private Object[] values = new Object[INITIAL_CAPACITY];
+		private int size;
+
+		synchronized Object get(long id, long hash) {
+			int mask = keys.length - 1;
+			for (int slot = (int) hash & mask; values[slot] != null; slot = (slot + 1) & mask) {
+				if (keys[slot] == id) {
+					return values[slot];
+				}
+			}
+			return null;
+		}
+
+		synchronized Object put(long id, long hash, Object value) {
+			int mask = keys.length - 1;
+			int slot = (int) hash & mask;
+			for (; values[slot] != null; slot = (slot + 1) & mask) {
+				if (keys[slot] == id) {
+					Object previous = values[slot];
+					values[slot] = value;
+					return previous;
+				}
+			}
+			keys[slot] = id;
+			values[slot] = value;
+			// Keep the load under 3/4 so the probes stay short
+			if (++size * 4 > keys.length * 3) {
+				resize(keys.length * 2);
+			}
+			return null;
+		}
+
+		synchronized Object remove(long id, long hash) {
+			int mask = keys.length - 1;
+			int slot = (int) hash & mask;
+			while (values[slot] != null && keys[slot] != id) {
+				slot = (slot + 1) & mask;
+			}
+			Object removed = values[slot];
+			if (removed == null) {
+				return null;
+			}
+			// Move back the entries after the hole that can't be found past it
+			int hole = slot;
+			for (int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+				int home = (int) hash(keys[next]) & mask;
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					keys[hole] = keys[next];
+					values[hole] = values[next];
+					hole = next;
+				}
+			}
+			values[hole] = null;
+			size--;
+			// Shrink when mostly empty so a burst of holds doesn't keep its memory
+			if (keys.length > INITIAL_CAPACITY && size * 8 < keys.length) {
+				resize(keys.length / 2);
+			}
+			return removed;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized void copyValues(List<Object> copy) {
+			for (Object value : values) {
+				if (value != null) {
+					copy.add(value);
+				}
+			}
+		}
+
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new long[capacity];
+			values = new Object[capacity];
+			int mask = capacity - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] != null) {
+					int slot = (int) hash(oldKeys[i]) & mask;
+					while (values[slot] != null) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+	}
+}
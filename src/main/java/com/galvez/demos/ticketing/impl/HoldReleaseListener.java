@@ -0,0 +1,17 @@
+package com.galvez.demos.ticketing.impl;
+
+/**
+ * Listener for holds that end without being purchased
+ */
+interface HoldReleaseListener {
+
+	/**
+	 * Notifies the listener that the tickets of the hold were given back, either
+	 * because it expired or because the purchase failed
+	 * 
+	 * @param hold
+	 *            hold that was released
+	 */
+	void holdReleased(SeatHoldImpl hold);
+
+}
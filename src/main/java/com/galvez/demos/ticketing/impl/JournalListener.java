@@ -0,0 +1,52 @@
+package com.galvez.demos.ticketing.impl;
+
+/**
+ * Receives the records of an {@link EventJournal} when it is replayed, in the
+ * order they were written. Seats are identified by their row id and seat
+ * number, the seat in position i is rows[i] and seatNumbers[i].
+ */
+public interface JournalListener {
+
+	/**
+	 * A customer held seats
+	 *
+	 * @param seatHoldId
+	 *            the seat hold identifier
+	 * @param customerEmail
+	 *            customer holding the seats
+	 * @param expirationTime
+	 *            wall clock time in milliseconds when the hold expires
+	 * @param rows
+	 *            row id of every seat
+	 * @param seatNumbers
+	 *            seat number of every seat
+	 */
+	void holdRecorded(long seatHoldId, String customerEmail, long expirationTime, String[] rows, int[] seatNumbers);
+
+	/**
+	 * A customer purchased the seats of a hold. The record carries the seats, so
+	 * it can be applied even if the hold record is missing.
+	 *
+	 * @param seatHoldId
+	 *            the seat hold identifier
+	 * @param confirmationCode
+	 *            code returned to the customer
+	 * @param customerEmail
+	 *            customer purchasing the seats
+	 * @param rows
+	 *            row id of every seat
+	 * @param seatNumbers
+	 *            seat number of every seat
+	 */
+	void confirmationRecorded(long seatHoldId, String confirmationCode, String customerEmail, String[] rows,
+			int[] seatNumbers);
+
+	/**
+	 * The seats of a hold were given back to the event
+	 *
+	 * @param seatHoldId
+	 *            the seat hold identifier
+	 */
+	void releaseRecorded(long seatHoldId);
+
+}
@@ -0,0 +1,191 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in nanoseconds. Buckets grow
+ * exponentially, every power of two split in 8 linear sub buckets, so any
+ * value is counted with an error under 12.5% in a fixed amount of memory.
+ * Threads record into one of several stripes picked by their id, so threads
+ * timing the same operation rarely write to the same counters.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	// Slots after the buckets of a stripe
+	private static final int COUNT = BUCKETS;
+	private static final int SUM = BUCKETS + 1;
+	private static final int MAX_STRIPES = 8;
+
+	private final AtomicLongArray[] stripes;
+	private final int mask;
+	private final AtomicLong max;
+
+	/**
+	 * Creates an empty histogram
+	 */
+	public LatencyHistogram() {
+		int size = Integer.highestOneBit(Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+		stripes = new AtomicLongArray[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new AtomicLongArray(BUCKETS + 2);
+		}
+		mask = size - 1;
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Records a latency
+	 *
+	 * @param nanos
+	 *            latency in nanoseconds, negative values count as zero
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0L, nanos);
+		AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & mask];
+		stripe.getAndIncrement(bucketOf(value));
+		stripe.getAndIncrement(COUNT);
+		stripe.getAndAdd(SUM, value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Returns the latencies recorded so far
+	 *
+	 * @return a snapshot of the histogram
+	 */
+	public Snapshot snapshot() {
+		return collect(false);
+	}
+
+	/**
+	 * Returns the latencies recorded so far and starts over. Every latency ends up
+	 * in exactly one snapshot, even if it is recorded while the histogram is
+	 * being reset.
+	 *
+	 * @return a snapshot of the histogram before the reset
+	 */
+	public Snapshot snapshotAndReset() {
+		return collect(true);
+	}
+
+	private Snapshot collect(boolean reset) {
+		long[] counts = new long[BUCKETS];
+		long count = 0L;
+		long sum = 0L;
+		long maxValue = reset ? max.getAndSet(0L) : max.get();
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] += reset ? stripe.getAndSet(i, 0L) : stripe.get(i);
+			}
+			count += reset ? stripe.getAndSet(COUNT, 0L) : stripe.get(COUNT);
+			sum += reset ? stripe.getAndSet(SUM, 0L) : stripe.get(SUM);
+		}
+		return new Snapshot(counts, count, sum, maxValue);
+	}
+
+	// Values under 8 have a bucket each, then 8 buckets per power of two
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	// Smallest value counted in a bucket
+	static long lowestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * Latencies recorded by a histogram at some point in time
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * Returns the number of latencies recorded
+		 *
+		 * @return number of latencies
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the average latency
+		 *
+		 * @return average in nanoseconds, zero if nothing was recorded
+		 */
+		public double getMean() {
+			return count == 0L ? 0.0 : (double) sum / count;
+		}
+
+		/**
+		 * Returns the highest latency recorded
+		 *
+		 * @return maximum in nanoseconds
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Returns the latency under which the given fraction of the latencies fall.
+		 * It is the middle of the bucket holding that latency, so it is off by at
+		 * most half a bucket, and never above the maximum.
+		 *
+		 * @param fraction
+		 *            fraction of the latencies, e.g. 0.99 for the 99th percentile
+		 * @return the latency in nanoseconds, zero if nothing was recorded
+		 */
+		public long getPercentile(double fraction) {
+			if (fraction < 0.0 || fraction > 1.0) {
+				throw new IllegalArgumentException("The fraction must be between 0 and 1");
+			}
+			long total = 0L;
+			for (long bucketCount : counts) {
+				total += bucketCount;
+			}
+			if (total == 0L) {
+				return 0L;
+			}
+			long rank = Math.max(1L, (long) Math.ceil(fraction * total));
+			long seen = 0L;
+			for (int bucket = 0; bucket < counts.length; bucket++) {
+				seen += counts[bucket];
+				if (seen >= rank) {
+					if (bucket == counts.length - 1) {
+						return max;
+					}
+					long low = lowestValue(bucket);
+					long middle = low + (lowestValue(bucket + 1) - low) / 2;
+					return max > 0L ? Math.min(middle, max) : middle;
+				}
+			}
+			return max;
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+package com.galvez.demos.ticketing.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of an attempt to purchase the seats of a hold,
+ * including journaling the purchase
+ */
+@Name("com.galvez.demos.ticketing.Purchase")
+@Label("Purchase Seats")
+@Category("Ticketing")
+@Description("Confirmation of the seats of a hold")
+@Enabled(false)
+@StackTrace(false)
+class PurchaseFlightEvent extends Event {
+	static final String PURCHASED = "PURCHASED";
+	static final String UNAVAILABLE = "UNAVAILABLE";
+	static final String REJECTED = "REJECTED";
+
+	@Label("Event Name")
+	String eventName;
+
+	@Label("Hold Id")
+	long holdId;
+
+	@Label("Seats Purchased")
+	int seats;
+
+	@Label("Outcome")
+	String outcome;
+
+}
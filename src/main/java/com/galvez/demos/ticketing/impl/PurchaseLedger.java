@@ -0,0 +1,152 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.galvez.demos.ticketing.Ticket;
+
+/**
+ * Purchases of an event, indexed by confirmation code, by customer email, by
+ * seat and by hold id, so each of those questions is answered with a single
+ * lookup instead of a scan of every purchase.
+ */
+class PurchaseLedger {
+	private final Map<String, ConfirmedTickets> byCode;
+	private final Map<String, List<ConfirmedTickets>> byEmail;
+	private final Map<String, Map<Integer, ConfirmedTickets>> bySeat;
+	private final HoldRegistry<ConfirmedTickets> byHold;
+	// Codes of purchases still being recorded, not visible yet
+	private final Set<String> reservedCodes;
+
+	PurchaseLedger() {
+		byCode = new ConcurrentHashMap<String, ConfirmedTickets>();
+		byEmail = new ConcurrentHashMap<String, List<ConfirmedTickets>>();
+		bySeat = new ConcurrentHashMap<String, Map<Integer, ConfirmedTickets>>();
+		byHold = new HoldRegistry<ConfirmedTickets>();
+		reservedCodes = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * Takes a confirmation code for a purchase that is still being recorded, so
+	 * no other purchase gets it while the purchase can't be looked up yet. The
+	 * code is released when the purchase is added or by
+	 * {@link #releaseCode(String)}.
+	 *
+	 * @param confirmationCode
+	 *            code for the purchase
+	 * @return false if the code is taken
+	 */
+	boolean reserveCode(String confirmationCode) {
+		if (!reservedCodes.add(confirmationCode)) {
+			return false;
+		}
+		if (byCode.containsKey(confirmationCode)) {
+			reservedCodes.remove(confirmationCode);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back the code of a purchase that could not be recorded
+	 *
+	 * @param confirmationCode
+	 *            code taken with {@link #reserveCode(String)}
+	 */
+	void releaseCode(String confirmationCode) {
+		reservedCodes.remove(confirmationCode);
+	}
+
+	/**
+	 * Adds a purchase made from a hold
+	 *
+	 * @param seatHoldId
+	 *            hold that was purchased
+	 * @param purchase
+	 *            the purchase
+	 * @return false if the confirmation code is already taken, in which case
+	 *         nothing is added
+	 */
+	boolean add(long seatHoldId, ConfirmedTickets purchase) {
+		if (!add(purchase)) {
+			return false;
+		}
+		byHold.put(seatHoldId, purchase);
+		return true;
+	}
+
+	/**
+	 * Adds a purchase whose hold is unknown
+	 *
+	 * @param purchase
+	 *            the purchase
+	 * @return false if the confirmation code is already taken, in which case
+	 *         nothing is added
+	 */
+	boolean add(ConfirmedTickets purchase) {
+		if (byCode.putIfAbsent(purchase.getConfirmationCode(), purchase) != null) {
+			return false;
+		}
+		// Only released once the code is in the index, so no one else can take it meanwhile
+		reservedCodes.remove(purchase.getConfirmationCode());
+		List<ConfirmedTickets> customerPurchases = byEmail.get(purchase.getConfirmationEmail());
+		if (customerPurchases == null) {
+			customerPurchases = new CopyOnWriteArrayList<ConfirmedTickets>();
+			List<ConfirmedTickets> existing = byEmail.putIfAbsent(purchase.getConfirmationEmail(), customerPurchases);
+			if (existing != null) {
+				customerPurchases = existing;
+			}
+		}
+		customerPurchases.add(purchase);
+		for (Ticket ticket : purchase.getTickets()) {
+			rowOwners(ticket.getSeatRow()).put(ticket.getSeatNumber(), purchase);
+		}
+		return true;
+	}
+
+	ConfirmedTickets getByCode(String confirmationCode) {
+		if (!ConfirmationCodes.isValid(confirmationCode)) {
+			// Mistyped, no purchase has such a code
+			return null;
+		}
+		return byCode.get(confirmationCode);
+	}
+
+	ConfirmedTickets getByHold(long seatHoldId) {
+		return byHold.get(seatHoldId);
+	}
+
+	List<ConfirmedTickets> getByEmail(String customerEmail) {
+		List<ConfirmedTickets> customerPurchases = byEmail.get(customerEmail);
+		if (customerPurchases == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(customerPurchases);
+	}
+
+	ConfirmedTickets getBySeat(String rowId, int seatNumber) {
+		Map<Integer, ConfirmedTickets> owners = bySeat.get(rowId);
+		return owners == null ? null : owners.get(seatNumber);
+	}
+
+	List<ConfirmedTickets> values() {
+		return new ArrayList<ConfirmedTickets>(byCode.values());
+	}
+
+	private Map<Integer, ConfirmedTickets> rowOwners(String rowId) {
+		Map<Integer, ConfirmedTickets> owners = bySeat.get(rowId);
+		if (owners == null) {
+			owners = new ConcurrentHashMap<Integer, ConfirmedTickets>();
+			Map<Integer, ConfirmedTickets> existing = bySeat.putIfAbsent(rowId, owners);
+			if (existing != null) {
+				owners = existing;
+			}
+		}
+		return owners;
+	}
+}
@@ -0,0 +1,38 @@
+package com.galvez.demos.ticketing.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of the seats of a hold given back to their rows. The
+ * hold id links it to the Hold event of the same seats.
+ */
+@Name("com.galvez.demos.ticketing.Release")
+@Label("Release Seats")
+@Category("Ticketing")
+@Description("Seats of an expired or failed hold made available again")
+@Enabled(false)
+@StackTrace(false)
+class ReleaseFlightEvent extends Event {
+	static final String EXPIRED = "EXPIRED";
+	static final String PURCHASE_FAILED = "PURCHASE_FAILED";
+	static final String NOT_RECORDED = "NOT_RECORDED";
+
+	@Label("Event Name")
+	String eventName;
+
+	@Label("Hold Id")
+	long holdId;
+
+	@Label("Seats Released")
+	int seats;
+
+	@Label("Outcome")
+	String outcome;
+
+}
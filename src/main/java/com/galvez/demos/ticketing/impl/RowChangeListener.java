@@ -0,0 +1,17 @@
+package com.galvez.demos.ticketing.impl;
+
+/**
+ * Listener for changes in the available seats of a row
+ */
+interface RowChangeListener {
+
+	/**
+	 * Notifies the listener that seats of the row were held or released. It is
+	 * called while the row is locked, so it must be short.
+	 * 
+	 * @param row
+	 *            row that changed
+	 */
+	void rowChanged(TicketRow row);
+
+}
@@ -0,0 +1,169 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Index of the rows of an event ordered by quality, best row first. It is a
+ * segment tree over the longest run of available seats of every row, so the
+ * best row that can fit a request is found in O(log rows). Rows notify the
+ * index whenever their seats change.
+ * <p>
+ * The index doesn't lock: leaves are written by the rows while they hold their
+ * own monitor and the inner nodes are refreshed with compare and set. Readers
+ * may see a row that has just been filled, so callers must be ready for the
+ * row to reject the request and ask the row to publish its state again.
+ */
+class RowIndex implements RowChangeListener {
+
+	private final TicketRow[] rows;
+	// Rows in the order they are in the venue, for parties split over adjacent rows
+	private final TicketRow[] rowsByPosition;
+	private final int leafCount;
+	private final AtomicIntegerArray maxContiguousTickets;
+	// Blocks over adjacent rows, created for the first party split over rows
+	private volatile BlockIndex blocks;
+
+	/**
+	 * Creates the index and registers it with the rows
+	 * 
+	 * @param rowsByQuality
+	 *            rows sorted from the best to the worst, adjacent rows next to
+	 *            each other
+	 */
+	RowIndex(List<TicketRow> rowsByQuality) {
+		this(rowsByQuality, rowsByQuality);
+	}
+
+	/**
+	 * Creates the index for a venue whose row quality doesn't follow the order of
+	 * the rows, and registers it with the rows
+	 * 
+	 * @param rowsByQuality
+	 *            rows sorted from the best to the worst
+	 * @param rowsByPosition
+	 *            the same rows in the order they are in the venue
+	 */
+	RowIndex(List<TicketRow> rowsByQuality, List<TicketRow> rowsByPosition) {
+		rows = rowsByQuality.toArray(new TicketRow[rowsByQuality.size()]);
+		this.rowsByPosition = rowsByPosition.toArray(new TicketRow[rowsByPosition.size()]);
+		int leaves = 1;
+		while (leaves < rows.length) {
+			leaves <<= 1;
+		}
+		leafCount = leaves;
+		maxContiguousTickets = new AtomicIntegerArray(2 * leafCount);
+		for (int rank = 0; rank < rows.length; rank++) {
+			rows[rank].setRowChangeListener(this, rank);
+			maxContiguousTickets.set(leafCount + rank, rows[rank].getMaxContiguousTickets());
+		}
+		for (int node = leafCount - 1; node >= 1; node--) {
+			maxContiguousTickets.set(node,
+					Math.max(maxContiguousTickets.get(2 * node), maxContiguousTickets.get(2 * node + 1)));
+		}
+	}
+
+	/**
+	 * Finds the best row with enough contiguous seats
+	 * 
+	 * @param numSeats
+	 *            number of seats that must be together
+	 * @return rank of the row, -1 if no row has enough contiguous seats
+	 */
+	int findBestRow(int numSeats) {
+		if (maxContiguousTickets.get(1) < numSeats) {
+			return -1;
+		}
+		int node = 1;
+		while (node < leafCount) {
+			if (maxContiguousTickets.get(2 * node) >= numSeats) {
+				node = 2 * node;
+			} else if (maxContiguousTickets.get(2 * node + 1) >= numSeats) {
+				node = 2 * node + 1;
+			} else {
+				/*
+				 * The seats were taken while we were going down the tree, and the row taking
+				 * them may not have refreshed this node yet. Refresh it ourselves and start
+				 * again from the root, other rows may still fit the request
+				 */
+				refresh(node);
+				if (maxContiguousTickets.get(1) < numSeats) {
+					return -1;
+				}
+				node = 1;
+			}
+		}
+		return node - leafCount;
+	}
+
+	/**
+	 * Returns the row with the given rank
+	 * 
+	 * @param rank
+	 *            position of the row, zero is the best row
+	 * @return the row
+	 */
+	TicketRow getRow(int rank) {
+		return rows[rank];
+	}
+
+	/**
+	 * Returns the number of rows in the index
+	 * 
+	 * @return number of rows
+	 */
+	int size() {
+		return rows.length;
+	}
+
+	/**
+	 * Returns the index of blocks over adjacent rows, creating it the first time
+	 * 
+	 * @return the block index
+	 */
+	BlockIndex getBlockIndex() {
+		BlockIndex current = blocks;
+		if (current != null) {
+			return current;
+		}
+		synchronized (this) {
+			if (blocks == null) {
+				blocks = new BlockIndex(rowsByPosition);
+			}
+			return blocks;
+		}
+	}
+
+	public void rowChanged(TicketRow row) {
+		int node = leafCount + row.getRank();
+		maxContiguousTickets.set(node, row.getMaxContiguousTickets());
+		refresh(node / 2);
+		BlockIndex current = blocks;
+		if (current != null) {
+			current.rowChanged(row.getRank());
+		}
+	}
+
+	// Recomputes the inner nodes from the given one up to the root
+	private void refresh(int node) {
+		for (; node >= 1; node /= 2) {
+			/*
+			 * Reading the parent before the children makes the compare and set fail if
+			 * another row updated the parent with newer children in the meantime. A
+			 * successful compare and set may still write children that are already stale:
+			 * the thread that changed them may have seen the old parent matching and moved
+			 * on. So whoever writes the parent reads the children again, and only leaves
+			 * the node once the parent matches them.
+			 */
+			int current;
+			int updated;
+			do {
+				current = maxContiguousTickets.get(node);
+				updated = Math.max(maxContiguousTickets.get(2 * node), maxContiguousTickets.get(2 * node + 1));
+				if (current != updated) {
+					maxContiguousTickets.compareAndSet(node, current, updated);
+				}
+			} while (current != updated);
+		}
+	}
+}
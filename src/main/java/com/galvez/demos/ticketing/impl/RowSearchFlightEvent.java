@@ -0,0 +1,41 @@
+package com.galvez.demos.ticketing.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of a search for seats together in a row. It measures
+ * the search and the claim of the seats while the row is locked.
+ */
+@Name("com.galvez.demos.ticketing.RowSearch")
+@Label("Row Search")
+@Category("Ticketing")
+@Description("Search for the best seats together in a row")
+@Enabled(false)
+@StackTrace(false)
+class RowSearchFlightEvent extends Event {
+	static final String FOUND = "FOUND";
+	static final String NOT_FOUND = "NOT_FOUND";
+
+	@Label("Event Name")
+	String eventName;
+
+	@Label("Row")
+	String rowId;
+
+	@Label("Seats Requested")
+	int seatsRequested;
+
+	@Label("Seats Available")
+	@Description("Seats available in the row after the search")
+	int seatsAvailable;
+
+	@Label("Outcome")
+	String outcome;
+
+}
@@ -0,0 +1,343 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.galvez.demos.ticketing.SeatChanges;
+import com.galvez.demos.ticketing.SeatMap;
+
+/**
+ * Live feed of the seat availability changes of an event. On every tick the
+ * feed compares the latest seat map of the event with the previous one, only
+ * looking into the rows that are not the same object, and appends the net
+ * change of every seat as one batch to a ring of recent batches. Holds and
+ * expirations don't wait for the feed nor for its subscribers.
+ * <p>
+ * Every subscriber reads the ring at its own pace on the delivery executor,
+ * as much as it has requested. A new subscriber starts with a reset batch with
+ * the whole seat map, and one resuming from a sequence number gets the batches
+ * after it. A subscriber that falls further behind than the ring holds is sent
+ * a reset batch and carries on from there, so buffers stay bounded whatever
+ * the subscribers do.
+ */
+public class SeatChangeFeed implements Flow.Publisher<SeatChanges> {
+
+	private static final long DEFAULT_TICK = 50L;
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private final EventTicketService event;
+	private final Executor deliveryExecutor;
+	private final AtomicReferenceArray<SeatChanges> batches;
+	private final int mask;
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	// Last batch appended and the seat map after it, replaced together
+	private volatile Checkpoint checkpoint;
+	private final ScheduledFuture<?> ticks;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a feed ticking every 50 milliseconds on a thread shared by the
+	 * feeds of the JVM, delivering on the common fork join pool and keeping the
+	 * last 1024 batches
+	 *
+	 * @param event
+	 *            event whose changes are published
+	 */
+	public SeatChangeFeed(EventTicketService event) {
+		this(event, Ticker.TICKER, ForkJoinPool.commonPool(), DEFAULT_TICK, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a feed
+	 *
+	 * @param event
+	 *            event whose changes are published
+	 * @param ticker
+	 *            scheduler running the ticks
+	 * @param deliveryExecutor
+	 *            executor delivering the batches to the subscribers
+	 * @param tickMillis
+	 *            time in milliseconds between batches
+	 * @param capacity
+	 *            number of batches kept for subscribers behind or resuming, it
+	 *            is rounded up to a power of two
+	 */
+	public SeatChangeFeed(EventTicketService event, ScheduledExecutorService ticker, Executor deliveryExecutor,
+			long tickMillis, int capacity) {
+		if (tickMillis <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException("Tick and capacity must be positive");
+		}
+		this.event = event;
+		this.deliveryExecutor = deliveryExecutor;
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		batches = new AtomicReferenceArray<SeatChanges>(size);
+		mask = size - 1;
+		checkpoint = new Checkpoint(0L, event.getSeatMap());
+		ticks = ticker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				tick();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Subscribes from now on, the first batch is a reset with the whole seat map
+	 */
+	public void subscribe(Flow.Subscriber<? super SeatChanges> subscriber) {
+		subscribe(subscriber, -1L);
+	}
+
+	/**
+	 * Subscribes from the batch after the given one. The subscriber is sent a
+	 * reset batch first if those batches are no longer kept.
+	 *
+	 * @param subscriber
+	 *            subscriber receiving the batches
+	 * @param lastSequence
+	 *            sequence of the last batch the subscriber has seen, -1 for none
+	 */
+	public void subscribe(Flow.Subscriber<? super SeatChanges> subscriber, long lastSequence) {
+		if (subscriber == null) {
+			throw new NullPointerException("The subscriber can't be null");
+		}
+		Subscription subscription = new Subscription(subscriber,
+				lastSequence < 0L || lastSequence > checkpoint.sequence ? -1L : lastSequence + 1L);
+		subscriptions.add(subscription);
+		subscription.start();
+	}
+
+	/**
+	 * Returns the sequence of the last batch
+	 *
+	 * @return sequence number, 0 before the first change
+	 */
+	public long getSequence() {
+		return checkpoint.sequence;
+	}
+
+	/**
+	 * Returns the number of subscribers
+	 *
+	 * @return active subscriptions
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Returns whether the feed was closed
+	 *
+	 * @return true once the feed stopped ticking
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Stops the feed. Subscribers get the batches already appended and then
+	 * complete, and the ticker no longer refers to the event.
+	 */
+	public void close() {
+		closed = true;
+		ticks.cancel(false);
+		for (Subscription subscription : subscriptions) {
+			subscription.signal();
+		}
+	}
+
+	/**
+	 * Appends the changes since the previous tick, if any
+	 */
+	void tick() {
+		Checkpoint current = checkpoint;
+		if (closed || event.getSeatMapVersion() == current.seatMap.getVersion()) {
+			return;
+		}
+		SeatMap seatMap = event.getSeatMap();
+		List<SeatChanges.SeatChange> changes = new ArrayList<SeatChanges.SeatChange>();
+		for (SeatMap.Row row : seatMap.getRowsChangedSince(current.seatMap)) {
+			SeatMap.Row previous = current.seatMap.getRow(row.getRowId());
+			for (int i = 0; i < row.getSeatCount(); i++) {
+				boolean available = row.isAvailable(i);
+				if (previous == null || previous.isAvailable(i) != available) {
+					changes.add(new SeatChanges.SeatChange(row.getRowId(), row.getSeatNumber(i), available));
+				}
+			}
+		}
+		if (changes.isEmpty()) {
+			// Seats held and released within the tick, only the map moves on
+			checkpoint = new Checkpoint(current.sequence, seatMap);
+			return;
+		}
+		long sequence = current.sequence + 1L;
+		batches.set((int) (sequence & mask), SeatChanges.changes(sequence, changes));
+		checkpoint = new Checkpoint(sequence, seatMap);
+		for (Subscription subscription : subscriptions) {
+			subscription.signal();
+		}
+	}
+
+	// The batch with the given sequence, null if it was overwritten
+	private SeatChanges getBatch(long sequence) {
+		SeatChanges batch = batches.get((int) (sequence & mask));
+		return batch != null && batch.getSequence() == sequence ? batch : null;
+	}
+
+	/**
+	 * Last batch appended and the seat map after it
+	 */
+	private static final class Checkpoint {
+		private final long sequence;
+		private final SeatMap seatMap;
+
+		private Checkpoint(long sequence, SeatMap seatMap) {
+			this.sequence = sequence;
+			this.seatMap = seatMap;
+		}
+	}
+
+	/**
+	 * Cursor of a subscriber into the ring. Deliveries are serialized by a work
+	 * in progress counter, whoever takes it from zero runs the drain.
+	 */
+	private final class Subscription implements Flow.Subscription, Runnable {
+		private final Flow.Subscriber<? super SeatChanges> subscriber;
+		private final AtomicLong demand = new AtomicLong();
+		// Held while onSubscribe runs, so nothing is delivered before it returns
+		private final AtomicInteger work = new AtomicInteger(1);
+		// Only used by the thread draining, -1 to start with a reset
+		private long next;
+		private volatile boolean cancelled;
+		private boolean completed;
+		private volatile Throwable invalidRequest;
+
+		private Subscription(Flow.Subscriber<? super SeatChanges> subscriber, long next) {
+			this.subscriber = subscriber;
+			this.next = next;
+		}
+
+		private void start() {
+			try {
+				subscriber.onSubscribe(this);
+			} catch (Throwable e) {
+				cancel();
+			}
+			if (work.decrementAndGet() != 0) {
+				deliveryExecutor.execute(this);
+			}
+		}
+
+		public void request(long n) {
+			if (n <= 0) {
+				invalidRequest = new IllegalArgumentException("The number of batches requested must be positive");
+			} else {
+				long current;
+				long updated;
+				do {
+					current = demand.get();
+					updated = current + n < 0L ? Long.MAX_VALUE : current + n;
+				} while (!demand.compareAndSet(current, updated));
+			}
+			signal();
+		}
+
+		public void cancel() {
+			cancelled = true;
+			subscriptions.remove(this);
+		}
+
+		private void signal() {
+			if (work.getAndIncrement() == 0) {
+				deliveryExecutor.execute(this);
+			}
+		}
+
+		public void run() {
+			int missed = 1;
+			do {
+				drain();
+				missed = work.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void drain() {
+			if (cancelled || completed) {
+				return;
+			}
+			if (invalidRequest != null) {
+				cancel();
+				subscriber.onError(invalidRequest);
+				return;
+			}
+			long requested = demand.get();
+			long emitted = 0L;
+			while (emitted != requested && !cancelled) {
+				Checkpoint current = checkpoint;
+				SeatChanges batch;
+				if (next < 0L) {
+					batch = SeatChanges.reset(current.sequence, current.seatMap);
+				} else if (next > current.sequence) {
+					break;
+				} else {
+					batch = getBatch(next);
+					if (batch == null) {
+						// Too far behind, start over from the latest map
+						batch = SeatChanges.reset(current.sequence, current.seatMap);
+					}
+				}
+				next = batch.getSequence() + 1L;
+				try {
+					subscriber.onNext(batch);
+				} catch (Throwable e) {
+					cancel();
+					return;
+				}
+				emitted++;
+			}
+			if (emitted != 0L && requested != Long.MAX_VALUE) {
+				demand.addAndGet(-emitted);
+			}
+			if (closed && !cancelled && next > checkpoint.sequence) {
+				completed = true;
+				subscriptions.remove(this);
+				subscriber.onComplete();
+			}
+		}
+	}
+
+	/**
+	 * Thread shared by the feeds created without a scheduler of their own
+	 */
+	private static final class Ticker {
+		private static final ScheduledExecutorService TICKER = createTicker();
+
+		private static ScheduledExecutorService createTicker() {
+			ScheduledThreadPoolExecutor ticker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "seat-change-feed");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			// A closed feed leaves the queue at once, with the event it refers to
+			ticker.setRemoveOnCancelPolicy(true);
+			return ticker;
+		}
+	}
+
+}
@@ -1,11 +1,10 @@
 package com.galvez.demos.ticketing.impl;
 
-import java.util.ArrayList;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.List;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 import com.galvez.demos.ticketing.SeatHold;
 import com.galvez.demos.ticketing.Ticket;
@@ -16,7 +15,9 @@ import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
 /**
  * This SeatHold implementation contains the information for tickets reserved
  * and has functionality to either release the tickets after a specified time or
- * to make the purchase complete
+ * to make the purchase complete. Confirmation and expiration race for the hold
+ * with a compare and set on its state, so exactly one of them wins and the
+ * other one leaves the tickets untouched.
  * 
  * @author jgalve
  *
@@ -24,25 +25,50 @@ import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
 public class SeatHoldImpl implements SeatHold {
 
 	private static final String TICKET_RELEASE_ERROR = "Ticket row %s number %s is in status %s and cannot be released";
-	// 5 seconds to purchase (for testing)
-	private static final long RELEASE_TIMEOUT = 5000L;
+	// 5 seconds to purchase by default (for testing)
+	public static final long DEFAULT_RELEASE_TIMEOUT = 5000L;
+	// States of the hold
+	private static final int HELD = 0;
+	private static final int CONFIRMED = 1;
+	private static final int EXPIRED = 2;
+	private static final VarHandle STATE;
+
+	static {
+		try {
+			STATE = MethodHandles.lookup().findVarHandle(SeatHoldImpl.class, "state", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
 	// Tickets in this seat hold
 	private List<Ticket> tickets;
 	// Total price for all the tickets
 	private double totalPrice;
 	// Unique identifier for the seat hold
-	private int seatHoldId;
+	private long seatHoldId;
 	// Customer holding the tickets
 	private String customerEmail;
-	// Timer to expire the reservation and return the tickets to available
-	private Timer expirationTimer;
-	private List<TicketStatusListener> ticketListeners;
+	// Event the tickets belong to, null for holds created outside an event
+	private String eventName;
+	// Expiration to release the reservation and return the tickets to available
+	private HoldExpirationScheduler.Expiration expiration;
+	private List<TicketStatusListener> ticketListeners = new CopyOnWriteArrayList<TicketStatusListener>();
+	private List<HoldReleaseListener> releaseListeners = new CopyOnWriteArrayList<HoldReleaseListener>();
+	// Wall clock time in milliseconds when the hold expires
+	private long expirationTime;
+	// Where the release was scheduled, to schedule it again if a confirmation is undone
+	private HoldExpirationScheduler scheduler;
+	private Executor releaseExecutor;
+	// HELD until either confirmSeats or the expiration wins, only changed through STATE
+	private volatile int state;
+	// Set when the hold was released because its time ran out
+	private volatile boolean timedOut;
 
 	/**
 	 * Creates a new SeatHold with the specified tickets and attached to the
-	 * provided customerEmail. It automatically generates a new ticket ID and starts
-	 * a timer to automatically release the tickets if not purchased before the
-	 * expiration time.
+	 * provided customerEmail, using the default timeout and the shared expiration
+	 * scheduler.
 	 * 
 	 * @param tickets
 	 *            List of tickets for this hold
@@ -52,29 +78,158 @@ public class SeatHoldImpl implements SeatHold {
 	 *             if the tickets specified are not available to reserve
 	 */
 	public SeatHoldImpl(List<Ticket> tickets, String customerEmail) throws TicketUnavailableException {
+		this(tickets, customerEmail, DEFAULT_RELEASE_TIMEOUT, HoldExpirationScheduler.getDefault());
+	}
+
+	/**
+	 * Creates a new SeatHold with the specified tickets and attached to the
+	 * provided customerEmail. It automatically generates a new ticket ID and
+	 * registers with the scheduler to automatically release the tickets if not
+	 * purchased before the expiration time.
+	 * 
+	 * @param tickets
+	 *            List of tickets for this hold
+	 * @param customerEmail
+	 *            Customer email to be attached to this hold
+	 * @param releaseTimeout
+	 *            time in milliseconds before the tickets are released
+	 * @param scheduler
+	 *            scheduler in charge of releasing the tickets
+	 * @throws TicketUnavailableException
+	 *             if the tickets specified are not available to reserve, in
+	 *             which case none of them is reserved
+	 */
+	public SeatHoldImpl(List<Ticket> tickets, String customerEmail, long releaseTimeout,
+			HoldExpirationScheduler scheduler) throws TicketUnavailableException {
+		this(tickets, customerEmail, releaseTimeout, scheduler, null);
+	}
+
+	/**
+	 * Creates a new SeatHold whose tickets are released by the given executor
+	 * once the scheduler expires it, instead of by the scheduler thread
+	 * 
+	 * @param tickets
+	 *            List of tickets for this hold
+	 * @param customerEmail
+	 *            Customer email to be attached to this hold
+	 * @param releaseTimeout
+	 *            time in milliseconds before the tickets are released
+	 * @param scheduler
+	 *            scheduler in charge of expiring the hold
+	 * @param releaseExecutor
+	 *            executor releasing the tickets, null to release them on the
+	 *            scheduler thread
+	 * @throws TicketUnavailableException
+	 *             if the tickets specified are not available to reserve, in
+	 *             which case none of them is reserved
+	 */
+	public SeatHoldImpl(List<Ticket> tickets, String customerEmail, long releaseTimeout,
+			HoldExpirationScheduler scheduler, Executor releaseExecutor) throws TicketUnavailableException {
+		this(HoldIds.next(), tickets, customerEmail, null);
+		scheduleRelease(releaseTimeout, scheduler, releaseExecutor);
+	}
+
+	/**
+	 * Creates a new SeatHold with an identifier given by its event. Its release
+	 * is not scheduled until {@link #scheduleRelease} is called, so the event can
+	 * register the hold before it may expire.
+	 * 
+	 * @param seatHoldId
+	 *            identifier of the hold, unique within the event
+	 * @param tickets
+	 *            List of tickets for this hold
+	 * @param customerEmail
+	 *            Customer email to be attached to this hold
+	 * @param eventName
+	 *            name of the event, recorded by flight recordings
+	 * @throws TicketUnavailableException
+	 *             if the tickets specified are not available to reserve, in
+	 *             which case none of them is reserved
+	 */
+	SeatHoldImpl(long seatHoldId, List<Ticket> tickets, String customerEmail, String eventName)
+			throws TicketUnavailableException {
+		TicketClaims.reserveAll(tickets);
+		initialize(seatHoldId, tickets, customerEmail);
+		this.eventName = eventName;
+	}
+
+	private SeatHoldImpl() {
+	}
+
+	/**
+	 * Recreates a hold whose tickets are already reserved, keeping its
+	 * identifier. Its release is not scheduled until {@link #scheduleRelease} is
+	 * called.
+	 * 
+	 * @param seatHoldId
+	 *            identifier of the hold
+	 * @param tickets
+	 *            List of reserved tickets for this hold
+	 * @param customerEmail
+	 *            Customer email attached to this hold
+	 * @param eventName
+	 *            name of the event, recorded by flight recordings
+	 * @return the hold
+	 */
+	static SeatHoldImpl restore(long seatHoldId, List<Ticket> tickets, String customerEmail, String eventName) {
+		SeatHoldImpl hold = new SeatHoldImpl();
+		hold.initialize(seatHoldId, tickets, customerEmail);
+		hold.eventName = eventName;
+		return hold;
+	}
+
+	// Sets up a hold whose tickets are reserved
+	private void initialize(long seatHoldId, List<Ticket> tickets, String customerEmail) {
 		this.tickets = tickets;
 		for (Ticket ticket : tickets) {
 			totalPrice += ticket.getTicketPrice();
-			ticket.reserveTicket();
 		}
 
-		seatHoldId = new Random().nextInt(10000);
+		this.seatHoldId = seatHoldId;
 		this.customerEmail = customerEmail;
-		expirationTimer = new Timer();
-		expirationTimer.schedule(new ReleaseTicketsTask(), RELEASE_TIMEOUT);
 	}
 
 	/**
-	 * Timer to release the tickets
+	 * Registers the hold with the scheduler to release the tickets if they are
+	 * not purchased before the timeout. Listeners added before this call are
+	 * notified of the release even if the timeout is very short.
+	 * 
+	 * @param releaseTimeout
+	 *            time in milliseconds before the tickets are released
+	 * @param scheduler
+	 *            scheduler in charge of expiring the hold
+	 * @param releaseExecutor
+	 *            executor releasing the tickets without blocking the scheduler
+	 *            thread, null to release them on the scheduler thread
+	 */
+	void scheduleRelease(long releaseTimeout, HoldExpirationScheduler scheduler, final Executor releaseExecutor) {
+		this.scheduler = scheduler;
+		this.releaseExecutor = releaseExecutor;
+		expirationTime = System.currentTimeMillis() + releaseTimeout;
+		final ReleaseTicketsTask releaseTask = new ReleaseTicketsTask();
+		if (releaseExecutor == null) {
+			expiration = scheduler.schedule(releaseTask, releaseTimeout);
+		} else {
+			expiration = scheduler.schedule(new Runnable() {
+				public void run() {
+					releaseExecutor.execute(releaseTask);
+				}
+			}, releaseTimeout);
+		}
+	}
+
+	/**
+	 * Task to release the tickets
 	 * 
 	 * @author jgalve
 	 *
 	 */
-	class ReleaseTicketsTask extends TimerTask {
-		@Override
+	class ReleaseTicketsTask implements Runnable {
 		public void run() {
-			releaseTickets();
-			expirationTimer.cancel();
+			if (STATE.compareAndSet(SeatHoldImpl.this, HELD, EXPIRED)) {
+				timedOut = true;
+				releaseHold(ReleaseFlightEvent.EXPIRED);
+			}
 		}
 	}
 
@@ -83,19 +238,60 @@ public class SeatHoldImpl implements SeatHold {
 			return null;
 		}
 
-		expirationTimer.cancel();
-
-		for (Ticket ticket : tickets) {
-			switch (ticket.getStatus()) {
-			case AVAILABLE:
+		if (!STATE.compareAndSet(this, HELD, CONFIRMED)) {
+			if (state == EXPIRED) {
 				throw new TicketUnavailableException("Reservation has expired");
-			case SOLD:
-				throw new TicketUnavailableException("The specified tickets are no longer available");
-			case RESERVED:
-				ticket.purchaseTicket();
 			}
+			throw new TicketUnavailableException("The specified tickets are no longer available");
+		}
+		expiration.cancel();
+
+		try {
+			TicketClaims.purchaseAll(tickets);
+		} catch (TicketUnavailableException e) {
+			// Nothing was purchased and the hold can't be completed, give the seats back
+			state = EXPIRED;
+			releaseHold(ReleaseFlightEvent.PURCHASE_FAILED);
+			throw e;
+		}
+		return ConfirmationCodes.next();
+	}
+
+	/**
+	 * Undoes {@link #confirmSeats(String)} when the purchase could not be
+	 * recorded: the tickets are reserved again and the hold waits to be
+	 * purchased until its original expiration time, which may release it right
+	 * away. The seats were unavailable while sold and stay unavailable while
+	 * reserved, so the rows and the counts of the event don't change.
+	 * 
+	 * @return false if the hold is not confirmed or its tickets can't be
+	 *         reserved again, in which case they stay sold
+	 */
+	boolean cancelConfirmation() {
+		if (state != CONFIRMED || !TicketClaims.cancelPurchaseAll(tickets)) {
+			return false;
 		}
-		return UUID.randomUUID().toString();
+		state = HELD;
+		scheduleRelease(Math.max(0, getRemainingTime()), scheduler, releaseExecutor);
+		return true;
+	}
+
+	/**
+	 * Gives the tickets of a hold that could not be recorded back to their
+	 * rows. The customer never got its id, so the release listeners are not
+	 * notified: for them the hold never existed.
+	 * 
+	 * @return false if the hold was already confirmed or released
+	 */
+	boolean cancel() {
+		if (!STATE.compareAndSet(this, HELD, EXPIRED)) {
+			return false;
+		}
+		if (expiration != null) {
+			expiration.cancel();
+		}
+		releaseTickets(ReleaseFlightEvent.NOT_RECORDED);
+		return true;
 	}
 
 	public List<Ticket> getTickets() {
@@ -106,8 +302,18 @@ public class SeatHoldImpl implements SeatHold {
 		return totalPrice;
 	}
 
-	// Releases the tickets in this hold
-	private void releaseTickets() {
+	// Gives the tickets back and notifies the end of the hold
+	private void releaseHold(String reason) {
+		releaseTickets(reason);
+		for (HoldReleaseListener listener : releaseListeners) {
+			listener.holdReleased(this);
+		}
+	}
+
+	// Releases the tickets in this hold, the reason is recorded by flight recordings
+	private void releaseTickets(String reason) {
+		ReleaseFlightEvent flight = new ReleaseFlightEvent();
+		flight.begin();
 		for (Ticket ticket : tickets) {
 			try {
 				ticket.releaseTicket();
@@ -123,17 +329,82 @@ public class SeatHoldImpl implements SeatHold {
 				}
 			}
 		}
+		flight.end();
+		if (flight.shouldCommit()) {
+			flight.eventName = eventName;
+			flight.holdId = seatHoldId;
+			flight.seats = tickets.size();
+			flight.outcome = reason;
+			flight.commit();
+		}
 	}
 
-	public int getSeatHoldId() {
+	public long getSeatHoldId() {
 		return seatHoldId;
 	}
 
 	public void notifyTicketAvailableAgain(TicketStatusListener listener) {
-		if (ticketListeners == null) {
-			ticketListeners = new ArrayList<TicketStatusListener>();
-		}
 		ticketListeners.add(listener);
 	}
 
+	/**
+	 * Returns the email of the customer holding the tickets
+	 * 
+	 * @return the customer email
+	 */
+	String getCustomerEmail() {
+		return customerEmail;
+	}
+
+	/**
+	 * Returns whether the hold is still waiting to be purchased
+	 * 
+	 * @return true until the hold is confirmed or expires
+	 */
+	boolean isHeld() {
+		return state == HELD;
+	}
+
+	/**
+	 * Returns whether the hold was released because its time ran out, rather
+	 * than because its purchase failed
+	 * 
+	 * @return true if the hold expired
+	 */
+	boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Returns the time left before the hold expires
+	 * 
+	 * @return time in milliseconds, zero or less if it is due
+	 */
+	long getRemainingTime() {
+		return expirationTime - System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns when the hold expires
+	 * 
+	 * @return wall clock time in milliseconds
+	 */
+	long getExpirationTime() {
+		return expirationTime;
+	}
+
+	/**
+	 * Notifies a listener when this hold is released without being purchased
+	 * 
+	 * @param listener
+	 *            listener for the release
+	 */
+	void notifyHoldReleased(HoldReleaseListener listener) {
+		releaseListeners.add(listener);
+		if (state == EXPIRED) {
+			// Released before the listener was added, it may be notified twice
+			listener.holdReleased(this);
+		}
+	}
+
 }
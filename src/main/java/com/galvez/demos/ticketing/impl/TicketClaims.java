@@ -0,0 +1,95 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.List;
+
+import com.galvez.demos.ticketing.Ticket;
+import com.galvez.demos.ticketing.TicketStatus;
+import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
+
+/**
+ * All-or-nothing status changes for a group of tickets. Every ticket is moved
+ * with a compare and set and, if one of them is not in the expected status,
+ * the tickets already moved are put back, so either the whole block changes or
+ * none of it does. No lock is taken.
+ */
+final class TicketClaims {
+
+	private TicketClaims() {
+	}
+
+	/**
+	 * Reserves all the tickets
+	 * 
+	 * @param tickets
+	 *            tickets to reserve
+	 * @throws TicketUnavailableException
+	 *             if any of the tickets is not available, in which case none is
+	 *             reserved
+	 */
+	static void reserveAll(List<Ticket> tickets) throws TicketUnavailableException {
+		if (!transitionAll(tickets, TicketStatus.AVAILABLE, TicketStatus.RESERVED)) {
+			throw new TicketUnavailableException("The specified tickets are no longer available");
+		}
+	}
+
+	/**
+	 * Purchases all the reserved tickets
+	 * 
+	 * @param tickets
+	 *            tickets to purchase
+	 * @throws TicketUnavailableException
+	 *             if any of the tickets is not reserved, in which case none is
+	 *             purchased
+	 */
+	static void purchaseAll(List<Ticket> tickets) throws TicketUnavailableException {
+		if (!transitionAll(tickets, TicketStatus.RESERVED, TicketStatus.SOLD)) {
+			throw new TicketUnavailableException("The specified tickets are no longer available");
+		}
+	}
+
+	/**
+	 * Takes back the purchase of all the tickets, they are reserved again
+	 * 
+	 * @param tickets
+	 *            sold tickets
+	 * @return false if any of the tickets is not sold or can't be reserved
+	 *         again, in which case none is changed
+	 */
+	static boolean cancelPurchaseAll(List<Ticket> tickets) {
+		return transitionAll(tickets, TicketStatus.SOLD, TicketStatus.RESERVED);
+	}
+
+	private static boolean transitionAll(List<Ticket> tickets, TicketStatus expected, TicketStatus status) {
+		for (int i = 0; i < tickets.size(); i++) {
+			if (!transition(tickets.get(i), expected, status)) {
+				for (int j = i - 1; j >= 0; j--) {
+					transition(tickets.get(j), status, expected);
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean transition(Ticket ticket, TicketStatus expected, TicketStatus status) {
+		if (ticket instanceof AtomicTicket) {
+			return ((AtomicTicket) ticket).compareAndSetStatus(expected, status);
+		}
+		// Tickets from other implementations only support the regular transitions, a
+		// sale can't be taken back
+		try {
+			if (expected == TicketStatus.AVAILABLE && status == TicketStatus.RESERVED) {
+				ticket.reserveTicket();
+			} else if (expected == TicketStatus.RESERVED && status == TicketStatus.AVAILABLE) {
+				ticket.releaseTicket();
+			} else if (expected == TicketStatus.RESERVED && status == TicketStatus.SOLD) {
+				ticket.purchaseTicket();
+			} else {
+				return false;
+			}
+			return true;
+		} catch (TicketUnavailableException e) {
+			return false;
+		}
+	}
+}
@@ -1,27 +1,44 @@
 package com.galvez.demos.ticketing.impl;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 import com.galvez.demos.ticketing.Ticket;
 import com.galvez.demos.ticketing.TicketStatus;
 import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
 
 /**
- * Implementation of Ticket
+ * Implementation of Ticket. The status is kept as the ordinal of the
+ * TicketStatus and every transition is a compare and set, so a ticket changes
+ * status at most once when several threads race for it.
  * 
  * @author jgalve
  *
  */
-public class TicketImpl implements Ticket {
+public class TicketImpl implements Ticket, AtomicTicket {
+
+	private static final TicketStatus[] STATUSES = TicketStatus.values();
+	private static final VarHandle STATUS;
+
+	static {
+		try {
+			STATUS = MethodHandles.lookup().findVarHandle(TicketImpl.class, "ticketStatus", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 
 	private double ticketPrice;
 	private int seatNumber;
 	private String seatRow;
-	private TicketStatus ticketStatus;
+	// Ordinal of the TicketStatus, only changed through STATUS
+	private volatile int ticketStatus;
 
 	public TicketImpl(String seatRow, int seatNumber, double price) {
 		this.seatRow = seatRow;
 		this.seatNumber = seatNumber;
 		this.ticketPrice = price;
-		ticketStatus = TicketStatus.AVAILABLE;
+		ticketStatus = TicketStatus.AVAILABLE.ordinal();
 	}
 
 	public double getTicketPrice() {
@@ -37,28 +54,29 @@ public class TicketImpl implements Ticket {
 	}
 
 	public TicketStatus getStatus() {
-		return ticketStatus;
+		return STATUSES[ticketStatus];
 	}
 
 	public void reserveTicket() throws TicketUnavailableException {
-		if (ticketStatus != TicketStatus.AVAILABLE) {
+		if (!compareAndSetStatus(TicketStatus.AVAILABLE, TicketStatus.RESERVED)) {
 			throw new TicketUnavailableException("Ticket is not available");
 		}
-		ticketStatus = TicketStatus.RESERVED;
 	}
 
 	public void purchaseTicket() throws TicketUnavailableException {
-		if (ticketStatus != TicketStatus.RESERVED) {
+		if (!compareAndSetStatus(TicketStatus.RESERVED, TicketStatus.SOLD)) {
 			throw new TicketUnavailableException("Ticket is not reserved");
 		}
-		ticketStatus = TicketStatus.SOLD;
 	}
 
 	public void releaseTicket() throws TicketUnavailableException {
-		if (ticketStatus != TicketStatus.RESERVED) {
+		if (!compareAndSetStatus(TicketStatus.RESERVED, TicketStatus.AVAILABLE)) {
 			throw new TicketUnavailableException("Ticket is not reserved");
 		}
-		ticketStatus = TicketStatus.AVAILABLE;
+	}
+
+	public boolean compareAndSetStatus(TicketStatus expected, TicketStatus status) {
+		return STATUS.compareAndSet(this, expected.ordinal(), status.ordinal());
 	}
 
 	@Override
@@ -0,0 +1,571 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.galvez.demos.ticketing.HoldRequest;
+import com.galvez.demos.ticketing.HoldResult;
+
+/**
+ * Counters and latency histograms of the operations of an event. Recording
+ * takes no lock and allocates nothing, counters are LongAdders and latencies go
+ * to striped LatencyHistograms. Every operation is counted but, to keep the
+ * cost of the clock off the hold path, only a sample of them is timed.
+ * <p>
+ * The seats available are always exact, but the row index the holds search is
+ * updated after the rows, so how stale it is shows as the number of holds that
+ * found a row with fewer seats than the index said. The metrics can be read as
+ * a snapshot from code or through JMX once registered.
+ */
+public class TicketMetrics implements TicketMetricsMXBean {
+	private static final String DOMAIN = "com.galvez.demos.ticketing";
+	private static final double NANOS_PER_MICRO = TimeUnit.MICROSECONDS.toNanos(1);
+	// Start time of the operations begun while the metrics were disabled
+	private static final long NOT_RECORDED = Long.MIN_VALUE;
+	// Start time of the operations counted but not timed
+	private static final long NOT_TIMED = Long.MIN_VALUE + 1;
+	private static final int DEFAULT_LATENCY_SAMPLING = 8;
+	// Larger parties are counted with the largest size
+	private static final int MAX_PARTY_SIZE = 64;
+
+	private final EventTicketService event;
+	private volatile boolean enabled;
+	private volatile int latencySampling;
+	private volatile ObjectName objectName;
+
+	private final LatencyHistogram holdLatency;
+	private final LatencyHistogram purchaseLatency;
+	private final LongAdder holds;
+	private final LongAdder holdFailures;
+	private final LongAdder seatsHeld;
+	private final LongAdder purchases;
+	private final LongAdder purchaseFailures;
+	private final LongAdder seatsSold;
+	private final LongAdder expirations;
+	private final LongAdder staleIndexReads;
+	// Hold requests by number of seats requested, served or not
+	private final LongAdder[] partySizes;
+
+	/**
+	 * Creates the metrics of an event, enabled
+	 *
+	 * @param event
+	 *            the event measured
+	 */
+	TicketMetrics(EventTicketService event) {
+		this.event = event;
+		enabled = true;
+		latencySampling = DEFAULT_LATENCY_SAMPLING;
+		holdLatency = new LatencyHistogram();
+		purchaseLatency = new LatencyHistogram();
+		holds = new LongAdder();
+		holdFailures = new LongAdder();
+		seatsHeld = new LongAdder();
+		purchases = new LongAdder();
+		purchaseFailures = new LongAdder();
+		seatsSold = new LongAdder();
+		expirations = new LongAdder();
+		staleIndexReads = new LongAdder();
+		partySizes = new LongAdder[MAX_PARTY_SIZE + 1];
+		for (int i = 0; i < partySizes.length; i++) {
+			partySizes[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Returns whether operations are being recorded
+	 *
+	 * @return true if the metrics are enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts or stops recording operations. Values already recorded are kept.
+	 *
+	 * @param enabled
+	 *            true to record operations
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Returns how many operations are counted for each one timed
+	 *
+	 * @return one operation in this many is timed
+	 */
+	public int getLatencySampling() {
+		return latencySampling;
+	}
+
+	/**
+	 * Sets how many operations are counted for each one timed. Reading the clock
+	 * twice costs about a tenth of a hold, so by default only one operation in 8,
+	 * picked at random, is timed. Counters are always exact.
+	 *
+	 * @param latencySampling
+	 *            one operation in this many is timed, 1 to time all of them
+	 */
+	public void setLatencySampling(int latencySampling) {
+		if (latencySampling <= 0) {
+			throw new IllegalArgumentException("Sampling must be positive");
+		}
+		this.latencySampling = latencySampling;
+	}
+
+	/**
+	 * Starts recording an operation
+	 *
+	 * @return the start time to pass to the record methods, the operation is not
+	 *         recorded if the metrics are disabled and not timed if it wasn't
+	 *         sampled
+	 */
+	long start() {
+		if (!enabled) {
+			return NOT_RECORDED;
+		}
+		int sampling = latencySampling;
+		if (sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) != 0) {
+			return NOT_TIMED;
+		}
+		return System.nanoTime();
+	}
+
+	// Time since the start of a sampled operation
+	private static void recordLatency(LatencyHistogram histogram, long start) {
+		if (start != NOT_TIMED) {
+			histogram.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Records a successful hold
+	 *
+	 * @param start
+	 *            value returned by {@link #start()}
+	 * @param seats
+	 *            number of seats held
+	 */
+	void holdSucceeded(long start, int seats) {
+		if (start != NOT_RECORDED) {
+			recordLatency(holdLatency, start);
+			holds.increment();
+			seatsHeld.add(seats);
+			recordPartySize(seats);
+		}
+	}
+
+	/**
+	 * Records a hold request that couldn't be served
+	 *
+	 * @param start
+	 *            value returned by {@link #start()}
+	 * @param seats
+	 *            number of seats requested
+	 */
+	void holdFailed(long start, int seats) {
+		if (start != NOT_RECORDED) {
+			recordLatency(holdLatency, start);
+			holdFailures.increment();
+			recordPartySize(seats);
+		}
+	}
+
+	/**
+	 * Records the results of a batch of hold requests. Each request is recorded
+	 * with the latency of the batch divided among the requests.
+	 *
+	 * @param start
+	 *            value returned by {@link #start()}
+	 * @param requests
+	 *            the requests
+	 * @param results
+	 *            result of every request
+	 */
+	void holdsProcessed(long start, List<HoldRequest> requests, List<HoldResult> results) {
+		if (start == NOT_RECORDED || results.isEmpty()) {
+			return;
+		}
+		long latency = start == NOT_TIMED ? -1L : (System.nanoTime() - start) / results.size();
+		for (int i = 0; i < results.size(); i++) {
+			HoldResult result = results.get(i);
+			if (latency >= 0L) {
+				holdLatency.record(latency);
+			}
+			recordPartySize(requests.get(i).getNumSeats());
+			if (result.isHeld()) {
+				holds.increment();
+				seatsHeld.add(result.getSeatHold().getTickets().size());
+			} else {
+				holdFailures.increment();
+			}
+		}
+	}
+
+	private void recordPartySize(int seats) {
+		if (seats > 0) {
+			partySizes[Math.min(seats, MAX_PARTY_SIZE)].increment();
+		}
+	}
+
+	// Middle party size of the requests counted, 1 if there are none
+	private static int medianPartySize(long[] counts) {
+		long total = 0L;
+		for (long count : counts) {
+			total += count;
+		}
+		long seen = 0L;
+		for (int size = 1; size < counts.length; size++) {
+			seen += counts[size];
+			if (2 * seen >= total && seen > 0L) {
+				return size;
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Records a purchase
+	 *
+	 * @param start
+	 *            value returned by {@link #start()}
+	 * @param seats
+	 *            number of seats sold
+	 */
+	void purchaseSucceeded(long start, int seats) {
+		if (start != NOT_RECORDED) {
+			recordLatency(purchaseLatency, start);
+			purchases.increment();
+			seatsSold.add(seats);
+		}
+	}
+
+	/**
+	 * Records a purchase attempt that was rejected
+	 *
+	 * @param start
+	 *            value returned by {@link #start()}
+	 */
+	void purchaseFailed(long start) {
+		if (start != NOT_RECORDED) {
+			recordLatency(purchaseLatency, start);
+			purchaseFailures.increment();
+		}
+	}
+
+	/**
+	 * Records a hold released because its time ran out
+	 */
+	void holdExpired() {
+		if (enabled) {
+			expirations.increment();
+		}
+	}
+
+	/**
+	 * Records a hold that found its row with fewer seats than the row index
+	 * said, and had to look again
+	 */
+	void staleIndexRead() {
+		if (enabled) {
+			staleIndexReads.increment();
+		}
+	}
+
+	/**
+	 * Returns the values recorded so far
+	 *
+	 * @return a snapshot of the metrics
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[partySizes.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = partySizes[i].sum();
+		}
+		return new Snapshot(holds.sum(), holdFailures.sum(), seatsHeld.sum(), purchases.sum(),
+				purchaseFailures.sum(), seatsSold.sum(), expirations.sum(), staleIndexReads.sum(),
+				medianPartySize(counts), holdLatency.snapshot(), purchaseLatency.snapshot());
+	}
+
+	/**
+	 * Returns the values recorded so far and starts over, so consecutive calls
+	 * return the activity of consecutive intervals
+	 *
+	 * @return a snapshot of the metrics before the reset
+	 */
+	public Snapshot snapshotAndReset() {
+		long[] counts = new long[partySizes.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = partySizes[i].sumThenReset();
+		}
+		return new Snapshot(holds.sumThenReset(), holdFailures.sumThenReset(), seatsHeld.sumThenReset(),
+				purchases.sumThenReset(), purchaseFailures.sumThenReset(), seatsSold.sumThenReset(),
+				expirations.sumThenReset(), staleIndexReads.sumThenReset(), medianPartySize(counts),
+				holdLatency.snapshotAndReset(), purchaseLatency.snapshotAndReset());
+	}
+
+	public void reset() {
+		snapshotAndReset();
+	}
+
+	/**
+	 * Registers the metrics in the platform MBean server, named after the event
+	 *
+	 * @return the name the metrics are registered with
+	 * @throws JMException
+	 *             if the metrics can't be registered, e.g. because another event
+	 *             with the same name is registered
+	 */
+	public synchronized ObjectName register() throws JMException {
+		if (objectName == null) {
+			ObjectName name = createObjectName(event.getEventName());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		}
+		return objectName;
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server if they were registered
+	 *
+	 * @throws JMException
+	 *             if the metrics can't be unregistered
+	 */
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Returns the name the metrics of an event are registered with
+	 *
+	 * @param eventName
+	 *            name of the event
+	 * @return the JMX object name
+	 * @throws MalformedObjectNameException
+	 *             never, the event name is quoted
+	 */
+	public static ObjectName createObjectName(String eventName) throws MalformedObjectNameException {
+		return new ObjectName(DOMAIN + ":type=TicketMetrics,event=" + ObjectName.quote(eventName));
+	}
+
+	public long getHolds() {
+		return holds.sum();
+	}
+
+	public long getHoldFailures() {
+		return holdFailures.sum();
+	}
+
+	public long getSeatsHeld() {
+		return seatsHeld.sum();
+	}
+
+	public long getPurchases() {
+		return purchases.sum();
+	}
+
+	public long getPurchaseFailures() {
+		return purchaseFailures.sum();
+	}
+
+	public long getSeatsSold() {
+		return seatsSold.sum();
+	}
+
+	public long getExpirations() {
+		return expirations.sum();
+	}
+
+	public long getStaleIndexReads() {
+		return staleIndexReads.sum();
+	}
+
+	public Snapshot getSnapshot() {
+		return snapshot();
+	}
+
+	public double getConversionRate() {
+		return snapshot().getConversionRate();
+	}
+
+	public int getSeatsAvailable() {
+		return event.numSeatsAvailable();
+	}
+
+	public int getOpenHolds() {
+		return event.getSeatHolds().size();
+	}
+
+	public int getMedianPartySize() {
+		return snapshot().getMedianPartySize();
+	}
+
+	public double getFragmentation() {
+		return event.getFragmentation();
+	}
+
+	public double getHoldLatencyMean() {
+		return holdLatency.snapshot().getMean() / NANOS_PER_MICRO;
+	}
+
+	public double getHoldLatencyP50() {
+		return holdLatency.snapshot().getPercentile(0.5) / NANOS_PER_MICRO;
+	}
+
+	public double getHoldLatencyP99() {
+		return holdLatency.snapshot().getPercentile(0.99) / NANOS_PER_MICRO;
+	}
+
+	public double getHoldLatencyP999() {
+		return holdLatency.snapshot().getPercentile(0.999) / NANOS_PER_MICRO;
+	}
+
+	public double getHoldLatencyMax() {
+		return holdLatency.snapshot().getMax() / NANOS_PER_MICRO;
+	}
+
+	public double getPurchaseLatencyMean() {
+		return purchaseLatency.snapshot().getMean() / NANOS_PER_MICRO;
+	}
+
+	public double getPurchaseLatencyP50() {
+		return purchaseLatency.snapshot().getPercentile(0.5) / NANOS_PER_MICRO;
+	}
+
+	public double getPurchaseLatencyP99() {
+		return purchaseLatency.snapshot().getPercentile(0.99) / NANOS_PER_MICRO;
+	}
+
+	public double getPurchaseLatencyP999() {
+		return purchaseLatency.snapshot().getPercentile(0.999) / NANOS_PER_MICRO;
+	}
+
+	public double getPurchaseLatencyMax() {
+		return purchaseLatency.snapshot().getMax() / NANOS_PER_MICRO;
+	}
+
+	/**
+	 * Values of the metrics of an event at some point in time
+	 */
+	public static class Snapshot {
+		private final long holds;
+		private final long holdFailures;
+		private final long seatsHeld;
+		private final long purchases;
+		private final long purchaseFailures;
+		private final long seatsSold;
+		private final long expirations;
+		private final long staleIndexReads;
+		private final int medianPartySize;
+		private final LatencyHistogram.Snapshot holdLatency;
+		private final LatencyHistogram.Snapshot purchaseLatency;
+
+		private Snapshot(long holds, long holdFailures, long seatsHeld, long purchases, long purchaseFailures,
+				long seatsSold, long expirations, long staleIndexReads, int medianPartySize,
+				LatencyHistogram.Snapshot holdLatency, LatencyHistogram.Snapshot purchaseLatency) {
+			this.holds = holds;
+			this.holdFailures = holdFailures;
+			this.seatsHeld = seatsHeld;
+			this.purchases = purchases;
+			this.purchaseFailures = purchaseFailures;
+			this.seatsSold = seatsSold;
+			this.expirations = expirations;
+			this.staleIndexReads = staleIndexReads;
+			this.medianPartySize = medianPartySize;
+			this.holdLatency = holdLatency;
+			this.purchaseLatency = purchaseLatency;
+		}
+
+		public long getHolds() {
+			return holds;
+		}
+
+		public long getHoldFailures() {
+			return holdFailures;
+		}
+
+		public long getSeatsHeld() {
+			return seatsHeld;
+		}
+
+		public long getPurchases() {
+			return purchases;
+		}
+
+		public long getPurchaseFailures() {
+			return purchaseFailures;
+		}
+
+		public long getSeatsSold() {
+			return seatsSold;
+		}
+
+		public long getExpirations() {
+			return expirations;
+		}
+
+		/**
+		 * Returns the number of holds that found the row index behind a row
+		 *
+		 * @return number of times a row had fewer seats than the index said
+		 */
+		public long getStaleIndexReads() {
+			return staleIndexReads;
+		}
+
+		/**
+		 * Returns the median number of seats of the hold requests, served or not
+		 *
+		 * @return the median party size, 1 if there were no requests
+		 */
+		public int getMedianPartySize() {
+			return medianPartySize;
+		}
+
+		/**
+		 * Returns the fraction of the holds that ended in a purchase rather than
+		 * being released
+		 *
+		 * @return a value from 0 to 1, zero if no hold has finished
+		 */
+		public double getConversionRate() {
+			long finished = purchases + expirations;
+			return finished == 0L ? 0.0 : (double) purchases / finished;
+		}
+
+		/**
+		 * Returns the latencies of the hold requests, successful or not
+		 *
+		 * @return the latencies in nanoseconds
+		 */
+		public LatencyHistogram.Snapshot getHoldLatency() {
+			return holdLatency;
+		}
+
+		/**
+		 * Returns the latencies of the purchase attempts, successful or not
+		 *
+		 * @return the latencies in nanoseconds
+		 */
+		public LatencyHistogram.Snapshot getPurchaseLatency() {
+			return purchaseLatency;
+		}
+	}
+
+}
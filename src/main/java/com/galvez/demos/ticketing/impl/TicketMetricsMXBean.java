@@ -0,0 +1,215 @@
+package com.galvez.demos.ticketing.impl;
+
+/**
+ * Management interface of the metrics of an event. Counters and latencies
+ * cover the time since the event was created or the last reset, latencies
+ * are in microseconds.
+ */
+public interface TicketMetricsMXBean {
+
+	/**
+	 * Returns the number of successful holds
+	 * 
+	 * @return number of successful holds
+	 */
+	long getHolds();
+
+	/**
+	 * Returns the number of hold requests that couldn't be served
+	 * 
+	 * @return number of hold requests that couldn't be served
+	 */
+	long getHoldFailures();
+
+	/**
+	 * Returns the number of seats held
+	 * 
+	 * @return number of seats held
+	 */
+	long getSeatsHeld();
+
+	/**
+	 * Returns the number of holds purchased
+	 * 
+	 * @return number of holds purchased
+	 */
+	long getPurchases();
+
+	/**
+	 * Returns the number of purchase attempts rejected
+	 * 
+	 * @return number of purchase attempts rejected
+	 */
+	long getPurchaseFailures();
+
+	/**
+	 * Returns the number of seats sold
+	 * 
+	 * @return number of seats sold
+	 */
+	long getSeatsSold();
+
+	/**
+	 * Returns the number of holds released because their time ran out
+	 * 
+	 * @return number of holds expired
+	 */
+	long getExpirations();
+
+	/**
+	 * Returns the number of holds that found a row with fewer seats than the
+	 * row index said, a measure of how stale the index is
+	 * 
+	 * @return number of stale index reads
+	 */
+	long getStaleIndexReads();
+
+	/**
+	 * Returns every counter and latency in one read
+	 * 
+	 * @return the metrics as a composite value, latencies in nanoseconds
+	 */
+	TicketMetrics.Snapshot getSnapshot();
+
+	/**
+	 * Returns the fraction of the finished holds that were purchased
+	 * 
+	 * @return fraction of the finished holds that were purchased
+	 */
+	double getConversionRate();
+
+	/**
+	 * Returns the seats available right now
+	 * 
+	 * @return seats available right now
+	 */
+	int getSeatsAvailable();
+
+	/**
+	 * Returns the holds waiting to be purchased right now
+	 * 
+	 * @return holds waiting to be purchased right now
+	 */
+	int getOpenHolds();
+
+	/**
+	 * Returns the median number of seats of the hold requests
+	 * 
+	 * @return median party size
+	 */
+	int getMedianPartySize();
+
+	/**
+	 * Returns the fraction of the seats available right now that are in gaps
+	 * too short for the median party
+	 * 
+	 * @return fraction of the available seats that are hard to sell
+	 */
+	double getFragmentation();
+
+	/**
+	 * Returns the average hold latency
+	 * 
+	 * @return latency in microseconds
+	 */
+	double getHoldLatencyMean();
+
+	/**
+	 * Returns the median hold latency
+	 * 
+	 * @return latency in microseconds
+	 */
+	double getHoldLatencyP50();
+
+	/**
+	 * Returns the 99th percentile of the hold latencies
+	 * 
+	 * @return latency in microseconds
+	 */
+	double getHoldLatencyP99();
+
+	/**
+	 * Returns the 99.9th percentile of the hold latencies
+	 * 
+	 * @return latency in microseconds
+	 */
+	double getHoldLatencyP999();
+
+	/**
+	 * Returns the highest hold latency
+	 * 
+	 * @return latency in microseconds
+	 */
+	double getHoldLatencyMax();
+
+	/**
+	 * Returns the average purchase latency
+	 * 
+	 * @return latency in microseconds
+	 */
+	double getPurchaseLatencyMean();
+
+	/**
+	 * Returns the median purchase latency
+	 * 
+	 * @return latency in microseconds
+	 */
+	double getPurchaseLatencyP50();
+
+	/**
+	 * Returns the 99th percentile of the purchase latencies
+	 * 
+	 * @return latency in microseconds
+	 */
+	double getPurchaseLatencyP99();
+
+	/**
+	 * Returns the 99.9th percentile of the purchase latencies
+	 * 
+	 * @return latency in microseconds
+	 */
+	double getPurchaseLatencyP999();
+
+	/**
+	 * Returns the highest purchase latency
+	 * 
+	 * @return latency in microseconds
+	 */
+	double getPurchaseLatencyMax();
+
+	/**
+	 * Returns whether operations are being recorded
+	 * 
+	 * @return true if the metrics are enabled
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Starts or stops recording operations
+	 * 
+	 * @param enabled
+	 *            true to record operations
+	 */
+	void setEnabled(boolean enabled);
+
+	/**
+	 * Returns how many operations are counted for each one timed
+	 * 
+	 * @return one operation in this many is timed
+	 */
+	int getLatencySampling();
+
+	/**
+	 * Sets how many operations are counted for each one timed
+	 * 
+	 * @param latencySampling
+	 *            one operation in this many is timed, 1 to time all of them
+	 */
+	void setLatencySampling(int latencySampling);
+
+	/**
+	 * Sets every counter and latency back to zero
+	 */
+	void reset();
+
+}
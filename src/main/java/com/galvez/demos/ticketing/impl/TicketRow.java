@@ -1,44 +1,99 @@
 package com.galvez.demos.ticketing.impl;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
+import com.galvez.demos.ticketing.SeatAllocation;
+import com.galvez.demos.ticketing.SeatMap;
 import com.galvez.demos.ticketing.Ticket;
 import com.galvez.demos.ticketing.TicketStatus;
+import com.galvez.demos.ticketing.TicketStatusListener;
 import com.galvez.demos.ticketing.exceptions.TicketException;
 import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
 
 /**
  * Representation of a TicketRow. This class is capable of finding the best
- * ticket(s) within the row, starting from the center and moving to the sides
- * 
+ * ticket(s) within the row, starting from the center and moving to the sides.
+ * The availability of the seats is kept in a bitset, one bit per seat in seat
+ * number order, indexed by a segment tree of free runs that is updated on every
+ * hold and release, so the longest run is known without scanning the row.
+ * With best fit allocation the gaps of free seats are also bucketed by length,
+ * so the smallest gap that fits a party is found without scanning the row.
+ *
  * @author jgalve
  *
  */
-public class TicketRow {
-	private TreeMap<Integer, Ticket> tickets;
-	private int maxContiguousTickets;
-	private TreeMap<Integer, Ticket> maxContiguousTicketsMap;
+public class TicketRow implements TicketStatusListener {
+	private static final int WORD_BITS = 64;
+
+	// Seats sorted by seat number, the position in the array is the bit index
+	private Ticket[] seats;
+	private int seatCount;
+	// Seats of a compact venue are read from the venue instead of the array
+	private CompactVenue venue;
+	private int firstSeat;
+	// A bit is set when the seat in that position is available
+	private long[] availableSeats;
+	// Longest runs of available seats, rebuilt when seats are added
+	private FreeRunTree freeRuns;
+	private SeatAllocation allocation = SeatAllocation.CENTER;
+	// Gaps of free seats by length, only kept for best fit allocation
+	private FreeGapIndex freeGaps;
+	// Start of the best block by number of seats, null for the middle of the row
+	private volatile int[] bestStarts;
 	private String rowId;
-	private boolean maxContiguousTicketsFresh;
+	// Event selling the row, for flight recordings
+	private String eventName;
+	// Position of the row in the event, best rows first
+	private int rank;
+	private RowChangeListener changeListener;
+	// Latest view of the row, replaced every time a seat is held or released
+	private volatile SeatMap.Row snapshot;
+	// Changes of the availability of the seats
+	private long version;
+	// Seat numbers shared by the views, rebuilt when seats are added
+	private int[] seatNumbers;
 
 	/**
 	 * Creates a new TicketRow
-	 * 
+	 *
 	 * @param rowId
 	 *            Row id, it can be A, B, C, D...
 	 */
 	public TicketRow(String rowId) {
 		this.rowId = rowId;
-		tickets = new TreeMap<Integer, Ticket>();
+		seats = new Ticket[16];
+		availableSeats = new long[1];
 	}
 
 	/**
-	 * Returns a List with number of tickets requested seating together
-	 * 
+	 * Creates a TicketRow over a row of a compact venue. The seats are read from
+	 * the venue and only turned into Ticket objects when they are handed out.
+	 *
+	 * @param venue
+	 *            venue holding the seats
+	 * @param row
+	 *            index of the row in the venue
+	 */
+	public TicketRow(CompactVenue venue, int row) {
+		this.rowId = venue.getRowId(row);
+		this.venue = venue;
+		firstSeat = venue.getRowStart(row);
+		seatCount = venue.getRowSeatCount(row);
+		bestStarts = venue.getTemplate().getBestStarts(row);
+		availableSeats = new long[Math.max(1, (seatCount + WORD_BITS - 1) / WORD_BITS)];
+		for (int i = 0; i < seatCount; i++) {
+			if (venue.getStatus(firstSeat + i) == TicketStatus.AVAILABLE) {
+				availableSeats[i / WORD_BITS] |= 1L << i;
+			}
+		}
+	}
+
+	/**
+	 * Returns a List with number of tickets requested seating together. The
+	 * tickets are taken out of the available seats of the row.
+	 *
 	 * @param requestedNumber
 	 *            number of tickets requested
 	 * @return List<Ticket> with the tickets requested
@@ -46,161 +101,476 @@ public class TicketRow {
 	 *             if there are not enough tickets together for this request. To
 	 *             avoid it request {@link #getMaxContiguousTickets()} first
 	 */
-	public List<Ticket> getTickets(int requestedNumber) throws TicketUnavailableException {
-		if (requestedNumber > getMaxContiguousTickets()) {
+	public synchronized List<Ticket> getTickets(int requestedNumber) throws TicketUnavailableException {
+		RowSearchFlightEvent flight = new RowSearchFlightEvent();
+		flight.begin();
+		int start = requestedNumber > 0 ? findBestTickets(requestedNumber) : -1;
+		if (start < 0) {
+			commitSearch(flight, requestedNumber, RowSearchFlightEvent.NOT_FOUND);
 			throw new TicketUnavailableException("There are not enough tickets available in this row");
 		}
 
-		return findBestTickets(requestedNumber);
+		List<Ticket> bestTickets = takeTickets(start, requestedNumber);
+		commitSearch(flight, requestedNumber, RowSearchFlightEvent.FOUND);
+		return bestTickets;
 	}
 
 	/**
-	 * Finds the best tickets in the row. If the row is empty it will start with the
-	 * ticket in the middle and get one ticket at a time right and left until it has
-	 * all the tickets needed. If there are already tickets unavailable, it will
-	 * find the biggest place where there are enough tickets and find the most
-	 * centered ones and return them
-	 * 
+	 * Returns a List with the tickets of a block of seats. The tickets are taken
+	 * out of the available seats of the row.
+	 *
+	 * @param start
+	 *            position of the first seat of the block, from 0
 	 * @param requestedNumber
-	 *            total number of tickets requested
-	 * @return a list with the tickets to reserve
+	 *            number of seats of the block
+	 * @return List<Ticket> with the tickets of the block
+	 * @throws TicketUnavailableException
+	 *             if any seat of the block is not available
 	 */
-	private synchronized List<Ticket> findBestTickets(int requestedNumber) {
-		maxContiguousTicketsFresh = false;
-		if (maxContiguousTickets == requestedNumber) {
-			return new ArrayList<Ticket>(maxContiguousTicketsMap.values());
+	synchronized List<Ticket> getTickets(int start, int requestedNumber) throws TicketUnavailableException {
+		if (requestedNumber <= 0 || start < 0 || start + requestedNumber > seatCount) {
+			throw new TicketUnavailableException("The row has no such seats");
 		}
-
-		List<Ticket> bestTickets = new ArrayList<Ticket>();
-		// Get the ticket in the middle.
-		Ticket midContiguousTicket = getMiddleTicket(maxContiguousTicketsMap);
-		// Let's see where we are in the row.
-		Ticket midRow = getMiddleTicket(tickets);
-		if (midContiguousTicket.getSeatNumber() == midRow.getSeatNumber()) {
-			// The row is empty, get the tickets one at a time from left and right
-			bestTickets.add(midContiguousTicket);
-			addSeatsBothSides(requestedNumber - 1, bestTickets, midContiguousTicket.getSeatNumber());
-			return bestTickets;
+		for (int i = start; i < start + requestedNumber; i++) {
+			if ((availableSeats[i / WORD_BITS] & (1L << i)) == 0) {
+				throw new TicketUnavailableException("The seats are no longer available");
+			}
 		}
+		return takeTickets(start, requestedNumber);
+	}
 
-		// We define whether we are to the left or right to get the tickets centered
-		Iterator<Integer> iterator = null;
-		if (midContiguousTicket.getSeatNumber() < midRow.getSeatNumber()) {
-			TreeSet<Integer> sortedKeys = new TreeSet<Integer>(maxContiguousTicketsMap.keySet());
-			iterator = sortedKeys.descendingIterator();
-		} else if (midContiguousTicket.getSeatNumber() > midRow.getSeatNumber()) {
-			iterator = maxContiguousTicketsMap.keySet().iterator();
+	// Marks a block of available seats as taken and returns their tickets
+	private List<Ticket> takeTickets(int start, int requestedNumber) {
+		List<Ticket> tickets = new ArrayList<Ticket>(requestedNumber);
+		for (int i = start; i < start + requestedNumber; i++) {
+			setAvailable(i, false);
+			tickets.add(getTicket(i));
 		}
+		publishSnapshot();
+		fireRowChanged();
+		return tickets;
+	}
 
-		int remainingTickets = requestedNumber;
-		while (iterator.hasNext() && remainingTickets > 0) {
-			bestTickets.add(maxContiguousTicketsMap.get(iterator.next()));
-			remainingTickets--;
+	// Records the search if a flight recording asks for it
+	private void commitSearch(RowSearchFlightEvent flight, int requestedNumber, String outcome) {
+		flight.end();
+		if (flight.shouldCommit()) {
+			flight.eventName = eventName;
+			flight.rowId = rowId;
+			flight.seatsRequested = requestedNumber;
+			flight.seatsAvailable = getAvailableSeats();
+			flight.outcome = outcome;
+			flight.commit();
 		}
-
-		return bestTickets;
 	}
 
 	/**
-	 * Adds tickets to bestTickets one at a time starting with the right of the
-	 * midPoint
-	 * 
-	 * @param neededTickets
-	 *            total number of tickets needed
-	 * @param bestTickets
-	 *            list to add the tickets
-	 * @param midPoint
-	 *            ticket number of the ticket in the middle
+	 * Finds the best tickets in the row. With center allocation the best tickets
+	 * are the ones closest to the middle of the row, found by the free run index.
+	 * With best fit allocation they are the ones closest to the middle within the
+	 * smallest gap that fits them.
+	 *
+	 * @param requestedNumber
+	 *            total number of tickets requested
+	 * @return position of the first ticket of the block, -1 if there is no run
+	 *         long enough
 	 */
-	private void addSeatsBothSides(int neededTickets, List<Ticket> bestTickets, int midPoint) {
-		int neededLeft = neededTickets / 2;
-		int neededRight = neededTickets - neededLeft;
-		for (int i = 1; i <= neededRight; i++) {
-			bestTickets.add(maxContiguousTicketsMap.get(midPoint + i));
+	private int findBestTickets(int requestedNumber) {
+		FreeRunTree tree = getFreeRunTree();
+		if (requestedNumber > tree.maxRun()) {
+			return -1;
 		}
-		for (int i = 1; i <= neededLeft; i++) {
-			bestTickets.add(maxContiguousTicketsMap.get(midPoint - i));
+		int idealStart = getIdealStart(requestedNumber);
+		if (allocation == SeatAllocation.BEST_FIT) {
+			return getFreeGapIndex().bestFit(requestedNumber, idealStart);
 		}
+		return tree.closestWindow(idealStart, requestedNumber);
 	}
 
 	/**
-	 * Finds the ticket in the middle of any given list of tickets
-	 * 
-	 * @param map
-	 *            Map with all the tickets to find the one in the middle
-	 * @return
+	 * Returns where a block of seats would be best placed in this row
+	 *
+	 * @param requestedNumber
+	 *            number of seats of the block, at most the seats of the row
+	 * @return position of the first seat of the block
 	 */
-	private Ticket getMiddleTicket(TreeMap<Integer, Ticket> map) {
-		int firstSeat = 0;
-		Iterator<Integer> iterator = map.keySet().iterator();
-		if (iterator.hasNext()) {
-			firstSeat = map.get(iterator.next()).getSeatNumber();
-		}
-		return map.get(firstSeat + (map.size() / 2));
+	int getIdealStart(int requestedNumber) {
+		int[] starts = bestStarts;
+		return starts != null ? starts[requestedNumber] : idealStart(seatCount, requestedNumber);
+	}
+
+	/**
+	 * Returns where a block of seats would be best placed in a row. It is the
+	 * same split as filling the row from the middle seat: the extra seat goes to
+	 * the right.
+	 *
+	 * @param seatCount
+	 *            number of seats of the row
+	 * @param requestedNumber
+	 *            number of seats of the block
+	 * @return position of the first seat of the block
+	 */
+	static int idealStart(int seatCount, int requestedNumber) {
+		return Math.min(Math.max(seatCount / 2 - (requestedNumber - 1) / 2, 0), seatCount - requestedNumber);
 	}
 
 	/**
 	 * Returns the maximum number of tickets seating together in this row
-	 * 
+	 *
 	 * @return the maximum number of contiguous tickets in the row, zero if there
 	 *         are none.
 	 */
-	public int getMaxContiguousTickets() {
-		if (maxContiguousTicketsFresh) {
-			return maxContiguousTickets;
-		} else {
-			maxContiguousTickets = 0;
-			maxContiguousTicketsMap = new TreeMap<Integer, Ticket>();
-		}
-
-		TreeMap<Integer, Ticket> maxTicketsMap = new TreeMap<Integer, Ticket>();
-		int maxTickets = 0;
-		Iterator<Integer> iterator = tickets.keySet().iterator();
-		while (iterator.hasNext()) {
-			Ticket ticket = tickets.get(iterator.next());
-			if (ticket.getStatus() == TicketStatus.AVAILABLE) {
-				maxTickets++;
-				maxTicketsMap.put(ticket.getSeatNumber(), ticket);
+	public synchronized int getMaxContiguousTickets() {
+		return getFreeRunTree().maxRun();
+	}
+
+	// The index is built once the seats are in place and kept up to date after
+	private FreeRunTree getFreeRunTree() {
+		if (freeRuns == null) {
+			freeRuns = new FreeRunTree(availableSeats);
+		}
+		return freeRuns;
+	}
+
+	private FreeGapIndex getFreeGapIndex() {
+		if (freeGaps == null) {
+			freeGaps = new FreeGapIndex(availableSeats, seatCount);
+		}
+		return freeGaps;
+	}
+
+	/**
+	 * Sets how the seats of a party are picked in this row
+	 *
+	 * @param allocation
+	 *            allocation for the requests from now on
+	 */
+	synchronized void setSeatAllocation(SeatAllocation allocation) {
+		this.allocation = allocation;
+		if (allocation != SeatAllocation.BEST_FIT) {
+			freeGaps = null;
+		}
+	}
+
+	/**
+	 * Returns the available seats of this row in gaps shorter than the given
+	 * length
+	 *
+	 * @param length
+	 *            length of the gaps counted, a party of this size doesn't fit in
+	 *            them
+	 * @return number of available seats in gaps shorter than the length
+	 */
+	synchronized int getSeatsInGapsShorterThan(int length) {
+		int stranded = 0;
+		int run = 0;
+		for (int i = 0; i <= seatCount; i++) {
+			if (i < seatCount && (availableSeats[i / WORD_BITS] & (1L << i)) != 0) {
+				run++;
 			} else {
-				if (maxTickets > maxContiguousTickets) {
-					maxContiguousTicketsMap = maxTicketsMap;
-					maxContiguousTickets = maxTickets;
-				} else {
-					maxTickets = 0;
-					maxTicketsMap.clear();
+				if (run < length) {
+					stranded += run;
 				}
+				run = 0;
 			}
 		}
-		if (maxTickets > maxContiguousTickets) {
-			maxContiguousTicketsMap = maxTicketsMap;
-			maxContiguousTickets = maxTickets;
+		return stranded;
+	}
+
+	/**
+	 * Updates the availability of a seat of this row after its ticket changed
+	 * status
+	 *
+	 * @param ticket
+	 *            Ticket that changed
+	 */
+	public void notifyStatusChange(Ticket ticket) {
+		updateSeat(ticket);
+	}
+
+	/**
+	 * Updates the availability of a seat of this row after its ticket changed
+	 * status, and tells how the available seats of the row changed. The status
+	 * is read while the row is locked, so the change returned is the one applied
+	 * even if the ticket changes again right after.
+	 *
+	 * @param ticket
+	 *            Ticket that changed
+	 * @return 1 if the seat became available, -1 if it stopped being available,
+	 *         0 if its availability didn't change or the ticket is not in this
+	 *         row
+	 */
+	synchronized int updateSeat(Ticket ticket) {
+		int position = findSeat(ticket.getSeatNumber());
+		if (position < 0 || !getTicket(position).equals(ticket)) {
+			return 0;
+		}
+		boolean wasAvailable = (availableSeats[position / WORD_BITS] & (1L << position)) != 0;
+		boolean available = ticket.getStatus() == TicketStatus.AVAILABLE;
+		setAvailable(position, available);
+		if (available == wasAvailable) {
+			fireRowChanged();
+			return 0;
 		}
-		maxContiguousTicketsFresh = true;
-		return maxContiguousTickets;
+		publishSnapshot();
+		fireRowChanged();
+		return available ? 1 : -1;
 	}
 
 	/**
 	 * Adds a seat to this row
-	 * 
+	 *
 	 * @param ticket
 	 *            Ticket to be added
 	 * @throws TicketException
 	 *             if the ticket row does not match this row id
 	 */
-	public void addSeat(Ticket ticket) throws TicketException {
-		if (ticket.getSeatRow() != getRowId()) {
+	public synchronized void addSeat(Ticket ticket) throws TicketException {
+		if (!getRowId().equals(ticket.getSeatRow())) {
 			throw new TicketException("Ticket does not belong to this row");
 		}
-		tickets.put(ticket.getSeatNumber(), ticket);
+		if (venue != null) {
+			throw new TicketException("The seats of a compact venue can't be changed");
+		}
+		freeRuns = null;
+		freeGaps = null;
+		seatNumbers = null;
+		snapshot = null;
+		int position = findSeat(ticket.getSeatNumber());
+		if (position >= 0) {
+			// Same seat number, the new ticket replaces the old one
+			seats[position] = ticket;
+			setAvailable(position, ticket.getStatus() == TicketStatus.AVAILABLE);
+		} else {
+			position = -position - 1;
+			if (seatCount == seats.length) {
+				seats = Arrays.copyOf(seats, seatCount * 2);
+			}
+			if (seatCount / WORD_BITS == availableSeats.length) {
+				availableSeats = Arrays.copyOf(availableSeats, availableSeats.length * 2);
+			}
+			System.arraycopy(seats, position, seats, position + 1, seatCount - position);
+			seats[position] = ticket;
+			seatCount++;
+			if (position == seatCount - 1) {
+				setAvailable(position, ticket.getStatus() == TicketStatus.AVAILABLE);
+			} else {
+				// The seats were shifted, rebuild the bits from their status
+				for (int i = position; i < seatCount; i++) {
+					setAvailable(i, seats[i].getStatus() == TicketStatus.AVAILABLE);
+				}
+			}
+		}
 	}
 
 	/**
 	 * Returns the identifier of this row.
-	 * 
+	 *
 	 * @return String representing the row Id: A, B, C, D...
 	 */
 	public String getRowId() {
 		return rowId;
 	}
 
+	/**
+	 * Returns the number of seats in this row
+	 *
+	 * @return number of seats
+	 */
+	public synchronized int getSeatCount() {
+		return seatCount;
+	}
+
+	/**
+	 * Returns the number of available seats in this row
+	 *
+	 * @return number of available seats
+	 */
+	public synchronized int getAvailableSeats() {
+		int available = 0;
+		for (long word : availableSeats) {
+			available += Long.bitCount(word);
+		}
+		return available;
+	}
+
+	/**
+	 * Returns the ticket of a seat of this row
+	 * 
+	 * @param seatNumber
+	 *            number of the seat
+	 * @return the ticket, null if the row has no such seat
+	 */
+	synchronized Ticket findTicket(int seatNumber) {
+		int position = findSeat(seatNumber);
+		return position >= 0 ? getTicket(position) : null;
+	}
+
+	/**
+	 * Returns the tickets of this row in seat number order
+	 * 
+	 * @return a copy of the seats of the row
+	 */
+	synchronized Ticket[] getSeats() {
+		Ticket[] copy = new Ticket[seatCount];
+		for (int i = 0; i < seatCount; i++) {
+			copy[i] = getTicket(i);
+		}
+		return copy;
+	}
+
+	int getRank() {
+		return rank;
+	}
+
+	/**
+	 * Registers the listener to be notified when seats of this row change
+	 *
+	 * @param listener
+	 *            listener for the changes
+	 * @param rank
+	 *            position of this row in the event, best rows first
+	 */
+	synchronized void setRowChangeListener(RowChangeListener listener, int rank) {
+		this.changeListener = listener;
+		this.rank = rank;
+	}
+
+	/**
+	 * Sets the name of the event selling this row, recorded by flight recordings
+	 *
+	 * @param eventName
+	 *            name of the event
+	 */
+	synchronized void setEventName(String eventName) {
+		this.eventName = eventName;
+	}
+
+	/**
+	 * Notifies the listener with the current state of the row, used when the
+	 * listener may have missed a change
+	 */
+	synchronized void publishChanges() {
+		fireRowChanged();
+	}
+
+	/**
+	 * Returns an immutable view of the seats of the row. Views are published by
+	 * the threads changing the row, so reading one takes no lock.
+	 *
+	 * @return the latest view of the row
+	 */
+	SeatMap.Row getSnapshot() {
+		SeatMap.Row current = snapshot;
+		return current != null ? current : createSnapshot();
+	}
+
+	// The row wasn't viewed since its seats were added
+	private synchronized SeatMap.Row createSnapshot() {
+		if (snapshot == null) {
+			snapshot = new SeatMap.Row(rowId, getSeatNumbers(), copyAvailableSeats(), version);
+		}
+		return snapshot;
+	}
+
+	// Copies the seats on write, the views of other rows are left as they are.
+	// Until the row is viewed for the first time there is nothing to replace.
+	private void publishSnapshot() {
+		version++;
+		if (snapshot != null) {
+			snapshot = new SeatMap.Row(rowId, getSeatNumbers(), copyAvailableSeats(), version);
+		}
+	}
+
+	/**
+	 * Returns a copy of the bitset of the available seats of this row, a bit is
+	 * set when the seat in that position is available
+	 *
+	 * @return the bitset, at least one word long
+	 */
+	synchronized long[] copyAvailableSeats() {
+		return Arrays.copyOf(availableSeats, Math.max(1, (seatCount + WORD_BITS - 1) / WORD_BITS));
+	}
+
+	/**
+	 * Copies the status of the seats of a row of a compact venue, without
+	 * creating a Ticket per seat
+	 *
+	 * @param states
+	 *            array receiving the TicketStatus ordinal of every seat
+	 * @param offset
+	 *            position of the first seat of the row in the array
+	 * @throws IllegalStateException
+	 *             if the seats of the row are Ticket objects
+	 */
+	synchronized void copyStates(byte[] states, int offset) {
+		if (venue == null) {
+			throw new IllegalStateException("Row " + rowId + " is not a row of a compact venue");
+		}
+		venue.copyStates(firstSeat, states, offset, seatCount);
+	}
+
+	private int[] getSeatNumbers() {
+		if (seatNumbers == null && venue != null) {
+			// Shared by the rows of every event of the template
+			VenueTemplate template = venue.getTemplate();
+			seatNumbers = seatCount == 0 ? new int[0] : template.getRowSeatNumbers(template.getRow(firstSeat));
+		} else if (seatNumbers == null) {
+			int[] numbers = new int[seatCount];
+			for (int i = 0; i < seatCount; i++) {
+				numbers[i] = seats[i].getSeatNumber();
+			}
+			seatNumbers = numbers;
+		}
+		return seatNumbers;
+	}
+
+	private void fireRowChanged() {
+		if (changeListener != null) {
+			changeListener.rowChanged(this);
+		}
+	}
+
+	private Ticket getTicket(int position) {
+		return venue != null ? venue.getTicket(firstSeat + position) : seats[position];
+	}
+
+	private void setAvailable(int position, boolean available) {
+		int wordIndex = position / WORD_BITS;
+		long word = availableSeats[wordIndex];
+		if (available) {
+			availableSeats[wordIndex] |= 1L << position;
+		} else {
+			availableSeats[wordIndex] &= ~(1L << position);
+		}
+		if (freeRuns != null) {
+			freeRuns.update(wordIndex);
+		}
+		if (freeGaps != null && word != availableSeats[wordIndex]) {
+			if (available) {
+				freeGaps.seatFreed(position);
+			} else {
+				freeGaps.seatTaken(position);
+			}
+		}
+	}
+
+	// Binary search of the seat number, same contract as Arrays.binarySearch
+	private int findSeat(int seatNumber) {
+		int low = 0;
+		int high = seatCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int middleNumber = venue != null ? venue.getSeatNumber(firstSeat + middle) : seats[middle].getSeatNumber();
+			if (middleNumber < seatNumber) {
+				low = middle + 1;
+			} else if (middleNumber > seatNumber) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+
 }
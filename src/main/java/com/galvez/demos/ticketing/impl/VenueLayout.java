@@ -0,0 +1,263 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Floor plan of a venue with a quality score for every seat, higher is better.
+ * The score of a seat comes from its position, the closer to the focus of the
+ * venue (the middle of the stage or the screen) the better, or is set from a
+ * score table, e.g. one exported by the box office. Rows are runs of seats
+ * without aisles and can have any shape, sections and the two sides of an aisle
+ * are given rows of their own.
+ * <p>
+ * The layout is compiled once into a {@link VenueTemplate}: rows are ranked by
+ * their best seat and, for every party size, the block of seats with the
+ * highest total score of every row is worked out. The events of the template
+ * then look for the free block closest to that one with the same free run
+ * index as any other row, so holds cost the same whatever the shape of the
+ * venue.
+ */
+public class VenueLayout {
+
+	// Rows in the order they were added, from the front of the venue to the back
+	private final Map<String, TreeMap<Integer, Seat>> rows = new LinkedHashMap<String, TreeMap<Integer, Seat>>();
+	private double focusX;
+	private double focusY;
+
+	/**
+	 * Sets the point the seats face. Seats without a score of their own are
+	 * better the closer they are to it. It is the origin by default.
+	 *
+	 * @param x
+	 *            horizontal coordinate of the focus
+	 * @param y
+	 *            vertical coordinate of the focus
+	 */
+	public void setFocus(double x, double y) {
+		this.focusX = x;
+		this.focusY = y;
+	}
+
+	/**
+	 * Adds a seat at a position of the floor plan, scored by its distance to
+	 * the focus. Rows are kept in the order their first seat is added, so
+	 * adjacent rows have to be added one after the other.
+	 *
+	 * @param rowId
+	 *            row of the seat
+	 * @param seatNumber
+	 *            number of the seat, seats next to each other in a row have
+	 *            consecutive numbers in the order of the row
+	 * @param x
+	 *            horizontal coordinate of the seat
+	 * @param y
+	 *            vertical coordinate of the seat
+	 */
+	public void addSeat(String rowId, int seatNumber, double x, double y) {
+		getRow(rowId).put(seatNumber, new Seat(x, y, Double.NaN));
+	}
+
+	/**
+	 * Adds a seat with a given score
+	 *
+	 * @param rowId
+	 *            row of the seat
+	 * @param seatNumber
+	 *            number of the seat
+	 * @param quality
+	 *            score of the seat, higher is better
+	 */
+	public void addSeat(String rowId, int seatNumber, double quality) {
+		getRow(rowId).put(seatNumber, new Seat(Double.NaN, Double.NaN, quality));
+	}
+
+	/**
+	 * Sets the score of a seat, replacing the one from its position
+	 *
+	 * @param rowId
+	 *            row of the seat
+	 * @param seatNumber
+	 *            number of the seat
+	 * @param quality
+	 *            score of the seat, higher is better
+	 * @throws IllegalArgumentException
+	 *             if the layout has no such seat
+	 */
+	public void setQuality(String rowId, int seatNumber, double quality) {
+		TreeMap<Integer, Seat> row = rows.get(rowId);
+		Seat seat = row == null ? null : row.get(seatNumber);
+		if (seat == null) {
+			throw new IllegalArgumentException("There is no seat " + rowId + seatNumber + " in the layout");
+		}
+		row.put(seatNumber, new Seat(seat.x, seat.y, quality));
+	}
+
+	/**
+	 * Reads a score table with a seat per line as rowId,seatNumber,quality.
+	 * Blank lines and lines starting with # are skipped. Seats not in the layout
+	 * yet are added.
+	 *
+	 * @param reader
+	 *            the score table
+	 * @throws IOException
+	 *             if the table can't be read or a line is not a seat score
+	 */
+	public void readQualities(Reader reader) throws IOException {
+		BufferedReader lines = new BufferedReader(reader);
+		String line;
+		int lineNumber = 0;
+		while ((line = lines.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split(",");
+			if (fields.length != 3) {
+				throw new IOException("Line " + lineNumber + " is not rowId,seatNumber,quality");
+			}
+			String rowId = fields[0].trim();
+			int seatNumber;
+			double quality;
+			try {
+				seatNumber = Integer.parseInt(fields[1].trim());
+				quality = Double.parseDouble(fields[2].trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Line " + lineNumber + " is not rowId,seatNumber,quality", e);
+			}
+			TreeMap<Integer, Seat> row = rows.get(rowId);
+			if (row != null && row.containsKey(seatNumber)) {
+				setQuality(rowId, seatNumber, quality);
+			} else {
+				addSeat(rowId, seatNumber, quality);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of rows of the layout
+	 *
+	 * @return number of rows
+	 */
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	private TreeMap<Integer, Seat> getRow(String rowId) {
+		TreeMap<Integer, Seat> row = rows.get(rowId);
+		if (row == null) {
+			row = new TreeMap<Integer, Seat>();
+			rows.put(rowId, row);
+		}
+		return row;
+	}
+
+	/**
+	 * Works out the seats of the venue and their ranking. The template can be
+	 * shared by any number of events.
+	 *
+	 * @param price
+	 *            price of every seat
+	 * @return the template, rows in the order of the layout
+	 * @throws IllegalArgumentException
+	 *             if the layout has no seats
+	 */
+	public VenueTemplate createTemplate(double price) {
+		if (rows.isEmpty()) {
+			throw new IllegalArgumentException("The layout has no seats");
+		}
+		int rowCount = rows.size();
+		String[] rowIds = new String[rowCount];
+		int[] rowStart = new int[rowCount + 1];
+		double[] rowQuality = new double[rowCount];
+		int[][] bestStarts = new int[rowCount][];
+		List<Integer> seatNumbers = new ArrayList<Integer>();
+		int row = 0;
+		for (Map.Entry<String, TreeMap<Integer, Seat>> entry : rows.entrySet()) {
+			rowIds[row] = entry.getKey();
+			double[] quality = new double[entry.getValue().size()];
+			int position = 0;
+			for (Map.Entry<Integer, Seat> seat : entry.getValue().entrySet()) {
+				seatNumbers.add(seat.getKey());
+				quality[position++] = seat.getValue().getQuality(focusX, focusY);
+			}
+			rowStart[row + 1] = rowStart[row] + quality.length;
+			rowQuality[row] = Double.NEGATIVE_INFINITY;
+			for (double seatQuality : quality) {
+				rowQuality[row] = Math.max(rowQuality[row], seatQuality);
+			}
+			bestStarts[row] = bestStarts(quality);
+			row++;
+		}
+		int[] numbers = new int[seatNumbers.size()];
+		for (int i = 0; i < numbers.length; i++) {
+			numbers[i] = seatNumbers.get(i);
+		}
+		return new VenueTemplate(rowIds, rowStart, numbers, new byte[numbers.length], new double[] { price },
+				rowQuality, bestStarts);
+	}
+
+	/**
+	 * Finds the block with the highest total score of a row for every party
+	 * size, from prefix sums of the scores. Of blocks with the same score the
+	 * one closest to the middle of the row is kept.
+	 *
+	 * @param quality
+	 *            score of every seat of the row
+	 * @return the start of the best block, by number of seats
+	 */
+	private static int[] bestStarts(double[] quality) {
+		int seatCount = quality.length;
+		double[] prefix = new double[seatCount + 1];
+		for (int i = 0; i < seatCount; i++) {
+			prefix[i + 1] = prefix[i] + quality[i];
+		}
+		int[] starts = new int[seatCount + 1];
+		for (int length = 1; length <= seatCount; length++) {
+			int middle = TicketRow.idealStart(seatCount, length);
+			int best = middle;
+			double bestSum = prefix[middle + length] - prefix[middle];
+			for (int start = 0; start + length <= seatCount; start++) {
+				double sum = prefix[start + length] - prefix[start];
+				double tolerance = 1e-9 * Math.max(1.0, Math.abs(bestSum));
+				if (sum > bestSum + tolerance || (sum >= bestSum - tolerance
+						&& Math.abs(start - middle) < Math.abs(best - middle))) {
+					best = start;
+					bestSum = sum;
+				}
+			}
+			starts[length] = best;
+		}
+		return starts;
+	}
+
+	/**
+	 * Position and score of a seat, the score is NaN when it comes from the
+	 * position
+	 */
+	private static final class Seat {
+		private final double x;
+		private final double y;
+		private final double quality;
+
+		private Seat(double x, double y, double quality) {
+			this.x = x;
+			this.y = y;
+			this.quality = quality;
+		}
+
+		private double getQuality(double focusX, double focusY) {
+			if (!Double.isNaN(quality)) {
+				return quality;
+			}
+			return -Math.hypot(x - focusX, y - focusY);
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Immutable seats of a venue: rows, seat numbering and price tiers, and the
+ * ranking of the seats when it comes from a {@link VenueLayout}. A template is
+ * built once per hall and shared by all the events held in it, every event
+ * only keeps the status of its seats in a {@link CompactVenue} over the
+ * template, about a byte per seat.
+ */
+public final class VenueTemplate {
+
+	private final String[] rowIds;
+	// First seat of every row, the last element is the number of seats
+	private final int[] rowStart;
+	private final int[] seatNumbers;
+	private final byte[] priceTiers;
+	private final double[] tierPrices;
+	// Seat numbers of every row, shared by the seat map views of every event and
+	// only copied for the rows that are viewed
+	private final int[][] rowSeatNumbers;
+	// Rows from the best to the worst and the best block of every row by
+	// number of seats, null to rank the rows by id
+	private final int[] rowsByQuality;
+	private final int[][] bestStarts;
+
+	/**
+	 * Creates a template where all the rows have the same number of seats and
+	 * price
+	 *
+	 * @param rowIds
+	 *            String array with the row Ids: A, B, C, D...
+	 * @param seatsPerRow
+	 *            Number of seats per row, numbered from 1
+	 * @param price
+	 *            Price for all the tickets
+	 */
+	public VenueTemplate(String[] rowIds, int seatsPerRow, double price) {
+		this(rowIds, filled(rowIds.length, seatsPerRow), new int[rowIds.length], new double[] { price });
+	}
+
+	/**
+	 * Creates a template with a price tier per row
+	 *
+	 * @param rowIds
+	 *            String array with the row Ids: A, B, C, D...
+	 * @param seatsPerRow
+	 *            Number of seats of every row, numbered from 1
+	 * @param rowPriceTiers
+	 *            Price tier of every row
+	 * @param tierPrices
+	 *            Price of every tier, there can be up to 256 tiers
+	 */
+	public VenueTemplate(String[] rowIds, int[] seatsPerRow, int[] rowPriceTiers, double[] tierPrices) {
+		if (seatsPerRow.length != rowIds.length || rowPriceTiers.length != rowIds.length) {
+			throw new IllegalArgumentException("There must be a number of seats and a price tier per row");
+		}
+		if (tierPrices.length > 256) {
+			throw new IllegalArgumentException("There can be up to 256 price tiers");
+		}
+		this.rowIds = rowIds.clone();
+		this.tierPrices = tierPrices.clone();
+		rowStart = new int[rowIds.length + 1];
+		for (int row = 0; row < rowIds.length; row++) {
+			rowStart[row + 1] = rowStart[row] + seatsPerRow[row];
+		}
+		int seats = rowStart[rowIds.length];
+		seatNumbers = new int[seats];
+		priceTiers = new byte[seats];
+		for (int row = 0; row < rowIds.length; row++) {
+			if (rowPriceTiers[row] < 0 || rowPriceTiers[row] >= tierPrices.length) {
+				throw new IllegalArgumentException("Row " + rowIds[row] + " has an unknown price tier");
+			}
+			for (int seat = rowStart[row]; seat < rowStart[row + 1]; seat++) {
+				seatNumbers[seat] = seat - rowStart[row] + 1;
+				priceTiers[seat] = (byte) rowPriceTiers[row];
+			}
+		}
+		rowSeatNumbers = new int[rowIds.length][];
+		rowsByQuality = null;
+		bestStarts = null;
+	}
+
+	/**
+	 * Creates a template over arrays that were already laid out, as read from a
+	 * snapshot or compiled from a layout. The arrays are not copied.
+	 *
+	 * @param rowIds
+	 *            row ids
+	 * @param rowStart
+	 *            first seat of every row followed by the number of seats
+	 * @param seatNumbers
+	 *            number of every seat, increasing within a row
+	 * @param priceTiers
+	 *            price tier of every seat
+	 * @param tierPrices
+	 *            price of every tier
+	 * @param rowQuality
+	 *            score of every row, higher is better, null to rank the rows by
+	 *            id
+	 * @param bestStarts
+	 *            start of the best block of every row by number of seats, null
+	 *            for the middle of the rows
+	 */
+	VenueTemplate(String[] rowIds, int[] rowStart, int[] seatNumbers, byte[] priceTiers, double[] tierPrices,
+			final double[] rowQuality, int[][] bestStarts) {
+		int seats = seatNumbers.length;
+		if (rowStart.length != rowIds.length + 1 || rowStart[0] != 0 || rowStart[rowIds.length] != seats
+				|| priceTiers.length != seats) {
+			throw new IllegalArgumentException("The seat arrays do not match the rows");
+		}
+		for (int seat = 0; seat < seats; seat++) {
+			if ((priceTiers[seat] & 0xFF) >= tierPrices.length) {
+				throw new IllegalArgumentException("Seat " + seat + " has an unknown price tier");
+			}
+		}
+		this.rowIds = rowIds;
+		this.rowStart = rowStart;
+		this.seatNumbers = seatNumbers;
+		this.priceTiers = priceTiers;
+		this.tierPrices = tierPrices;
+		this.bestStarts = bestStarts;
+		rowSeatNumbers = new int[rowIds.length][];
+		if (rowQuality == null) {
+			rowsByQuality = null;
+		} else {
+			// Best row first, rows with the same score in the order of the venue
+			Integer[] order = new Integer[rowIds.length];
+			for (int row = 0; row < order.length; row++) {
+				order[row] = row;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer row, Integer other) {
+					int comparison = Double.compare(rowQuality[other], rowQuality[row]);
+					return comparison != 0 ? comparison : Integer.compare(row, other);
+				}
+			});
+			rowsByQuality = new int[order.length];
+			for (int rank = 0; rank < order.length; rank++) {
+				rowsByQuality[rank] = order[rank];
+			}
+		}
+	}
+
+	private static int[] filled(int length, int value) {
+		int[] array = new int[length];
+		Arrays.fill(array, value);
+		return array;
+	}
+
+	/**
+	 * Returns the number of rows in the venue
+	 *
+	 * @return number of rows
+	 */
+	public int getRowCount() {
+		return rowIds.length;
+	}
+
+	/**
+	 * Returns the total number of seats in the venue
+	 *
+	 * @return number of seats
+	 */
+	public int getSeatCount() {
+		return seatNumbers.length;
+	}
+
+	public String getRowId(int row) {
+		return rowIds[row];
+	}
+
+	int getRowStart(int row) {
+		return rowStart[row];
+	}
+
+	int getRowSeatCount(int row) {
+		return rowStart[row + 1] - rowStart[row];
+	}
+
+	int getSeatNumber(int seat) {
+		return seatNumbers[seat];
+	}
+
+	/**
+	 * Returns the seat numbers of a row. The array is shared and must not be
+	 * changed.
+	 *
+	 * @param row
+	 *            index of the row
+	 * @return seat numbers in ascending order
+	 */
+	synchronized int[] getRowSeatNumbers(int row) {
+		if (rowSeatNumbers[row] == null) {
+			rowSeatNumbers[row] = Arrays.copyOfRange(seatNumbers, rowStart[row], rowStart[row + 1]);
+		}
+		return rowSeatNumbers[row];
+	}
+
+	double getPrice(int seat) {
+		return tierPrices[priceTiers[seat] & 0xFF];
+	}
+
+	int getPriceTier(int seat) {
+		return priceTiers[seat] & 0xFF;
+	}
+
+	/**
+	 * Returns the price of every tier
+	 *
+	 * @return a copy of the tier prices
+	 */
+	double[] getTierPrices() {
+		return tierPrices.clone();
+	}
+
+	/**
+	 * Returns the row of a seat
+	 *
+	 * @param seat
+	 *            index of the seat in the venue
+	 * @return index of the row
+	 */
+	int getRow(int seat) {
+		int low = 0;
+		int high = rowIds.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (rowStart[middle] <= seat) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns whether the rows are ranked by the scores of a layout
+	 *
+	 * @return false if the rows are ranked by id
+	 */
+	boolean isRanked() {
+		return rowsByQuality != null;
+	}
+
+	/**
+	 * Returns the row with a given rank
+	 *
+	 * @param rank
+	 *            position of the row by quality, zero is the best row
+	 * @return index of the row
+	 */
+	int getRowByQuality(int rank) {
+		return rowsByQuality[rank];
+	}
+
+	/**
+	 * Returns the start of the block with the highest score of a row
+	 *
+	 * @param row
+	 *            index of the row
+	 * @return the position of the first seat by number of seats, null for the
+	 *         middle of the row
+	 */
+	int[] getBestStarts(int row) {
+		return bestStarts == null ? null : bestStarts[row];
+	}
+}
@@ -1,15 +1,67 @@
 package com.galvez.demos.ticketing;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
 import com.galvez.demos.ticketing.exceptions.TicketException;
+import com.galvez.demos.ticketing.exceptions.TicketServiceBusyException;
 import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
+import com.galvez.demos.ticketing.impl.CommandLoop;
+import com.galvez.demos.ticketing.impl.CompactVenue;
+import com.galvez.demos.ticketing.impl.ConfirmedTickets;
+import com.galvez.demos.ticketing.impl.EventJournal;
+import com.galvez.demos.ticketing.impl.EventLoopTicketService;
+import com.galvez.demos.ticketing.impl.EventRegistry;
+import com.galvez.demos.ticketing.impl.EventSnapshot;
 import com.galvez.demos.ticketing.impl.EventTicketService;
+import com.galvez.demos.ticketing.impl.HoldExpirationScheduler;
+import com.galvez.demos.ticketing.impl.SeatChangeFeed;
+import com.galvez.demos.ticketing.impl.TicketImpl;
+import com.galvez.demos.ticketing.impl.TicketMetrics;
+import com.galvez.demos.ticketing.impl.VenueLayout;
+import com.galvez.demos.ticketing.impl.VenueTemplate;
 
 /**
  * Unit test for Ticketing Demo App.
@@ -22,6 +74,9 @@ public class TicketingTest {
 	@Rule
 	public ExpectedException thrown = ExpectedException.none();
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	public TicketingTest() {
 		String[] rows = { "A", "B", "C", "D", "E", "F", "G" };
 		Calendar calendar = Calendar.getInstance();
@@ -130,4 +185,1191 @@ public class TicketingTest {
 		thrown.expectMessage("The confirmation code and email do not match");
 		theaterEvent.reserveSeats(hold.getSeatHoldId(), "anotherEmail@company.com");
 	}
+
+	@Test
+	public void testConfigurableHoldTimeout() throws TicketException, InterruptedException {
+		String[] rows = { "A", "B" };
+		EventTicketService event = new EventTicketService("Short hold", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		event.setHoldTimeout(300);
+		event.findAndHoldSeats(6, "myemail@company.com");
+		SeatHold hold = event.findAndHoldSeats(5, "myemail@company.com");
+		event.reserveSeats(hold.getSeatHoldId(), "myemail@company.com");
+		Assert.assertEquals(9, event.numSeatsAvailable());
+		Thread.sleep(1000);
+		// Only the hold that was not confirmed is released
+		Assert.assertEquals(15, event.numSeatsAvailable());
+		Assert.assertTrue(event.getExpirationScheduler().getMaxExpirationLag() < 1000);
+	}
+
+	@Test
+	public void testSchedulerShutdown() throws Exception {
+		HoldExpirationScheduler scheduler = new HoldExpirationScheduler(1L, 64);
+		final CountDownLatch expired = new CountDownLatch(1);
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				expired.countDown();
+			}
+		}, 0L);
+		Assert.assertTrue(expired.await(5, TimeUnit.SECONDS));
+		scheduler.shutdown();
+		Assert.assertTrue(scheduler.isShutdown());
+		try {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+				}
+			}, 0L);
+			Assert.fail("The scheduler is shut down");
+		} catch (RejectedExecutionException e) {
+			// Expected
+		}
+		try {
+			HoldExpirationScheduler.getDefault().shutdown();
+			Assert.fail("The default scheduler is shared");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testFillRowGaps() throws TicketException {
+		theaterEvent.findAndHoldSeats(5, "myemail@company.com");
+		// Seats 5 to 9 are held, the 4 seats on the left still fit in row A
+		SeatHold hold = theaterEvent.findAndHoldSeats(4, "myemail@company.com");
+		for (Ticket ticket : hold.getTickets()) {
+			Assert.assertEquals("A", ticket.getSeatRow());
+			Assert.assertTrue(ticket.getSeatNumber() >= 1 && ticket.getSeatNumber() <= 4);
+		}
+		hold = theaterEvent.findAndHoldSeats(3, "myemail@company.com");
+		for (Ticket ticket : hold.getTickets()) {
+			Assert.assertEquals("A", ticket.getSeatRow());
+			Assert.assertTrue(ticket.getSeatNumber() >= 10 && ticket.getSeatNumber() <= 12);
+		}
+		// Row A is full now
+		hold = theaterEvent.findAndHoldSeats(1, "myemail@company.com");
+		Assert.assertEquals("B", hold.getTickets().get(0).getSeatRow());
+		Assert.assertEquals(71, theaterEvent.numSeatsAvailable());
+	}
+
+	@Test
+	public void testEventFromTicketList() throws TicketException {
+		List<Ticket> tickets = new ArrayList<Ticket>();
+		for (String row : new String[] { "C", "A", "B" }) {
+			for (int seat = 6; seat >= 1; seat--) {
+				tickets.add(new TicketImpl(row, seat, 10.0));
+			}
+		}
+		Event event = new EventTicketService("Movie", Calendar.getInstance().getTime(), EventType.SCREEN, tickets);
+		Assert.assertEquals(18, event.numSeatsAvailable());
+		// Row C is the furthest from the screen
+		Assert.assertEquals("C", event.findAndHoldSeats(6, "myemail@company.com").getTickets().get(0).getSeatRow());
+		Assert.assertEquals("B", event.findAndHoldSeats(4, "myemail@company.com").getTickets().get(0).getSeatRow());
+		Assert.assertEquals("B", event.findAndHoldSeats(2, "myemail@company.com").getTickets().get(0).getSeatRow());
+		Assert.assertEquals("A", event.findAndHoldSeats(1, "myemail@company.com").getTickets().get(0).getSeatRow());
+	}
+
+	@Test
+	public void testConcurrentHolds() throws Exception {
+		String[] rows = { "A", "B", "C", "D", "E", "F", "G", "H", "I", "J" };
+		final EventTicketService event = new EventTicketService("Concert", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 30, 50.0);
+		event.setHoldTimeout(60000);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<List<Ticket>>> results = new ArrayList<Future<List<Ticket>>>();
+		for (int i = 0; i < 8; i++) {
+			final int partySize = i % 4 + 1;
+			results.add(executor.submit(new Callable<List<Ticket>>() {
+				public List<Ticket> call() throws Exception {
+					List<Ticket> held = new ArrayList<Ticket>();
+					while (true) {
+						try {
+							held.addAll(event.findAndHoldSeats(partySize, "myemail@company.com").getTickets());
+						} catch (TicketUnavailableException e) {
+							return held;
+						}
+					}
+				}
+			}));
+		}
+		Set<Ticket> heldTickets = new HashSet<Ticket>();
+		int total = 0;
+		for (Future<List<Ticket>> result : results) {
+			List<Ticket> held = result.get();
+			heldTickets.addAll(held);
+			total += held.size();
+		}
+		executor.shutdown();
+		// No seat can be in two holds and the count must match the seats left
+		Assert.assertEquals(total, heldTickets.size());
+		Assert.assertEquals(300 - total, event.numSeatsAvailable());
+		Assert.assertTrue(event.numSeatsAvailable() < 4);
+	}
+
+	@Test
+	public void testImmediateExpiration() throws Exception {
+		String[] rows = { "A", "B", "C", "D", "E", "F", "G", "H", "I", "J" };
+		EventTicketService event = new EventTicketService("Concert", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 30, 50.0);
+		event.setHoldTimeout(1);
+		int holds = 0;
+		while (holds < 1000) {
+			try {
+				event.findAndHoldSeats(4, "myemail@company.com");
+				holds++;
+			} catch (TicketUnavailableException e) {
+				// Every seat is held, wait for some holds to expire
+				Thread.sleep(1);
+			}
+		}
+		// Holds expiring before the event is done with them must still give the seats back
+		long deadline = System.currentTimeMillis() + 5000;
+		while (event.numSeatsAvailable() < 300 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(300, event.numSeatsAvailable());
+		Assert.assertEquals(30, event.findAndHoldSeats(30, "myemail@company.com").getTickets().size());
+	}
+
+	@Test
+	public void testConcurrentConfirm() throws Exception {
+		final SeatHold hold = theaterEvent.findAndHoldSeats(4, "myemail@company.com");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < 8; i++) {
+			results.add(executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					try {
+						return theaterEvent.reserveSeats(hold.getSeatHoldId(), "myemail@company.com");
+					} catch (TicketUnavailableException e) {
+						return null;
+					}
+				}
+			}));
+		}
+		int confirmations = 0;
+		for (Future<String> result : results) {
+			if (result.get() != null) {
+				confirmations++;
+			}
+		}
+		executor.shutdown();
+		// Only one of the customers' clicks can buy the tickets
+		Assert.assertEquals(1, confirmations);
+		for (Ticket ticket : hold.getTickets()) {
+			Assert.assertEquals(TicketStatus.SOLD, ticket.getStatus());
+		}
+		Assert.assertEquals(80, theaterEvent.numSeatsAvailable());
+	}
+
+	@Test
+	public void testCompactVenue() throws TicketException {
+		String[] rows = { "A", "B", "C" };
+		CompactVenue venue = new CompactVenue(rows, new int[] { 12, 12, 10 }, new int[] { 0, 0, 1 },
+				new double[] { 80.0, 45.0 });
+		Event event = new EventTicketService("Theater", Calendar.getInstance().getTime(), EventType.STAGE, venue);
+		Assert.assertEquals(34, event.numSeatsAvailable());
+		SeatHold hold = event.findAndHoldSeats(5, "myemail@company.com");
+		for (Ticket ticket : hold.getTickets()) {
+			Assert.assertEquals("A", ticket.getSeatRow());
+			Assert.assertTrue(ticket.getSeatNumber() >= 5 && ticket.getSeatNumber() <= 9);
+			Assert.assertEquals(TicketStatus.RESERVED, ticket.getStatus());
+		}
+		Assert.assertEquals(400.0, hold.getTotalPrice(), 0.001);
+		event.reserveSeats(hold.getSeatHoldId(), "myemail@company.com");
+		Assert.assertEquals(TicketStatus.SOLD, hold.getTickets().get(0).getStatus());
+
+		Assert.assertEquals("B", event.findAndHoldSeats(12, "myemail@company.com").getTickets().get(0).getSeatRow());
+		hold = event.findAndHoldSeats(8, "myemail@company.com");
+		Assert.assertEquals("C", hold.getTickets().get(0).getSeatRow());
+		Assert.assertEquals(360.0, hold.getTotalPrice(), 0.001);
+		Assert.assertEquals(9, event.numSeatsAvailable());
+	}
+
+	@Test
+	public void testBatchHold() {
+		List<HoldRequest> requests = new ArrayList<HoldRequest>();
+		requests.add(new HoldRequest(5, "first@company.com"));
+		requests.add(new HoldRequest(4, "second@company.com"));
+		requests.add(new HoldRequest(13, "third@company.com"));
+		requests.add(new HoldRequest(12, "fourth@company.com"));
+		requests.add(new HoldRequest(0, "fifth@company.com"));
+		List<HoldResult> results = theaterEvent.findAndHoldSeats(requests);
+		Assert.assertEquals(5, results.size());
+		// Requests are served in order, the first two share row A
+		Assert.assertEquals("A", results.get(0).getSeatHold().getTickets().get(0).getSeatRow());
+		Assert.assertEquals("A", results.get(1).getSeatHold().getTickets().get(0).getSeatRow());
+		Assert.assertFalse(results.get(2).isHeld());
+		Assert.assertTrue(results.get(2).getFailure() instanceof TicketUnavailableException);
+		Assert.assertEquals("B", results.get(3).getSeatHold().getTickets().get(0).getSeatRow());
+		Assert.assertFalse(results.get(4).isHeld());
+		Assert.assertEquals(63, theaterEvent.numSeatsAvailable());
+	}
+
+	@Test
+	public void testBatchHoldJournalFailure() throws Exception {
+		String[] rows = { "A", "B" };
+		Path file = folder.newFile("batch.journal").toPath();
+		EventJournal journal = new EventJournal(file, true, 1024) {
+			@Override
+			public long recordHold(long seatHoldId, String customerEmail, List<Ticket> tickets, long expirationTime)
+					throws IOException {
+				if ("second@company.com".equals(customerEmail)) {
+					throw new IOException("Disk full");
+				}
+				return super.recordHold(seatHoldId, customerEmail, tickets, expirationTime);
+			}
+		};
+		EventTicketService event = new EventTicketService("Batch", Calendar.getInstance().getTime(), EventType.STAGE,
+				rows, 10, 15.0);
+		event.setJournal(journal);
+		List<HoldRequest> requests = new ArrayList<HoldRequest>();
+		requests.add(new HoldRequest(3, "first@company.com"));
+		requests.add(new HoldRequest(3, "second@company.com"));
+		requests.add(new HoldRequest(3, "third@company.com"));
+		List<HoldResult> results = event.findAndHoldSeats(requests);
+		Assert.assertEquals(3, results.size());
+		// Only the request that could not be recorded fails, and its seats are given back
+		Assert.assertEquals("A", results.get(0).getSeatHold().getTickets().get(0).getSeatRow());
+		Assert.assertFalse(results.get(1).isHeld());
+		Assert.assertTrue(results.get(1).getFailure().getCause() instanceof IOException);
+		Assert.assertEquals("A", results.get(2).getSeatHold().getTickets().get(0).getSeatRow());
+		Assert.assertEquals(14, event.numSeatsAvailable());
+		Assert.assertNotNull(event.reserveSeats(results.get(2).getSeatHold().getSeatHoldId(), "third@company.com"));
+		journal.close();
+	}
+
+	@Test
+	public void testEventLoopMode() throws Exception {
+		String[] rows = { "A", "B", "C" };
+		EventTicketService event = new EventTicketService("Event loop", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		event.setHoldTimeout(300);
+		EventLoopTicketService loopEvent = new EventLoopTicketService(event);
+		try {
+			List<CompletableFuture<SeatHold>> holds = new ArrayList<CompletableFuture<SeatHold>>();
+			for (int i = 0; i < 4; i++) {
+				holds.add(loopEvent.findAndHoldSeatsAsync(6, "customer" + i + "@company.com"));
+			}
+			// Commands are applied in publication order
+			Assert.assertEquals("A", holds.get(0).get().getTickets().get(0).getSeatRow());
+			Assert.assertEquals("B", holds.get(1).get().getTickets().get(0).getSeatRow());
+			Assert.assertEquals("C", holds.get(2).get().getTickets().get(0).getSeatRow());
+			try {
+				holds.get(3).get();
+				Assert.fail("The event is full");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof TicketUnavailableException);
+			}
+			SeatHold hold = holds.get(0).get();
+			Assert.assertNotNull(loopEvent.reserveSeats(hold.getSeatHoldId(), "customer0@company.com"));
+			Assert.assertEquals(12, loopEvent.numSeatsAvailable());
+			Thread.sleep(1000);
+			// Expirations are applied by the loop as well
+			Assert.assertEquals(24, loopEvent.numSeatsAvailable());
+			Assert.assertTrue(loopEvent.getCommandLoop().getCompletedCommands() >= 7);
+		} finally {
+			loopEvent.getCommandLoop().shutdown();
+		}
+	}
+
+	@Test
+	public void testAsyncBackpressure() throws Exception {
+		String[] rows = { "A", "B", "C" };
+		EventTicketService event = new EventTicketService("Async", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		CommandLoop loop = new CommandLoop("async-loop", 2);
+		AsyncTicketService service = new EventLoopTicketService(event, loop);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		try {
+			// Keep the loop busy, its command takes one of the two slots
+			loop.execute(new Runnable() {
+				public void run() {
+					try {
+						blocked.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			CompletableFuture<SeatHold> accepted = service.findAndHoldSeatsAsync(4, "first@company.com");
+			CompletableFuture<SeatHold> rejected = service.findAndHoldSeatsAsync(4, "second@company.com");
+			// The caller isn't made to wait for room
+			Assert.assertTrue(rejected.isCompletedExceptionally());
+			try {
+				rejected.get();
+				Assert.fail("The loop is full");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof TicketServiceBusyException);
+			}
+			Assert.assertEquals(1, ((EventLoopTicketService) service).getRejectedCount());
+			Assert.assertEquals(Integer.valueOf(30), service.numSeatsAvailableAsync().get());
+			Assert.assertFalse(accepted.isDone());
+
+			blocked.countDown();
+			SeatHold hold = accepted.get();
+			Assert.assertNotNull(service.reserveSeatsAsync(hold.getSeatHoldId(), "first@company.com").get());
+			Assert.assertEquals(Integer.valueOf(26), service.numSeatsAvailableAsync().get());
+		} finally {
+			blocked.countDown();
+			loop.shutdown();
+		}
+	}
+
+	@Test
+	public void testExpirationOnFullLoop() throws Exception {
+		String[] rows = { "A", "B", "C" };
+		EventTicketService event = new EventTicketService("Full loop", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		event.setHoldTimeout(200);
+		CommandLoop loop = new CommandLoop("full-loop", 2);
+		EventLoopTicketService loopEvent = new EventLoopTicketService(event, loop);
+		EventTicketService otherEvent = new EventTicketService("Other", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		otherEvent.setHoldTimeout(200);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		try {
+			loopEvent.findAndHoldSeats(4, "expiring@company.com");
+			// The hold is returned before the loop moves past its slot
+			long deadline = System.currentTimeMillis() + 5000;
+			while (loop.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			// A blocked command and another one waiting fill the ring buffer
+			Callable<Void> blocking = new Callable<Void>() {
+				public Void call() throws InterruptedException {
+					blocked.await();
+					return null;
+				}
+			};
+			Assert.assertNotNull(loop.trySubmit(blocking));
+			Assert.assertNotNull(loop.trySubmit(blocking));
+			Assert.assertNull(loop.trySubmit(blocking));
+			otherEvent.findAndHoldSeats(4, "other@company.com");
+
+			// The expiration waits outside the ring and the shared scheduler thread goes on
+			waitForSeats(otherEvent, 30);
+			deadline = System.currentTimeMillis() + 5000;
+			while (loop.getOverflowDepth() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(1, loop.getOverflowDepth());
+			Assert.assertEquals(26, loopEvent.numSeatsAvailable());
+			blocked.countDown();
+			waitForSeats(loopEvent, 30);
+
+			// A failing task is reported to the handler of the loop thread and the loop goes on
+			final BlockingQueue<Throwable> failures = new LinkedBlockingQueue<Throwable>();
+			loop.submit(new Callable<Void>() {
+				public Void call() {
+					Thread.currentThread().setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+						public void uncaughtException(Thread thread, Throwable e) {
+							failures.add(e);
+						}
+					});
+					return null;
+				}
+			}).get();
+			loop.execute(new Runnable() {
+				public void run() {
+					throw new IllegalStateException("Broken task");
+				}
+			});
+			Assert.assertTrue(failures.poll(5, TimeUnit.SECONDS) instanceof IllegalStateException);
+			Assert.assertEquals(Integer.valueOf(30), loop.submit(new Callable<Integer>() {
+				public Integer call() {
+					return event.numSeatsAvailable();
+				}
+			}).get());
+
+			// Holds expiring after the loop is shut down are still released
+			loopEvent.findAndHoldSeats(6, "late@company.com");
+			loop.shutdown();
+			waitForSeats(event, 30);
+			Assert.assertEquals(0, loop.getOverflowDepth());
+		} finally {
+			blocked.countDown();
+			loop.shutdown();
+		}
+	}
+
+	private static void waitForSeats(Event event, int seats) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (event.seatsAvailable() != seats && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(seats, event.seatsAvailable());
+	}
+
+	@Test
+	public void testSeatMap() throws Exception {
+		EventTicketService event = (EventTicketService) theaterEvent;
+		SeatMap initial = event.getSeatMap();
+		Assert.assertEquals(84, initial.getSeatsAvailable());
+		Assert.assertEquals(7, initial.getRows().size());
+		// Nothing changed, the same map is handed out
+		Assert.assertSame(initial, event.getSeatMap());
+
+		SeatHold hold = event.findAndHoldSeats(4, "myemail@company.com");
+		Assert.assertTrue(event.getSeatMapVersion() > initial.getVersion());
+		SeatMap held = event.getSeatMap();
+		Assert.assertEquals(80, held.getSeatsAvailable());
+		// Only row A was copied, the other rows are shared
+		List<SeatMap.Row> changed = held.getRowsChangedSince(initial);
+		Assert.assertEquals(1, changed.size());
+		Assert.assertEquals("A", changed.get(0).getRowId());
+		Assert.assertSame(initial.getRow("B"), held.getRow("B"));
+		Assert.assertEquals(12, initial.getRow("A").getAvailableSeats());
+		for (Ticket ticket : hold.getTickets()) {
+			Assert.assertFalse(held.getRow("A").isSeatAvailable(ticket.getSeatNumber()));
+			Assert.assertTrue(initial.getRow("A").isSeatAvailable(ticket.getSeatNumber()));
+		}
+
+		// Purchasing held seats doesn't change what is available
+		event.reserveSeats(hold.getSeatHoldId(), "myemail@company.com");
+		Assert.assertSame(held, event.getSeatMap());
+
+		event.setHoldTimeout(100);
+		event.findAndHoldSeats(12, "myemail@company.com");
+		SeatMap full = event.getSeatMap();
+		Assert.assertEquals(68, full.getSeatsAvailable());
+		long deadline = System.currentTimeMillis() + 5000;
+		SeatMap released = event.getSeatMap();
+		while (released.getSeatsAvailable() < 80 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			released = event.getSeatMap();
+		}
+		Assert.assertTrue(released.getVersion() > full.getVersion());
+		Assert.assertEquals(80, released.getSeatsAvailable());
+		Assert.assertEquals(12, released.getRow("B").getAvailableSeats());
+		Assert.assertTrue(released.getRow("B").getVersion() > held.getRow("B").getVersion());
+		Assert.assertSame(held.getRow("A"), released.getRow("A"));
+	}
+
+	@Test
+	public void testChangeFeed() throws Exception {
+		EventTicketService event = (EventTicketService) theaterEvent;
+		ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+		ExecutorService delivery = Executors.newSingleThreadExecutor();
+		try {
+			// Ticks far enough apart for a hold to expire within one
+			SeatChangeFeed feed = new SeatChangeFeed(event, ticker, delivery, 1000, 4);
+			FeedSubscriber live = new FeedSubscriber();
+			feed.subscribe(live);
+			live.subscription.request(Long.MAX_VALUE);
+			SeatChanges first = live.next();
+			Assert.assertTrue(first.isReset());
+			Assert.assertEquals(0, first.getSequence());
+			Assert.assertEquals(84, first.getSeatMap().getSeatsAvailable());
+
+			event.findAndHoldSeats(4, "myemail@company.com");
+			event.setHoldTimeout(1);
+			event.findAndHoldSeats(2, "myemail@company.com");
+			SeatChanges changes = live.next();
+			Assert.assertFalse(changes.isReset());
+			Assert.assertEquals(1, changes.getSequence());
+			// The seats held and released within the tick cancel out
+			Assert.assertEquals(4, changes.getChanges().size());
+			for (SeatChanges.SeatChange change : changes.getChanges()) {
+				Assert.assertEquals("A", change.getRowId());
+				Assert.assertFalse(change.isAvailable());
+			}
+
+			// Resuming after the initial map gets the changes since
+			FeedSubscriber resumed = new FeedSubscriber();
+			feed.subscribe(resumed, 0);
+			resumed.subscription.request(1);
+			Assert.assertSame(changes, resumed.next());
+
+			feed.close();
+			Assert.assertTrue(live.completed.await(5, TimeUnit.SECONDS));
+			Assert.assertTrue(resumed.completed.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals(0, feed.getSubscriberCount());
+		} finally {
+			ticker.shutdownNow();
+			delivery.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testChangeFeedSlowSubscriber() throws Exception {
+		EventTicketService event = (EventTicketService) movieEvent;
+		ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+		ExecutorService delivery = Executors.newSingleThreadExecutor();
+		try {
+			SeatChangeFeed feed = new SeatChangeFeed(event, ticker, delivery, 5, 4);
+			FeedSubscriber slow = new FeedSubscriber();
+			feed.subscribe(slow);
+			slow.subscription.request(1);
+			Assert.assertTrue(slow.next().isReset());
+			for (int i = 0; i < 6; i++) {
+				event.findAndHoldSeats(2, "myemail@company.com");
+				long deadline = System.currentTimeMillis() + 5000;
+				while (feed.getSequence() <= i && System.currentTimeMillis() < deadline) {
+					Thread.sleep(5);
+				}
+			}
+			Assert.assertEquals(6, feed.getSequence());
+			// Nothing is buffered for the subscriber, it asked for one batch only
+			Assert.assertNull(slow.batches.poll(100, TimeUnit.MILLISECONDS));
+
+			// The first batches it missed are gone, it starts over from the latest map
+			slow.subscription.request(1);
+			SeatChanges reset = slow.next();
+			Assert.assertTrue(reset.isReset());
+			Assert.assertEquals(6, reset.getSequence());
+			Assert.assertEquals(72, reset.getSeatMap().getSeatsAvailable());
+
+			slow.subscription.request(1);
+			event.findAndHoldSeats(2, "myemail@company.com");
+			SeatChanges next = slow.next();
+			Assert.assertEquals(7, next.getSequence());
+			Assert.assertEquals(2, next.getChanges().size());
+		} finally {
+			ticker.shutdownNow();
+			delivery.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testChangeFeedRetired() throws Exception {
+		String[] rows = { "A", "B" };
+		EventTicketService event = new EventTicketService("Retired", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		EventRegistry registry = new EventRegistry(1, 64);
+		try {
+			registry.addEvent("retired", event);
+			SeatChangeFeed feed = event.getChangeFeed();
+			Assert.assertSame(feed, event.getChangeFeed());
+			FeedSubscriber subscriber = new FeedSubscriber();
+			feed.subscribe(subscriber);
+			subscriber.subscription.request(Long.MAX_VALUE);
+			Assert.assertTrue(subscriber.next().isReset());
+
+			// Retiring the event stops its feed and completes the subscribers
+			Assert.assertTrue(registry.retireEvent("retired"));
+			Assert.assertTrue(feed.isClosed());
+			Assert.assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+
+			// A closed feed is replaced by a new one
+			SeatChangeFeed reopened = event.getChangeFeed();
+			Assert.assertNotSame(feed, reopened);
+			Assert.assertFalse(reopened.isClosed());
+			reopened.close();
+			Assert.assertNotSame(reopened, event.getChangeFeed());
+			event.closeChangeFeed();
+		} finally {
+			registry.shutdown();
+		}
+	}
+
+	/**
+	 * Subscriber queueing the batches of a change feed
+	 */
+	private static class FeedSubscriber implements Flow.Subscriber<SeatChanges> {
+		private final BlockingQueue<SeatChanges> batches = new LinkedBlockingQueue<SeatChanges>();
+		private final CountDownLatch completed = new CountDownLatch(1);
+		private volatile Flow.Subscription subscription;
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		public void onNext(SeatChanges item) {
+			batches.add(item);
+		}
+
+		public void onError(Throwable throwable) {
+			completed.countDown();
+		}
+
+		public void onComplete() {
+			completed.countDown();
+		}
+
+		private SeatChanges next() throws InterruptedException {
+			SeatChanges batch = batches.poll(5, TimeUnit.SECONDS);
+			Assert.assertNotNull("No batch was delivered", batch);
+			return batch;
+		}
+	}
+
+	@Test
+	public void testJournalReplay() throws Exception {
+		String[] rows = { "A", "B", "C" };
+		Path file = folder.newFile("event.journal").toPath();
+		EventTicketService event = new EventTicketService("Journal", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		// Small regions so the records roll over several of them
+		EventJournal journal = new EventJournal(file, true, 1024);
+		event.setJournal(journal);
+		for (int i = 0; i < 20; i++) {
+			SeatHold hold = event.findAndHoldSeats(1, "customer" + i + "@company.com");
+			event.reserveSeats(hold.getSeatHoldId(), "customer" + i + "@company.com");
+		}
+		SeatHold open = event.findAndHoldSeats(4, "open@company.com");
+		Assert.assertEquals(6, event.numSeatsAvailable());
+		journal.close();
+
+		// Purchases are rebuilt and the open hold is restored with the time it had left
+		event = new EventTicketService("Journal", Calendar.getInstance().getTime(), EventType.STAGE, rows, 10, 15.0);
+		journal = new EventJournal(file, true, 1024);
+		event.setJournal(journal);
+		Assert.assertEquals(6, event.numSeatsAvailable());
+		Assert.assertNotNull(event.reserveSeats(open.getSeatHoldId(), "open@company.com"));
+		SeatHold stale = event.findAndHoldSeats(4, "stale@company.com");
+		Assert.assertEquals("C", stale.getTickets().get(0).getSeatRow());
+		Assert.assertEquals(2, event.numSeatsAvailable());
+		journal.close();
+
+		// A hold that expired while the event was down is released
+		event = new EventTicketService("Journal", Calendar.getInstance().getTime(), EventType.STAGE, rows, 10, 15.0);
+		journal = new EventJournal(file, true, 1024);
+		journal.recordHold(stale.getSeatHoldId(), "stale@company.com", stale.getTickets(),
+				System.currentTimeMillis() - 1);
+		event.setJournal(journal);
+		Assert.assertEquals(6, event.numSeatsAvailable());
+		Assert.assertEquals(1, event.getPurchases("open@company.com").size());
+		journal.close();
+
+		event = new EventTicketService("Journal", Calendar.getInstance().getTime(), EventType.STAGE, rows, 10, 15.0);
+		journal = new EventJournal(file, false, 1024);
+		event.setJournal(journal);
+		Assert.assertEquals(6, event.numSeatsAvailable());
+		journal.close();
+	}
+
+	@Test
+	public void testJournalSyncFailure() throws Exception {
+		String[] rows = { "A", "B" };
+		Path file = folder.newFile("failing.journal").toPath();
+		final AtomicInteger failures = new AtomicInteger(2);
+		EventJournal journal = new EventJournal(file, true, 1024) {
+			@Override
+			public void sync(long position) throws IOException {
+				if (failures.getAndDecrement() > 0) {
+					throw new IOException("Disk full");
+				}
+				super.sync(position);
+			}
+		};
+		EventTicketService event = new EventTicketService("Journal", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		event.setJournal(journal);
+		event.setHoldTimeout(300);
+		SeatHold retried = event.findAndHoldSeats(4, "retry@company.com");
+		SeatHold abandoned = event.findAndHoldSeats(10, "abandon@company.com");
+		String[] emails = { "retry@company.com", "abandon@company.com" };
+		SeatHold[] holds = { retried, abandoned };
+		for (int i = 0; i < holds.length; i++) {
+			try {
+				event.reserveSeats(holds[i].getSeatHoldId(), emails[i]);
+				Assert.fail("The purchase should have failed");
+			} catch (TicketException e) {
+				Assert.assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+		// The failed purchases are held again, the first one can be retried
+		Assert.assertEquals(6, event.numSeatsAvailable());
+		Assert.assertEquals(TicketStatus.RESERVED, retried.getTickets().get(0).getStatus());
+		Assert.assertNotNull(event.reserveSeats(retried.getSeatHoldId(), "retry@company.com"));
+		// and the other one expires and its seats can be sold to someone else
+		long deadline = System.currentTimeMillis() + 5000;
+		while (event.numSeatsAvailable() < 16 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(16, event.numSeatsAvailable());
+		SeatHold resold = event.findAndHoldSeats(10, "late@company.com");
+		Assert.assertNotNull(event.reserveSeats(resold.getSeatHoldId(), "late@company.com"));
+		journal.close();
+
+		// The confirmations that failed to sync are not replayed as sales
+		event = new EventTicketService("Journal", Calendar.getInstance().getTime(), EventType.STAGE, rows, 10, 15.0);
+		journal = new EventJournal(file, true, 1024);
+		event.setJournal(journal);
+		Assert.assertEquals(6, event.numSeatsAvailable());
+		Assert.assertEquals(1, event.getPurchases("retry@company.com").size());
+		Assert.assertEquals(0, event.getPurchases("abandon@company.com").size());
+		Assert.assertEquals(1, event.getPurchases("late@company.com").size());
+		journal.close();
+	}
+
+	@Test
+	public void testJournalHoldFailure() throws Exception {
+		String[] rows = { "A", "B" };
+		Path file = folder.newFile("hold.journal").toPath();
+		final AtomicInteger failures = new AtomicInteger(1);
+		final EventTicketService event = new EventTicketService("Journal", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		EventJournal journal = new EventJournal(file, true, 1024) {
+			@Override
+			public long recordHold(long seatHoldId, String customerEmail, List<Ticket> tickets, long expirationTime)
+					throws IOException {
+				if (failures.getAndDecrement() > 0) {
+					throw new IOException("Disk full");
+				}
+				return super.recordHold(seatHoldId, customerEmail, tickets, expirationTime);
+			}
+
+			@Override
+			public void sync(long position) throws IOException {
+				// A purchase can't be looked up before it is durable
+				Assert.assertTrue(event.getPurchases("sold@company.com").isEmpty());
+				super.sync(position);
+			}
+		};
+		event.setJournal(journal);
+		try {
+			event.findAndHoldSeats(4, "lost@company.com");
+			Assert.fail("The hold should have failed");
+		} catch (UncheckedIOException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+		// The seats of the hold that wasn't recorded are given back
+		Assert.assertEquals(20, event.numSeatsAvailable());
+		SeatHold hold = event.findAndHoldSeats(4, "sold@company.com");
+		Assert.assertEquals(16, event.numSeatsAvailable());
+		String code = event.reserveSeats(hold.getSeatHoldId(), "sold@company.com");
+		Assert.assertNotNull(event.getPurchase(code));
+		Assert.assertEquals(1, event.getPurchases("sold@company.com").size());
+		journal.close();
+	}
+
+	@Test
+	public void testSnapshotRestore() throws Exception {
+		String[] rows = { "A", "B", "C" };
+		EventTicketService event = new EventTicketService("Snapshot", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		event.setHoldTimeout(1000);
+		SeatHold open = event.findAndHoldSeats(4, "open@company.com");
+		SeatHold expiring = event.findAndHoldSeats(2, "expiring@company.com");
+		SeatHold sold = event.findAndHoldSeats(3, "sold@company.com");
+		event.reserveSeats(sold.getSeatHoldId(), "sold@company.com");
+		Path file = folder.newFile("event.snapshot").toPath();
+		EventSnapshot.write(event, file);
+
+		EventTicketService restored = EventSnapshot.read(file);
+		Assert.assertEquals("Snapshot", restored.getEventName());
+		Assert.assertEquals(1000, restored.getHoldTimeout());
+		Assert.assertEquals(21, restored.numSeatsAvailable());
+		// Open holds keep their id and seats and can still be purchased
+		Assert.assertNotNull(restored.reserveSeats(open.getSeatHoldId(), "open@company.com"));
+		SeatMap seatMap = restored.getSeatMap();
+		for (Ticket ticket : expiring.getTickets()) {
+			Assert.assertFalse(seatMap.getRow(ticket.getSeatRow()).isSeatAvailable(ticket.getSeatNumber()));
+		}
+		try {
+			restored.reserveSeats(expiring.getSeatHoldId(), "someone@company.com");
+			Assert.fail("The hold belongs to another customer");
+		} catch (TicketException e) {
+			Assert.assertFalse(e instanceof TicketUnavailableException);
+		}
+		// The hold that was not purchased expires after the restore
+		long deadline = System.currentTimeMillis() + 5000;
+		while (restored.numSeatsAvailable() < 23 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(23, restored.numSeatsAvailable());
+		try {
+			restored.reserveSeats(expiring.getSeatHoldId(), "expiring@company.com");
+			Assert.fail("The hold has expired");
+		} catch (TicketUnavailableException e) {
+			Assert.assertEquals("Reservation has expired", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testEventRegistry() throws TicketException {
+		String[] rows = { "A", "B" };
+		EventRegistry registry = new EventRegistry(2, 64);
+		try {
+			for (int i = 0; i < 3; i++) {
+				registry.addEvent("event-" + i, new EventTicketService("Event " + i, Calendar.getInstance().getTime(),
+						EventType.STAGE, rows, 10, 15.0));
+			}
+			// Events are spread over the shards
+			Assert.assertEquals(0, registry.getShard("event-0"));
+			Assert.assertEquals(1, registry.getShard("event-1"));
+			Assert.assertEquals(0, registry.getShard("event-2"));
+			for (int i = 0; i < 3; i++) {
+				SeatHold hold = registry.getEvent("event-2").findAndHoldSeats(2, "myemail@company.com");
+				registry.getEvent("event-2").reserveSeats(hold.getSeatHoldId(), "myemail@company.com");
+			}
+			Assert.assertEquals(14, registry.getEvent("event-2").numSeatsAvailable());
+			Assert.assertEquals(20, registry.getEvent("event-0").numSeatsAvailable());
+			Assert.assertEquals("event-2", registry.getShardLoads().get(0).getHottestEvent());
+			Assert.assertEquals(6, registry.getShardLoads().get(0).getHottestEventCommands());
+
+			Assert.assertTrue(registry.retireEvent("event-0"));
+			Assert.assertNull(registry.getEvent("event-0"));
+			Assert.assertEquals(1, registry.getShardLoads().get(0).getEventCount());
+			// The freed shard takes the next event
+			registry.addEvent("event-3",
+					new EventTicketService("Event 3", Calendar.getInstance().getTime(), EventType.STAGE, rows, 10, 15.0));
+			Assert.assertEquals(0, registry.getShard("event-3"));
+		} finally {
+			registry.shutdown();
+		}
+	}
+
+	@Test
+	public void testUniqueHoldIds() throws TicketException {
+		String[] rows = { "A", "B", "C", "D", "E" };
+		EventTicketService event = new EventTicketService("Many holds", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 400, 15.0);
+		EventTicketService other = new EventTicketService("Other", Calendar.getInstance().getTime(),
+				EventType.STAGE, rows, 10, 15.0);
+		Set<Long> ids = new HashSet<Long>();
+		List<SeatHold> holds = new ArrayList<SeatHold>();
+		SeatHold otherHold = null;
+		for (int i = 0; i < 2000; i++) {
+			SeatHold hold = event.findAndHoldSeats(1, "customer" + i + "@company.com");
+			Assert.assertTrue(ids.add(hold.getSeatHoldId()));
+			holds.add(hold);
+			if (i == 1000) {
+				// Ids are unique across events too
+				otherHold = other.findAndHoldSeats(1, "other@company.com");
+				Assert.assertTrue(ids.add(otherHold.getSeatHoldId()));
+			}
+		}
+		// Every customer gets their own hold
+		for (int i = 0; i < holds.size(); i++) {
+			event.reserveSeats(holds.get(i).getSeatHoldId(), "customer" + i + "@company.com");
+		}
+		Assert.assertEquals(0, event.numSeatsAvailable());
+		try {
+			event.reserveSeats(holds.get(0).getSeatHoldId(), "customer0@company.com");
+			Assert.fail("The hold was already purchased");
+		} catch (TicketUnavailableException e) {
+			Assert.assertEquals("The specified tickets are no longer available", e.getMessage());
+		}
+		try {
+			event.reserveSeats(42L, "customer0@company.com");
+			Assert.fail("The hold does not exist");
+		} catch (TicketException e) {
+			Assert.assertEquals("The seat hold does not exist", e.getMessage());
+		}
+		// The hold of the other event was issued among the ids of this one, but not by it
+		thrown.expect(TicketException.class);
+		thrown.expectMessage("The seat hold does not exist");
+		event.reserveSeats(otherHold.getSeatHoldId(), "other@company.com");
+	}
+
+	@Test
+	public void testPurchaseLedger() throws TicketException {
+		EventTicketService event = (EventTicketService) theaterEvent;
+		SeatHold first = event.findAndHoldSeats(3, "myemail@company.com");
+		String firstCode = event.reserveSeats(first.getSeatHoldId(), "myemail@company.com");
+		SeatHold second = event.findAndHoldSeats(2, "myemail@company.com");
+		String secondCode = event.reserveSeats(second.getSeatHoldId(), "myemail@company.com");
+		SeatHold other = event.findAndHoldSeats(4, "another@company.com");
+		event.reserveSeats(other.getSeatHoldId(), "another@company.com");
+
+		Assert.assertEquals(13, firstCode.length());
+		Assert.assertNotEquals(firstCode, secondCode);
+		List<ConfirmedTickets> purchases = event.getPurchases("myemail@company.com");
+		Assert.assertEquals(2, purchases.size());
+		Assert.assertEquals(firstCode, purchases.get(0).getConfirmationCode());
+		Assert.assertSame(purchases.get(1), event.getPurchase(secondCode));
+		Ticket seat = other.getTickets().get(0);
+		Assert.assertEquals("another@company.com",
+				event.getSeatOwner(seat.getSeatRow(), seat.getSeatNumber()).getConfirmationEmail());
+		Assert.assertNull(event.getSeatOwner("G", 1));
+		// A mistyped code fails its check symbol
+		char typo = firstCode.charAt(0) == '0' ? '1' : '0';
+		Assert.assertNull(event.getPurchase(typo + firstCode.substring(1)));
+		// and a code of another length is no code at all
+		Assert.assertNull(event.getPurchase(firstCode.substring(1)));
+		Assert.assertNull(event.getPurchase(firstCode + "0"));
+		Assert.assertNull(event.getPurchase(null));
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		EventTicketService event = (EventTicketService) theaterEvent;
+		// Time every operation
+		event.getMetrics().setLatencySampling(1);
+		SeatHold purchased = event.findAndHoldSeats(3, "myemail@company.com");
+		event.reserveSeats(purchased.getSeatHoldId(), "myemail@company.com");
+		event.setHoldTimeout(100);
+		event.findAndHoldSeats(2, "myemail@company.com");
+		try {
+			event.findAndHoldSeats(200, "myemail@company.com");
+			Assert.fail("The hold should have failed");
+		} catch (TicketUnavailableException e) {
+			// Expected
+		}
+		try {
+			event.reserveSeats(purchased.getSeatHoldId(), "myemail@company.com");
+			Assert.fail("The purchase should have failed");
+		} catch (TicketException e) {
+			// Expected
+		}
+		TicketMetrics metrics = event.getMetrics();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (metrics.getExpirations() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		TicketMetrics.Snapshot snapshot = metrics.snapshot();
+		Assert.assertEquals(2, snapshot.getHolds());
+		Assert.assertEquals(1, snapshot.getHoldFailures());
+		Assert.assertEquals(5, snapshot.getSeatsHeld());
+		Assert.assertEquals(1, snapshot.getPurchases());
+		Assert.assertEquals(1, snapshot.getPurchaseFailures());
+		Assert.assertEquals(3, snapshot.getSeatsSold());
+		Assert.assertEquals(1, snapshot.getExpirations());
+		Assert.assertEquals(0.5, snapshot.getConversionRate(), 0.001);
+		Assert.assertEquals(3, snapshot.getHoldLatency().getCount());
+		Assert.assertTrue(snapshot.getHoldLatency().getPercentile(0.5) > 0);
+		Assert.assertTrue(snapshot.getHoldLatency().getPercentile(0.99) <= snapshot.getHoldLatency().getMax());
+
+		// The same values through JMX
+		ObjectName name = metrics.register();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Assert.assertEquals(2L, server.getAttribute(name, "Holds"));
+			Assert.assertEquals(event.numSeatsAvailable(), server.getAttribute(name, "SeatsAvailable"));
+			CompositeData composite = (CompositeData) server.getAttribute(name, "Snapshot");
+			Assert.assertEquals(2L, composite.get("holds"));
+			Assert.assertEquals(1L, composite.get("expirations"));
+			Assert.assertEquals(3L, ((CompositeData) composite.get("holdLatency")).get("count"));
+			server.invoke(name, "reset", null, null);
+		} finally {
+			metrics.unregister();
+		}
+		Assert.assertEquals(0, metrics.snapshotAndReset().getHolds());
+		Assert.assertEquals(0, metrics.getHoldLatencyMax(), 0.0);
+
+		// A hold given back because its purchase failed did not expire
+		SeatHold broken = event.findAndHoldSeats(2, "myemail@company.com");
+		broken.getTickets().get(0).releaseTicket();
+		try {
+			event.reserveSeats(broken.getSeatHoldId(), "myemail@company.com");
+			Assert.fail("The purchase should have failed");
+		} catch (TicketException e) {
+			// Expected
+		}
+		snapshot = metrics.snapshot();
+		Assert.assertEquals(1, snapshot.getPurchaseFailures());
+		Assert.assertEquals(0, snapshot.getExpirations());
+	}
+
+	@Test
+	public void testBestFitAllocation() throws Exception {
+		String[] rows = { "A" };
+		EventTicketService center = new EventTicketService("Center", new Date(), EventType.STAGE, rows, 12, 20.0);
+		EventTicketService bestFit = new EventTicketService("Best fit", new Date(), EventType.STAGE, rows, 12, 20.0);
+		bestFit.setSeatAllocation(SeatAllocation.BEST_FIT);
+		bestFit.setHoldTimeout(200);
+
+		// Both start in the middle of the row, seats 7 and 8
+		Assert.assertEquals(7, center.findAndHoldSeats(2, "myemail@company.com").getTickets().get(0).getSeatNumber());
+		Assert.assertEquals(7, bestFit.findAndHoldSeats(2, "myemail@company.com").getTickets().get(0).getSeatNumber());
+
+		// Center splits the 6 seats on the left, best fit fills the 4 on the right
+		Assert.assertEquals(3, center.findAndHoldSeats(4, "myemail@company.com").getTickets().get(0).getSeatNumber());
+		Assert.assertEquals(9, bestFit.findAndHoldSeats(4, "myemail@company.com").getTickets().get(0).getSeatNumber());
+
+		// So only best fit has room left for a party of 6
+		try {
+			center.findAndHoldSeats(6, "myemail@company.com");
+			Assert.fail("The hold should have failed");
+		} catch (TicketUnavailableException e) {
+			// Expected
+		}
+		Assert.assertEquals(1, bestFit.findAndHoldSeats(6, "myemail@company.com").getTickets().get(0).getSeatNumber());
+
+		// The median party is 4 and the center row has 2 of its 6 seats left in a gap of 2
+		Assert.assertEquals(4, center.getMetrics().getMedianPartySize());
+		Assert.assertEquals(2.0 / 6, center.getFragmentation(), 0.001);
+		Assert.assertEquals(0.0, bestFit.getFragmentation(), 0.001);
+
+		// The gaps merge again as the holds expire
+		waitForSeats(bestFit, 12);
+		Assert.assertEquals(12, bestFit.findAndHoldSeats(12, "myemail@company.com").getTickets().size());
+	}
+
+	@Test
+	public void testSplitParty() throws TicketException {
+		EventTicketService event = (EventTicketService) theaterEvent;
+		// No row has 20 seats
+		try {
+			event.findAndHoldSeats(20, "myemail@company.com");
+			Assert.fail("The hold should have failed");
+		} catch (TicketUnavailableException e) {
+			// Expected
+		}
+
+		// The same seats of the two best rows
+		event.setMaxRowsPerParty(2);
+		Assert.assertEquals("A3-12 B3-12", describeSeats(event.findAndHoldSeats(20, "myemail@company.com")));
+
+		// Three rows from the first ones with 10 seats free in all of them, the last
+		// row takes 8 seats under the middle of the others
+		event.setMaxRowsPerParty(3);
+		Assert.assertEquals("C3-12 D3-12 E4-11", describeSeats(event.findAndHoldSeats(28, "myemail@company.com")));
+		Assert.assertEquals(84 - 48, event.numSeatsAvailable());
+
+		// Requests of a batch are split too
+		List<HoldRequest> requests = new ArrayList<HoldRequest>();
+		requests.add(new HoldRequest(20, "myemail@company.com"));
+		requests.add(new HoldRequest(20, "myemail@company.com"));
+		List<HoldResult> results = event.findAndHoldSeats(requests);
+		Assert.assertEquals("F3-12 G3-12", describeSeats(results.get(0).getSeatHold()));
+		Assert.assertFalse(results.get(1).isHeld());
+		Assert.assertEquals(84 - 68, event.numSeatsAvailable());
+
+		thrown.expect(IllegalArgumentException.class);
+		event.setMaxRowsPerParty(4);
+	}
+
+	// Seats of a hold as row, first and last seat number of every row
+	private static String describeSeats(SeatHold hold) {
+		StringBuilder description = new StringBuilder();
+		String row = null;
+		int first = 0;
+		int last = 0;
+		for (Ticket ticket : hold.getTickets()) {
+			if (!ticket.getSeatRow().equals(row)) {
+				if (row != null) {
+					description.append(row).append(first).append('-').append(last).append(' ');
+				}
+				row = ticket.getSeatRow();
+				first = ticket.getSeatNumber();
+			}
+			last = ticket.getSeatNumber();
+		}
+		return description.append(row).append(first).append('-').append(last).toString();
+	}
+
+	@Test
+	public void testVenueLayout() throws Exception {
+		VenueLayout layout = new VenueLayout();
+		// Two straight rows facing the screen at the origin, close and far
+		for (int seat = 1; seat <= 10; seat++) {
+			layout.addSeat("FRONT", seat, seat - 5.5, 2.0);
+		}
+		for (int seat = 1; seat <= 10; seat++) {
+			layout.addSeat("BACK", seat, seat - 5.5, 20.0);
+		}
+		// A box scored by the box office, better than any other row and best on
+		// its first seat
+		layout.readQualities(new StringReader("# Box seats\nSIDE,1,100\nSIDE,2,90\nSIDE,3,80\n\n"
+				+ "SIDE,4,70\nSIDE,5,60\nSIDE,6,50\n"));
+		EventTicketService event = new EventTicketService("Layout", new Date(), EventType.SCREEN, layout, 20.0);
+		Assert.assertEquals(26, event.numSeatsAvailable());
+
+		Assert.assertEquals("SIDE1-2", describeSeats(event.findAndHoldSeats(2, "myemail@company.com")));
+		Assert.assertEquals("SIDE3-5", describeSeats(event.findAndHoldSeats(3, "myemail@company.com")));
+		// The front row, in the middle, whatever the type of the event
+		Assert.assertEquals("FRONT4-7", describeSeats(event.findAndHoldSeats(4, "myemail@company.com")));
+		Assert.assertEquals("FRONT8-10", describeSeats(event.findAndHoldSeats(3, "myemail@company.com")));
+		Assert.assertEquals("SIDE6-6", describeSeats(event.findAndHoldSeats(1, "myemail@company.com")));
+		Assert.assertEquals("BACK1-10", describeSeats(event.findAndHoldSeats(10, "myemail@company.com")));
+
+		thrown.expect(IOException.class);
+		layout.readQualities(new StringReader("SIDE,seven,10\n"));
+	}
+
+	@Test
+	public void testVenueTemplate() throws Exception {
+		VenueTemplate template = new VenueTemplate(new String[] { "A", "B" }, new int[] { 6, 4 }, new int[] { 1, 0 },
+				new double[] { 10.0, 25.0 });
+		Assert.assertEquals(10, template.getSeatCount());
+		EventTicketService matinee = new EventTicketService("Matinee", new Date(), EventType.STAGE, template);
+		EventTicketService evening = new EventTicketService("Evening", new Date(), EventType.STAGE, template);
+
+		SeatHold hold = matinee.findAndHoldSeats(6, "myemail@company.com");
+		Assert.assertEquals("A1-6", describeSeats(hold));
+		Assert.assertEquals(150.0, hold.getTotalPrice(), 0.001);
+		matinee.reserveSeats(hold.getSeatHoldId(), "myemail@company.com");
+		// Selling one event leaves the other events of the template untouched
+		Assert.assertEquals(4, matinee.numSeatsAvailable());
+		Assert.assertEquals(10, evening.numSeatsAvailable());
+		Assert.assertEquals("A3-6", describeSeats(evening.findAndHoldSeats(4, "myemail@company.com")));
+		Assert.assertEquals("B3-4", describeSeats(matinee.findAndHoldSeats(2, "myemail@company.com")));
+
+		// A compiled layout is a template too, with the ranking of its rows
+		VenueLayout layout = new VenueLayout();
+		for (int seat = 1; seat <= 4; seat++) {
+			layout.addSeat("BACK", seat, seat - 2.5, 20.0);
+			layout.addSeat("FRONT", seat, seat - 2.5, 2.0);
+		}
+		VenueTemplate ranked = layout.createTemplate(30.0);
+		Assert.assertEquals("BACK", ranked.getRowId(0));
+		for (int i = 0; i < 2; i++) {
+			EventTicketService event = new EventTicketService("Show " + i, new Date(), EventType.SCREEN, ranked);
+			Assert.assertEquals("FRONT2-3", describeSeats(event.findAndHoldSeats(2, "myemail@company.com")));
+		}
+	}
+
+	@Test
+	public void testFlightRecorderEvents() throws Exception {
+		EventTicketService event = (EventTicketService) theaterEvent;
+		Path file = folder.newFile("ticketing.jfr").toPath();
+		SeatHold purchased;
+		Recording recording = new Recording(Configuration.create(Paths.get("ticketing.jfc")));
+		try {
+			// Keep every row search, not only the slow ones
+			recording.enable("com.galvez.demos.ticketing.RowSearch").withThreshold(Duration.ZERO);
+			recording.start();
+			purchased = event.findAndHoldSeats(3, "myemail@company.com");
+			event.reserveSeats(purchased.getSeatHoldId(), "myemail@company.com");
+			event.setHoldTimeout(100);
+			event.findAndHoldSeats(2, "myemail@company.com");
+			try {
+				event.findAndHoldSeats(200, "myemail@company.com");
+				Assert.fail("The hold should have failed");
+			} catch (TicketUnavailableException e) {
+				// Expected
+			}
+			// The expiration is counted once its release is recorded
+			long deadline = System.currentTimeMillis() + 5000;
+			while (event.getMetrics().getExpirations() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(1, event.getMetrics().getExpirations());
+			recording.stop();
+			recording.dump(file);
+		} finally {
+			recording.close();
+		}
+
+		Map<String, List<RecordedEvent>> events = new HashMap<String, List<RecordedEvent>>();
+		for (RecordedEvent recorded : RecordingFile.readAllEvents(file)) {
+			String type = recorded.getEventType().getName();
+			if (!events.containsKey(type)) {
+				events.put(type, new ArrayList<RecordedEvent>());
+			}
+			events.get(type).add(recorded);
+		}
+		List<RecordedEvent> holds = events.get("com.galvez.demos.ticketing.Hold");
+		Assert.assertEquals(3, holds.size());
+		Assert.assertEquals("Theater", holds.get(0).getString("eventName"));
+		Assert.assertEquals(3, holds.get(0).getInt("seatsRequested"));
+		Assert.assertEquals(1, holds.get(0).getInt("rowsScanned"));
+		Assert.assertEquals("HELD", holds.get(0).getString("outcome"));
+		Assert.assertEquals(purchased.getSeatHoldId(), holds.get(0).getLong("holdId"));
+		Assert.assertEquals("UNAVAILABLE", holds.get(2).getString("outcome"));
+		Assert.assertEquals(-1L, holds.get(2).getLong("holdId"));
+
+		List<RecordedEvent> purchases = events.get("com.galvez.demos.ticketing.Purchase");
+		Assert.assertEquals(1, purchases.size());
+		Assert.assertEquals("PURCHASED", purchases.get(0).getString("outcome"));
+		Assert.assertEquals(3, purchases.get(0).getInt("seats"));
+
+		// The second hold expired
+		List<RecordedEvent> releases = events.get("com.galvez.demos.ticketing.Release");
+		Assert.assertEquals(1, releases.size());
+		Assert.assertEquals(holds.get(1).getLong("holdId"), releases.get(0).getLong("holdId"));
+		Assert.assertEquals("EXPIRED", releases.get(0).getString("outcome"));
+		Assert.assertEquals("Theater", releases.get(0).getString("eventName"));
+		Assert.assertEquals(2, releases.get(0).getInt("seats"));
+
+		List<RecordedEvent> searches = events.get("com.galvez.demos.ticketing.RowSearch");
+		Assert.assertEquals(2, searches.size());
+		Assert.assertEquals("A", searches.get(0).getString("rowId"));
+		Assert.assertEquals("Theater", searches.get(0).getString("eventName"));
+		Assert.assertEquals("FOUND", searches.get(0).getString("outcome"));
+	}
 }
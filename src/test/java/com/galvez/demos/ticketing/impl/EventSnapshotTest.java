@@ -0,0 +1,64 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.galvez.demos.ticketing.EventType;
+import com.galvez.demos.ticketing.SeatHold;
+import com.galvez.demos.ticketing.Ticket;
+
+/**
+ * Unit test for the snapshots of events created from a venue layout.
+ */
+public class EventSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRankedVenue() throws Exception {
+		// The back row comes first in the layout and by id, the front row is
+		// better and best on its first seats
+		VenueLayout layout = new VenueLayout();
+		for (int seat = 1; seat <= 4; seat++) {
+			layout.addSeat("BACK", seat, seat - 2.5, 20.0);
+		}
+		layout.readQualities(new StringReader("FRONT,1,100\nFRONT,2,90\nFRONT,3,80\nFRONT,4,70\n"));
+		VenueTemplate template = layout.createTemplate(20.0);
+		EventTicketService event = new EventTicketService("Ranked", new Date(), EventType.STAGE, template);
+		Assert.assertEquals("FRONT1-1", describeSeats(event.findAndHoldSeats(1, "myemail@company.com")));
+		Path file = folder.newFile("ranked.snapshot").toPath();
+		EventSnapshot.write(event, file);
+
+		// The restored event keeps the ranking and the best blocks of the rows
+		EventTicketService restored = EventSnapshot.read(file);
+		Assert.assertTrue(restored.getTemplate().isRanked());
+		Assert.assertEquals("FRONT2-3", describeSeats(restored.findAndHoldSeats(2, "myemail@company.com")));
+
+		// and can go back into the template shared by the events of the venue
+		restored = EventSnapshot.read(file, template);
+		Assert.assertSame(template, restored.getTemplate());
+		Assert.assertEquals(7, restored.numSeatsAvailable());
+		Assert.assertEquals("FRONT2-3", describeSeats(restored.findAndHoldSeats(2, "myemail@company.com")));
+
+		try {
+			EventSnapshot.read(file, new VenueTemplate(new String[] { "BACK", "FRONT" }, 4, 20.0));
+			Assert.fail("The snapshot is not an event of that template");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private static String describeSeats(SeatHold hold) {
+		Ticket first = hold.getTickets().get(0);
+		Ticket last = hold.getTickets().get(hold.getTickets().size() - 1);
+		return first.getSeatRow() + first.getSeatNumber() + "-" + last.getSeatNumber();
+	}
+}
@@ -0,0 +1,144 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for the free run segment tree.
+ */
+public class FreeRunTreeTest {
+
+	// 130 seats take three words, so the tree has a fourth, empty leaf
+	private static final int SEATS = 130;
+
+	@Test
+	public void testRunsAcrossWords() {
+		long[] words = new long[3];
+		FreeRunTree tree = new FreeRunTree(words);
+		Assert.assertEquals(0, tree.maxRun());
+		Assert.assertEquals(-1, tree.closestWindow(0, 1));
+
+		// A run over the first word boundary and another one to the last seat
+		setRange(words, tree, 60, 70, true);
+		setRange(words, tree, 120, SEATS, true);
+		Assert.assertEquals(10, tree.maxRun());
+		Assert.assertEquals(60, tree.leftmostWindow(0, 10));
+		Assert.assertEquals(120, tree.leftmostWindow(61, 10));
+		Assert.assertEquals(120, tree.rightmostWindow(SEATS, 10));
+		Assert.assertEquals(60, tree.rightmostWindow(129, 10));
+		Assert.assertEquals(60, tree.closestWindow(64, 10));
+		Assert.assertEquals(120, tree.closestWindow(100, 10));
+		Assert.assertEquals(66, tree.closestWindow(66, 4));
+		Assert.assertEquals(-1, tree.closestWindow(0, 11));
+
+		// Joining the runs makes one that spans all three words
+		setRange(words, tree, 70, 120, true);
+		Assert.assertEquals(70, tree.maxRun());
+		Assert.assertEquals(60, tree.closestWindow(0, 70));
+		Assert.assertEquals(-1, tree.leftmostWindow(61, 70));
+
+		// Splitting it on the second word boundary
+		setRange(words, tree, 128, 129, false);
+		Assert.assertEquals(68, tree.maxRun());
+		Assert.assertEquals(129, tree.leftmostWindow(128, 1));
+		Assert.assertEquals(60, tree.rightmostWindow(SEATS, 68));
+	}
+
+	@Test
+	public void testFullRow() {
+		long[] words = new long[2];
+		FreeRunTree tree = new FreeRunTree(words);
+		setRange(words, tree, 0, 128, true);
+		Assert.assertEquals(128, tree.maxRun());
+		Assert.assertEquals(0, tree.closestWindow(40, 128));
+		Assert.assertEquals(40, tree.closestWindow(40, 88));
+		Assert.assertEquals(64, tree.rightmostWindow(128, 64));
+	}
+
+	@Test
+	public void testRandomChanges() {
+		Random random = new Random(42);
+		long[] words = new long[3];
+		FreeRunTree tree = new FreeRunTree(words);
+		for (int i = 0; i < 5000; i++) {
+			int start = random.nextInt(SEATS);
+			int end = Math.min(SEATS, start + 1 + random.nextInt(80));
+			setRange(words, tree, start, end, random.nextInt(3) > 0);
+
+			Assert.assertEquals(longestRun(words), tree.maxRun());
+			int length = 1 + random.nextInt(70);
+			int position = random.nextInt(SEATS);
+			Assert.assertEquals(leftmost(words, position, length), tree.leftmostWindow(position, length));
+			Assert.assertEquals(rightmost(words, position + 1, length), tree.rightmostWindow(position + 1, length));
+			Assert.assertEquals(closest(words, position, length), tree.closestWindow(position, length));
+		}
+	}
+
+	private static void setRange(long[] words, FreeRunTree tree, int start, int end, boolean available) {
+		for (int i = start; i < end; i++) {
+			if (available) {
+				words[i / 64] |= 1L << i;
+			} else {
+				words[i / 64] &= ~(1L << i);
+			}
+		}
+		for (int word = start / 64; word <= (end - 1) / 64; word++) {
+			tree.update(word);
+		}
+	}
+
+	private static boolean fits(long[] words, int start, int length) {
+		if (start < 0 || start + length > SEATS) {
+			return false;
+		}
+		for (int i = start; i < start + length; i++) {
+			if ((words[i / 64] & (1L << i)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int longestRun(long[] words) {
+		int longest = 0;
+		int run = 0;
+		for (int i = 0; i < SEATS; i++) {
+			run = (words[i / 64] & (1L << i)) != 0 ? run + 1 : 0;
+			longest = Math.max(longest, run);
+		}
+		return longest;
+	}
+
+	private static int leftmost(long[] words, int from, int length) {
+		for (int start = from; start < SEATS; start++) {
+			if (fits(words, start, length)) {
+				return start;
+			}
+		}
+		return -1;
+	}
+
+	private static int rightmost(long[] words, int to, int length) {
+		for (int start = to - length; start >= 0; start--) {
+			if (fits(words, start, length)) {
+				return start;
+			}
+		}
+		return -1;
+	}
+
+	// Nearest start to the ideal one, the left one on a tie
+	private static int closest(long[] words, int idealStart, int length) {
+		for (int distance = 0; distance < SEATS; distance++) {
+			if (fits(words, idealStart - distance, length)) {
+				return idealStart - distance;
+			}
+			if (fits(words, idealStart + distance, length)) {
+				return idealStart + distance;
+			}
+		}
+		return -1;
+	}
+}
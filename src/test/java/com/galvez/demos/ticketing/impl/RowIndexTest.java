@@ -0,0 +1,76 @@
+package com.galvez.demos.ticketing.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.galvez.demos.ticketing.Ticket;
+import com.galvez.demos.ticketing.exceptions.TicketUnavailableException;
+
+/**
+ * Unit test for the row index.
+ */
+public class RowIndexTest {
+
+	@Test
+	public void testConcurrentRowChanges() throws Exception {
+		String[] rowIds = new String[64];
+		for (int row = 0; row < rowIds.length; row++) {
+			rowIds[row] = "R" + row;
+		}
+		CompactVenue venue = new CompactVenue(rowIds, 20, 10.0);
+		final List<TicketRow> rows = new ArrayList<TicketRow>();
+		for (int row = 0; row < rowIds.length; row++) {
+			rows.add(new TicketRow(venue, row));
+		}
+		final RowIndex index = new RowIndex(rows);
+
+		// Neighbouring rows share inner nodes, every thread holds and releases in all of them
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int thread = 0; thread < 4; thread++) {
+			final Random random = new Random(thread);
+			results.add(threads.submit(new Callable<Void>() {
+				public Void call() {
+					List<List<Ticket>> taken = new ArrayList<List<Ticket>>();
+					for (int i = 0; i < 20000; i++) {
+						if (random.nextBoolean() && !taken.isEmpty()) {
+							// The tickets stay available, so updating them gives the seats back
+							for (Ticket ticket : taken.remove(random.nextInt(taken.size()))) {
+								rows.get(Integer.parseInt(ticket.getSeatRow().substring(1))).updateSeat(ticket);
+							}
+							continue;
+						}
+						try {
+							taken.add(rows.get(random.nextInt(rows.size())).getTickets(1 + random.nextInt(6)));
+						} catch (TicketUnavailableException e) {
+							// Other threads took the seats of the row
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		threads.shutdown();
+
+		// Once the index is idle, every row must be found for its longest run of seats
+		int longest = 0;
+		for (int rank = 0; rank < rows.size(); rank++) {
+			int seats = rows.get(rank).getMaxContiguousTickets();
+			longest = Math.max(longest, seats);
+			int found = index.findBestRow(seats);
+			Assert.assertTrue("Row " + rank + " is hidden", found >= 0 && found <= rank);
+		}
+		Assert.assertEquals(-1, index.findBestRow(longest + 1));
+	}
+}